@@ -65,6 +65,14 @@ public abstract class AbstractMigration extends AbstractStatement {
         this.placeholder = placeholder;
     }
 
+    /**
+     * Migrations commit after every step.
+     */
+    @Override
+    public boolean isSelfCommitting() {
+        return true;
+    }
+
     @Override
     public void recordStructuredInfo(RunContext rctx) {
         super.recordStructuredInfo(rctx);
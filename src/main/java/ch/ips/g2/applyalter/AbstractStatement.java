@@ -31,6 +31,16 @@ public abstract class AbstractStatement implements AlterStatement {
     @XStreamAlias("ignore-sqlcode")
     @XStreamImplicit
     protected Set<Integer> ignoredSqlCodes;
+    /**
+     * Lock timeout in milliseconds, overrides the alterscript setting.
+     */
+    @XStreamAlias("lock-timeout")
+    protected Integer lockTimeout;
+    /**
+     * Statement timeout in milliseconds, overrides the alterscript setting.
+     */
+    @XStreamAlias("statement-timeout")
+    protected Integer statementTimeout;
 
     public String getStatement() {
         return statement;
@@ -48,6 +58,10 @@ public abstract class AbstractStatement implements AlterStatement {
         this.statement = statement;
     }
 
+    public boolean isSelfCommitting() {
+        return false;
+    }
+
 
     public Set<String> getIgnoredSqlStates() {
         return ignoredSqlStates;
@@ -65,6 +79,22 @@ public abstract class AbstractStatement implements AlterStatement {
         this.ignoredSqlCodes = ignoredSqlCodes;
     }
 
+    public Integer getLockTimeout() {
+        return lockTimeout;
+    }
+
+    public void setLockTimeout(Integer lockTimeout) {
+        this.lockTimeout = lockTimeout;
+    }
+
+    public Integer getStatementTimeout() {
+        return statementTimeout;
+    }
+
+    public void setStatementTimeout(Integer statementTimeout) {
+        this.statementTimeout = statementTimeout;
+    }
+
     /* Implementing hashCode+equals is not neccesary and probably incorrect
 
       @Override
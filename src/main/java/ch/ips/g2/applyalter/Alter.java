@@ -34,7 +34,26 @@ public class Alter {
     public String engine;
 
     public String schema = DEFAULT_SCHEMA;
+    /**
+     * Schemas the alterscript is applied to, one by one; null = just {@link #schema}.
+     */
+    public Schemas schemas;
     public IsolationLevel isolation;
+    /**
+     * Lock timeout in milliseconds; null = database default.
+     */
+    @XStreamAlias("lock-timeout")
+    public Integer lockTimeout;
+    /**
+     * Statement timeout in milliseconds; null = database default.
+     */
+    @XStreamAlias("statement-timeout")
+    public Integer statementTimeout;
+    /**
+     * How many times is a statement retried after lock timeout or deadlock.
+     */
+    @XStreamAlias("lock-retries")
+    public Integer lockRetries;
     @XStreamImplicit(itemFieldName = "environment")
     public Set<String> environment;
     public String checkok;
@@ -47,12 +66,25 @@ public class Alter {
      */
     public boolean synchronization = false;
 
+    /**
+     * Ids of alterscripts this one depends on. Alterscripts with this element (even empty) can be executed
+     * concurrently, see {@link ApplyAlter#PARALLEL_ALTERS}; null = sequential.
+     */
+    @XStreamImplicit(itemFieldName = "depends-on")
+    public List<String> dependsOn;
+
     @XStreamImplicit(itemFieldName = "datafile")
     public List<String> datafile;
     /**
      * Data files from {@link #datafile}, but loaded into memory.
      */
     transient Map<String, byte[]> _datafiles;
+    /**
+     * Only id, hash and the header elements (engine, schema, schemas, instance, environment, synchronization)
+     * are loaded;
+     * see {@link AlterLoader.AppliedState}.
+     */
+    transient boolean headerOnly;
 
     @XStreamImplicit
     public List<AlterStatement> statements = new ArrayList<AlterStatement>();
@@ -98,6 +130,14 @@ public class Alter {
         this.schema = schema;
     }
 
+    public Schemas getSchemas() {
+        return schemas;
+    }
+
+    public void setSchemas(Schemas schemas) {
+        this.schemas = schemas;
+    }
+
     public IsolationLevel getIsolation() {
         return isolation;
     }
@@ -106,6 +146,36 @@ public class Alter {
         this.isolation = isolation;
     }
 
+    public Integer getLockTimeout() {
+        return lockTimeout;
+    }
+
+    public void setLockTimeout(Integer lockTimeout) {
+        this.lockTimeout = lockTimeout;
+    }
+
+    public Integer getStatementTimeout() {
+        return statementTimeout;
+    }
+
+    public void setStatementTimeout(Integer statementTimeout) {
+        this.statementTimeout = statementTimeout;
+    }
+
+    /**
+     * How many times is a statement retried after retryable lock failure,
+     * see {@link DbInstance#isLockFailureRetryable(java.sql.SQLException)}.
+     *
+     * @return number of retries, 0 = no retry
+     */
+    public int getLockRetries() {
+        return lockRetries == null ? 0 : lockRetries;
+    }
+
+    public void setLockRetries(Integer lockRetries) {
+        this.lockRetries = lockRetries;
+    }
+
     public void setStatements(List<AlterStatement> statements) {
         this.statements = statements;
     }
@@ -146,6 +216,60 @@ public class Alter {
         this.hash = hash;
     }
 
+    /**
+     * Was only header of the alterscript loaded (because it had been applied already)?
+     * Such alterscript has no checks and no statements.
+     */
+    public boolean isHeaderOnly() {
+        return headerOnly;
+    }
+
+    /**
+     * Can this alterscript share transaction with other alterscripts? It must not commit by itself
+     * and must not change the isolation level (schemas from {@link #schemas} are committed one by one).
+     */
+    public boolean isGroupCommitEligible() {
+        if (isolation != null || schemas != null) {
+            return false;
+        }
+        for (AlterStatement s : statements) {
+            if (s.isSelfCommitting()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ids of alterscripts this one depends on (empty values are ignored).
+     *
+     * @return list of ids, never null
+     */
+    public List<String> getDependsOn() {
+        if (dependsOn == null) {
+            return Collections.emptyList();
+        }
+        final List<String> result = new ArrayList<String>(dependsOn.size());
+        for (String i : dependsOn) {
+            if (i != null && i.trim().length() > 0) {
+                result.add(i.trim());
+            }
+        }
+        return result;
+    }
+
+    public void setDependsOn(List<String> dependsOn) {
+        this.dependsOn = dependsOn;
+    }
+
+    /**
+     * Can this alterscript be scheduled concurrently with other alterscripts? Only when it declares its
+     * dependencies by <code>depends-on</code> element.
+     */
+    public boolean isParallelizable() {
+        return dependsOn != null;
+    }
+
     public String getCheckok() {
         return checkok;
     }
@@ -0,0 +1,126 @@
+package ch.ips.g2.applyalter;
+
+import javax.annotation.Nullable;
+import javax.xml.validation.Validator;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of loaded alterscripts shared by invocations of daemon, see {@link ApplyAlterDaemon}. Alterscripts are
+ * reused when the files (path, size and modification time), placeholders and validation are the same; datafiles
+ * of standalone .xml files are checked too.
+ * Loaded alterscripts are not modified by execution, so they can be shared. Thread safe.
+ */
+class AlterCache {
+    private final Map<String, Entry> cache;
+
+    /**
+     * @param maxEntries maximum number of cached bundles; the least recently used one is dropped
+     */
+    public AlterCache(int maxEntries) {
+        this.cache = new LruMap(maxEntries);
+    }
+
+    /**
+     * Get alterscripts from cache or load them.
+     *
+     * @param applyAlter instance loading the alterscripts, provides placeholders
+     * @param validator  XSD validator; null = no validation
+     * @param alterFiles files with XML serialized alter scripts
+     * @return loaded alterscripts
+     */
+    public Alters load(ApplyAlter applyAlter, @Nullable Validator validator, String... alterFiles)
+            throws ApplyAlterException {
+        final String key = createKey(applyAlter.getPlaceholders(), validator != null, alterFiles);
+        if (key == null) {
+            return applyAlter.load(validator, alterFiles);
+        }
+        final Entry cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+        if (cached != null && cached.datafiles.equals(stampDatafiles(cached.alters, alterFiles))) {
+            return cached.alters;
+        }
+        //loading is not synchronized: the same bundle might be loaded twice, but nothing else waits
+        final Alters loaded = applyAlter.load(validator, alterFiles);
+        synchronized (cache) {
+            cache.put(key, new Entry(loaded, stampDatafiles(loaded, alterFiles)));
+        }
+        return loaded;
+    }
+
+    /**
+     * Path, size and modification time of datafiles used by standalone .xml files (datafiles in archives are
+     * covered by the archive itself).
+     */
+    static String stampDatafiles(Alters alters, String... alterFiles) {
+        final StringBuilder stamp = new StringBuilder();
+        for (String i : alterFiles) {
+            if (!i.endsWith(ApplyAlter.XML_SUFFIX)) {
+                continue;
+            }
+            final File f = new File(i).getAbsoluteFile();
+            for (Alter a : alters.getAlters()) {
+                if (a.datafile != null && f.getName().equals(a.getId())) {
+                    for (String d : a.datafile) {
+                        final File datafile = new File(f.getParentFile(), d);
+                        stamp.append('|').append(datafile.getPath()).append(':').append(datafile.length())
+                                .append(':').append(datafile.lastModified());
+                    }
+                }
+            }
+        }
+        return stamp.toString();
+    }
+
+    /**
+     * Cache key; null = not cacheable (directory: its modification time does not cover changes of files;
+     * git source: revision may move; URL: remote content may change, {@link UrlCache} revalidates it).
+     */
+    @Nullable
+    static String createKey(Map<String, String> placeholders, boolean validated, String... alterFiles) {
+        final StringBuilder key = new StringBuilder();
+        key.append(validated).append('|').append(placeholders);
+        for (String i : alterFiles) {
+            final File f = new File(i).getAbsoluteFile();
+            if (f.isDirectory() || GitSource.isGitSpec(i) || i.contains("://")) {
+                return null;
+            }
+            key.append('|').append(f.getPath()).append(':').append(f.length()).append(':').append(f.lastModified());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Cached alterscripts with {@link #stampDatafiles stamp} of their datafiles.
+     */
+    private static class Entry {
+        final Alters alters;
+        final String datafiles;
+
+        Entry(Alters alters, String datafiles) {
+            this.alters = alters;
+            this.datafiles = datafiles;
+        }
+    }
+
+    /**
+     * Map dropping the least recently used entry.
+     */
+    private static class LruMap extends LinkedHashMap<String, Entry> {
+        private static final long serialVersionUID = 1L;
+        private final int maxEntries;
+
+        LruMap(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
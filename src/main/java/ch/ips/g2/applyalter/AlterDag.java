@@ -0,0 +1,159 @@
+package ch.ips.g2.applyalter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dependency graph of alterscripts executed concurrently, see {@link Alter#getDependsOn()}.
+ * Dependencies on alterscripts outside of the graph are considered satisfied: executed before in this run, or
+ * in an earlier one (see {@link #getUnresolved()}).
+ * Not thread safe: used only by the scheduling thread.
+ */
+class AlterDag {
+    /**
+     * Alterscripts not started yet, in the original order, with number of unfinished dependencies.
+     */
+    private final Map<Alter, Integer> waiting = new LinkedHashMap<Alter, Integer>();
+    /**
+     * Dependent alterscripts, by alterscript.
+     */
+    private final Map<Alter, List<Alter>> dependents = new IdentityHashMap<Alter, List<Alter>>();
+    private int running = 0;
+    /**
+     * Dependencies neither in the graph nor executed before in this run, as "alterscript -> dependency".
+     */
+    private final List<String> unresolved = new ArrayList<String>();
+
+    /**
+     * Create the graph and check it.
+     *
+     * @param alters   alterscripts to execute, in the original order
+     * @param executed ids of alterscripts executed before
+     * @throws ApplyAlterException dependency on itself or cycle
+     */
+    public AlterDag(List<Alter> alters, Collection<String> executed) throws ApplyAlterException {
+        final Map<String, Alter> byId = new HashMap<String, Alter>();
+        for (Alter a : alters) {
+            byId.put(a.getId(), a);
+            dependents.put(a, new ArrayList<Alter>());
+        }
+        for (Alter a : alters) {
+            int count = 0;
+            for (String dep : a.getDependsOn()) {
+                Alter d = findAlter(byId, dep);
+                if (d == a) {
+                    throw new ApplyAlterException("Alterscript %s depends on itself", a.getId());
+                } else if (d != null) {
+                    dependents.get(d).add(a);
+                    count++;
+                } else if (!executed.contains(dep) && !executed.contains(dep + ApplyAlter.XML_SUFFIX)) {
+                    unresolved.add(a.getId() + " -> " + dep);
+                }
+            }
+            waiting.put(a, count);
+        }
+        checkCycles();
+    }
+
+    private static Alter findAlter(Map<String, Alter> byId, String id) {
+        final Alter a = byId.get(id);
+        return a != null ? a : byId.get(id + ApplyAlter.XML_SUFFIX);
+    }
+
+    /**
+     * Topological sort (Kahn): whatever remains is part of a cycle.
+     */
+    private void checkCycles() throws ApplyAlterException {
+        final Map<Alter, Integer> counts = new IdentityHashMap<Alter, Integer>(waiting);
+        final List<Alter> queue = new ArrayList<Alter>();
+        for (Map.Entry<Alter, Integer> e : waiting.entrySet()) {
+            if (e.getValue() == 0) {
+                queue.add(e.getKey());
+            }
+        }
+        for (int i = 0; i < queue.size(); i++) {
+            for (Alter d : dependents.get(queue.get(i))) {
+                final int count = counts.get(d) - 1;
+                counts.put(d, count);
+                if (count == 0) {
+                    queue.add(d);
+                }
+            }
+        }
+        if (queue.size() < waiting.size()) {
+            final List<String> cycle = new ArrayList<String>();
+            for (Map.Entry<Alter, Integer> e : counts.entrySet()) {
+                if (e.getValue() > 0) {
+                    cycle.add(e.getKey().getId());
+                }
+            }
+            throw new ApplyAlterException("Cyclic dependency between alterscripts %s", cycle);
+        }
+    }
+
+    /**
+     * Take alterscripts ready to be executed (all their dependencies have finished), at most given number.
+     *
+     * @param max maximum number of alterscripts to take
+     * @return alterscripts, in the original order; they are considered running
+     */
+    public List<Alter> takeReady(int max) {
+        final List<Alter> result = new ArrayList<Alter>();
+        for (Iterator<Map.Entry<Alter, Integer>> it = waiting.entrySet().iterator();
+             it.hasNext() && result.size() < max; ) {
+            final Map.Entry<Alter, Integer> e = it.next();
+            if (e.getValue() == 0) {
+                result.add(e.getKey());
+                it.remove();
+            }
+        }
+        running += result.size();
+        return result;
+    }
+
+    /**
+     * Mark running alterscript as finished.
+     *
+     * @param a alterscript returned by {@link #takeReady(int)}
+     */
+    public void finished(Alter a) {
+        running--;
+        for (Alter d : dependents.get(a)) {
+            waiting.put(d, waiting.get(d) - 1);
+        }
+    }
+
+    /**
+     * Number of running alterscripts.
+     */
+    public int getRunning() {
+        return running;
+    }
+
+    /**
+     * Are all alterscripts started?
+     */
+    public boolean isAllStarted() {
+        return waiting.isEmpty();
+    }
+
+    /**
+     * Dependencies on alterscripts not processed in this run; they are expected to be applied by an earlier run.
+     */
+    public List<String> getUnresolved() {
+        return unresolved;
+    }
+
+    /**
+     * Alterscripts not started yet.
+     */
+    public Collection<Alter> getWaiting() {
+        return waiting.keySet();
+    }
+}
@@ -0,0 +1,174 @@
+package ch.ips.g2.applyalter;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Directory of alterscripts: all files in the directory and its subdirectories (hidden ones excluded), sorted
+ * by relative path. As with ZIP archive, alterscripts are all the .xml files and the source hash covers all files,
+ * datafiles included. Directories are listed and files hashed concurrently.
+ */
+class AlterDirectory {
+    private final File dir;
+    /**
+     * Relative paths (with <code>/</code>), sorted.
+     */
+    private final List<String> files;
+
+    private AlterDirectory(File dir, List<String> files) {
+        this.dir = dir;
+        this.files = files;
+    }
+
+    /**
+     * List the directory recursively.
+     *
+     * @param dir directory
+     * @return listed directory
+     * @throws ApplyAlterException directory cannot be read
+     */
+    public static AlterDirectory walk(File dir) throws ApplyAlterException {
+        final ForkJoinPool pool = new ForkJoinPool();
+        try {
+            final List<String> files = pool.invoke(new ListTask(dir.toPath(), ""));
+            Collections.sort(files);
+            return new AlterDirectory(dir, files);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Alterscripts (.xml files), sorted by relative path.
+     */
+    public List<File> getAlterscripts() {
+        final List<File> result = new ArrayList<File>();
+        for (String i : files) {
+            if (i.endsWith(ApplyAlter.XML_SUFFIX)) {
+                result.add(new File(dir, i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add all files to source digest: relative path and SHA-1 hash of every file, in order.
+     *
+     * @param sourceDigest source digest
+     * @param index        index of already known hashes; null = hash all files
+     * @throws ApplyAlterException some file cannot be read
+     */
+    public void digest(MessageDigest sourceDigest, @Nullable DirectoryIndex index) throws ApplyAlterException {
+        final List<Callable<String>> tasks = new ArrayList<Callable<String>>(files.size());
+        for (final String i : files) {
+            tasks.add(new Callable<String>() {
+                public String call() throws IOException {
+                    return hash(new File(dir, i), index);
+                }
+            });
+        }
+        final ForkJoinPool pool = new ForkJoinPool();
+        try {
+            final List<Future<String>> hashes = pool.invokeAll(tasks);
+            for (int i = 0; i < files.size(); i++) {
+                sourceDigest.update(files.get(i).getBytes("UTF-8"));
+                sourceDigest.update((byte) 0);
+                sourceDigest.update(hashes.get(i).get().getBytes("UTF-8"));
+            }
+        } catch (ExecutionException e) {
+            throw new ApplyAlterException("Error reading directory " + dir, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApplyAlterException("Interrupted while reading directory " + dir, e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static String hash(File f, @Nullable DirectoryIndex index) throws IOException {
+        String hash = index == null ? null : index.getHash(f);
+        if (hash != null) {
+            return hash;
+        }
+        final MessageDigest digest = AlterLoader.initHashDigest();
+        final InputStream is = new FileInputStream(f);
+        try {
+            final byte[] buf = new byte[8192];
+            int len;
+            while ((len = is.read(buf)) >= 0) {
+                digest.update(buf, 0, len);
+            }
+        } finally {
+            is.close();
+        }
+        hash = AlterLoader.bytes2hex(digest.digest());
+        if (index != null) {
+            index.putHash(f, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Lists one directory, subdirectories are forked.
+     */
+    @SuppressWarnings("serial")
+    private static class ListTask extends RecursiveTask<List<String>> {
+        private final Path dir;
+        private final String prefix;
+
+        ListTask(Path dir, String prefix) {
+            this.dir = dir;
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected List<String> compute() {
+            final List<String> result = new ArrayList<String>();
+            final List<ListTask> subdirs = new ArrayList<ListTask>();
+            try {
+                final DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+                try {
+                    for (Path p : stream) {
+                        final String name = p.getFileName().toString();
+                        if (name.startsWith(".")) {
+                            continue;
+                        }
+                        if (Files.isDirectory(p)) {
+                            final ListTask task = new ListTask(p, prefix + name + "/");
+                            task.fork();
+                            subdirs.add(task);
+                        } else if (Files.isRegularFile(p)) {
+                            result.add(prefix + name);
+                        }
+                    }
+                } finally {
+                    stream.close();
+                }
+            } catch (IOException e) {
+                throw new ApplyAlterException("Error reading directory " + dir, e);
+            }
+            for (ListTask task : subdirs) {
+                result.addAll(task.join());
+            }
+            return result;
+        }
+    }
+}
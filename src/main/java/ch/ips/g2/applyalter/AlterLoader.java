@@ -3,10 +3,15 @@ package ch.ips.g2.applyalter;
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.XStreamException;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.xml.sax.SAXException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Validator;
 import java.io.File;
@@ -14,6 +19,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -25,8 +31,10 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -42,6 +50,26 @@ public class AlterLoader {
      */
     protected final Validator validator;
     private final Map<String, byte[]> placeHolderMap;
+    /**
+     * When set, alterscripts are first read just to compute the hash and only unapplied ones are fully parsed.
+     */
+    @Nullable
+    private AppliedState appliedState;
+    /**
+     * Index of file hashes used for directories; null = all files are read.
+     */
+    @Nullable
+    private DirectoryIndex directoryIndex;
+    /**
+     * Commits of git sources applied by previous runs; null = all alterscripts of git source are loaded.
+     */
+    @Nullable
+    private GitState gitState;
+    /**
+     * Cache of HTTP(S) sources; null = temporary cache is used by every {@link #loadAlters(AlterSink, String...)}.
+     */
+    @Nullable
+    private UrlCache urlCache;
 
     public AlterLoader(XStream xstream, Validator validator, @Nonnull Map<String, byte[]> placeHolderMap) {
         this.xstream = xstream;
@@ -49,13 +77,80 @@ public class AlterLoader {
         this.placeHolderMap = placeHolderMap;
     }
 
+    public void setAppliedState(@Nullable AppliedState appliedState) {
+        this.appliedState = appliedState;
+    }
+
+    public void setDirectoryIndex(@Nullable DirectoryIndex directoryIndex) {
+        this.directoryIndex = directoryIndex;
+    }
+
+    public void setGitState(@Nullable GitState gitState) {
+        this.gitState = gitState;
+    }
+
+    public void setUrlCache(@Nullable UrlCache urlCache) {
+        this.urlCache = urlCache;
+    }
+
     /**
-     * Load alterscripts from files and ZIP archives.
+     * Load alterscripts from files, ZIP archives and directories.
      */
     public Alters loadAlters(String... filenames) {
-        List<Alter> a = new ArrayList<Alter>(filenames.length);
+        final List<Alter> a = new ArrayList<Alter>(filenames.length);
+        final String sourceHash = loadAlters(new AlterSink() {
+            public void add(Alter alter) {
+                a.add(alter);
+            }
+        }, filenames);
+        return new Alters(a, sourceHash);
+    }
+
+    /**
+     * Load alterscripts from files, ZIP archives, directories and git repositories, passing them to sink one by one
+     * (in order).
+     *
+     * @param sink      receiver of loaded alterscripts
+     * @param filenames files, archives, directories, URLs or git sources (see {@link GitSource})
+     * @return source hash of all the files
+     */
+    public String loadAlters(AlterSink sink, String... filenames) {
+        final List<URL> urls = new ArrayList<URL>();
+        for (String f : filenames) {
+            if (f.contains("://") && !GitSource.isGitSpec(f)) {
+                try {
+                    urls.add(new URL(f));
+                } catch (MalformedURLException e) {
+                    throw new ApplyAlterException("invalid URL: " + f, e);
+                }
+            }
+        }
+        if (urls.isEmpty() || urlCache != null) {
+            return loadAlters(sink, urlCache, urls, filenames);
+        }
+        final UrlCache temporary = UrlCache.createTemporary();
+        try {
+            return loadAlters(sink, temporary, urls, filenames);
+        } finally {
+            temporary.close();
+        }
+    }
+
+    private String loadAlters(AlterSink sink, @Nullable UrlCache cache, List<URL> urls, String... filenames) {
+        if (cache != null) {
+            //all remote bundles are downloaded (or revalidated) concurrently before they are read in order
+            cache.prefetch(urls);
+        }
         MessageDigest sourceDigest = initHashDigest();
         for (String f : filenames) {
+            if (GitSource.isGitSpec(f)) {
+                loadGit(new GitSource(f), sourceDigest, sink);
+                continue;
+            }
+            if (!f.contains("://") && new File(f).isDirectory()) {
+                loadDirectory(new File(f), sourceDigest, sink);
+                continue;
+            }
 
             final boolean isZip;
             if (f.endsWith(ApplyAlter.XML_SUFFIX)) {
@@ -73,14 +168,14 @@ public class AlterLoader {
                 } catch (MalformedURLException e) {
                     throw new ApplyAlterException("invalid URL: " + f, e);
                 }
-                a.addAll(loadUrl(url, isZip, sourceDigest));
+                loadUrl(url, isZip, cache, sourceDigest, sink);
             } else {
                 //file
                 final File file = new File(f);
-                a.addAll(loadFile(file, isZip, sourceDigest));
+                loadFile(file, isZip, sourceDigest, sink);
             }
         }
-        return new Alters(a, bytes2hex(sourceDigest.digest()));
+        return bytes2hex(sourceDigest.digest());
     }
 
     /**
@@ -89,6 +184,14 @@ public class AlterLoader {
      * (note: this is the place where hash algorithm is implemented).
      */
     public Alter parseScriptFile(String fileId, AlterSource source, @Nullable MessageDigest extraDigest) {
+        if (appliedState != null) {
+            final Alter header = parseScriptHeader(fileId, source, extraDigest);
+            if (appliedState.isApplied(header)) {
+                return header;
+            }
+            //extra digest already contains this script
+            extraDigest = null;
+        }
         Alter alterscript;
         final MessageDigest digest = initHashDigest();
 
@@ -145,6 +248,174 @@ public class AlterLoader {
         return alterscript;
     }
 
+    /**
+     * First pass of the lazy loading: read the script by streaming parser, just to compute the hash
+     * (including datafiles) and to get the header elements. Script is not validated and datafiles are not kept
+     * in memory.
+     *
+     * @return alterscript with {@link Alter#isHeaderOnly()} set
+     */
+    protected Alter parseScriptHeader(String fileId, AlterSource source, @Nullable MessageDigest extraDigest) {
+        final Alter header = new Alter();
+        header.headerOnly = true;
+        final MessageDigest digest = initHashDigest();
+
+        InputStream inputStream = null;
+        XMLStreamReader reader = null;
+        try {
+            inputStream = createAlterSourceStream(source);
+            inputStream = wrapDigesting(inputStream, digest);
+            inputStream = wrapDigesting(inputStream, extraDigest);
+            reader = XMLInputFactory.newInstance().createXMLStreamReader(inputStream);
+            readHeader(reader, header);
+            reader.close();
+            reader = null;
+            //statements are not needed, but the rest of the file is still part of the hash
+            IOUtils.copy(inputStream, new NullOutputStream());
+        } catch (XMLStreamException e) {
+            throw new ApplyAlterException("Unable to parse Alter from file " + fileId, e);
+        } catch (FileNotFoundException e) {
+            throw new ApplyAlterException("File not found " + fileId, e);
+        } catch (IOException e) {
+            throw new ApplyAlterException("I/O exception reading " + fileId, e);
+        } finally {
+            closeQuietly(reader);
+            IOUtils.closeQuietly(inputStream);
+        }
+
+        if (header.datafile != null) {
+            for (String datafile : header.datafile) {
+                try {
+                    digestAndClose(source.openDataFile(datafile), digest);
+                } catch (FileNotFoundException e) {
+                    throw new ApplyAlterException("no such datafile: " + datafile + " for " + fileId, e);
+                } catch (IOException e) {
+                    throw new ApplyAlterException("error reading datafile: " + datafile + " for " + fileId, e);
+                } catch (DigestException e) {
+                    throw new ApplyAlterException("Error computing digest of " + datafile + " for " + fileId, e);
+                }
+            }
+        }
+
+        header.setId(new File(fileId).getName());
+        header.setHash(bytes2hex(digest.digest()));
+        return header;
+    }
+
+    /**
+     * Read header elements of &lt;alter&gt;, up to the first check or statement.
+     */
+    private static void readHeader(XMLStreamReader reader, Alter header) throws XMLStreamException {
+        int depth = 0;
+        boolean body = false;
+        while (!body && reader.hasNext()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT && ++depth == 2) {
+                body = !readHeaderElement(reader, header);
+                if (!body) {
+                    //element text has been read including the end tag
+                    depth--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Datafiles declared by the alterscript; only the header is read.
+     */
+    private List<String> readDatafileNames(String fileId, AlterSource source) {
+        final Alter header = new Alter();
+        InputStream inputStream = null;
+        XMLStreamReader reader = null;
+        try {
+            inputStream = createAlterSourceStream(source);
+            reader = XMLInputFactory.newInstance().createXMLStreamReader(inputStream);
+            readHeader(reader, header);
+        } catch (XMLStreamException e) {
+            throw new ApplyAlterException("Unable to parse Alter from file " + fileId, e);
+        } catch (IOException e) {
+            throw new ApplyAlterException("I/O exception reading " + fileId, e);
+        } finally {
+            closeQuietly(reader);
+            IOUtils.closeQuietly(inputStream);
+        }
+        return header.datafile == null ? Collections.<String>emptyList() : header.datafile;
+    }
+
+    /**
+     * Read one child element of &lt;alter&gt; into the header.
+     *
+     * @return true if it was header element; false when the first check or statement is reached
+     */
+    private static boolean readHeaderElement(XMLStreamReader reader, Alter header)
+            throws XMLStreamException {
+        final String name = reader.getLocalName();
+        if ("engine".equals(name)) {
+            header.engine = reader.getElementText().trim();
+        } else if ("schema".equals(name)) {
+            header.schema = reader.getElementText().trim();
+        } else if ("instance".equals(name)) {
+            header.instance.add(reader.getElementText().trim());
+        } else if ("environment".equals(name)) {
+            if (header.environment == null) {
+                header.environment = new HashSet<String>();
+            }
+            header.environment.add(reader.getElementText().trim());
+        } else if ("synchronization".equals(name)) {
+            header.synchronization = Boolean.parseBoolean(reader.getElementText().trim());
+        } else if ("lock-timeout".equals(name)) {
+            header.lockTimeout = Integer.valueOf(reader.getElementText().trim());
+        } else if ("statement-timeout".equals(name)) {
+            header.statementTimeout = Integer.valueOf(reader.getElementText().trim());
+        } else if ("lock-retries".equals(name)) {
+            header.lockRetries = Integer.valueOf(reader.getElementText().trim());
+        } else if ("depends-on".equals(name)) {
+            if (header.dependsOn == null) {
+                header.dependsOn = new ArrayList<String>();
+            }
+            header.dependsOn.add(reader.getElementText().trim());
+        } else if ("datafile".equals(name)) {
+            if (header.datafile == null) {
+                header.datafile = new ArrayList<String>();
+            }
+            header.datafile.add(reader.getElementText().trim());
+        } else if ("isolation".equals(name) || "checkok".equals(name)) {
+            //not needed for the header
+            reader.getElementText();
+        } else if ("schemas".equals(name)) {
+            //only the presence matters: every schema has its own applyalter_log record
+            header.schemas = new Schemas();
+            for (int depth = 1; depth > 0; ) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+        } else if ("check".equals(name)) {
+            //checks are empty elements, but datafiles come after them
+            while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+                //skip
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static void closeQuietly(@Nullable XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                //ignore
+            }
+        }
+    }
+
     private InputStream createAlterSourceStream(final AlterSource source) throws IOException {
         return placeHolderMap.isEmpty() ? source.openScript() : new ReplacingInputStream(source.openScript(), placeHolderMap);
     }
@@ -201,7 +472,7 @@ public class AlterLoader {
      *
      * @return hash digest
      */
-    private MessageDigest initHashDigest() {
+    static MessageDigest initHashDigest() {
         try {
             return MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException e) {
@@ -214,28 +485,124 @@ public class AlterLoader {
      *
      * @param file         XML serialized Alter
      * @param sourceDigest
-     * @return new Alter instance
+     * @param sink         receiver of new Alter instances
      * @throws ch.ips.g2.applyalter.ApplyAlterException if file can not be found
      */
-    private Collection<? extends Alter> loadFile(File file, boolean zip, MessageDigest sourceDigest) {
+    private void loadFile(File file, boolean zip, MessageDigest sourceDigest, AlterSink sink) {
         if (!file.exists())
             throw new ApplyAlterException("file does not exist: " + file);
 
         if (zip) {
-            return loadZip(file, sourceDigest);
+            loadZip(file, sourceDigest, sink);
         } else {
             final AlterSource source = new FileSource(file);
-            return Collections.singletonList(parseScriptFile(file.toString(), source, sourceDigest));
+            sink.add(parseScriptFile(file.toString(), source, sourceDigest));
         }
 
     }
 
-    private Collection<? extends Alter> loadUrl(URL url, boolean zip, MessageDigest sourceDigest) {
-        if (zip) {
-            return loadZip(url, sourceDigest);
+    /**
+     * Load all alterscripts from directory, see {@link AlterDirectory}.
+     */
+    private void loadDirectory(File dir, MessageDigest sourceDigest, AlterSink sink) {
+        final AlterDirectory directory = AlterDirectory.walk(dir);
+        directory.digest(sourceDigest, directoryIndex);
+        if (directoryIndex != null) {
+            directoryIndex.save();
+        }
+        for (File file : directory.getAlterscripts()) {
+            //note: sourceDigest already contains all files of the directory
+            sink.add(parseScriptFile(file.toString(), new FileSource(file), null));
+        }
+    }
+
+    /**
+     * Load alterscripts from git repository. Source hash is computed from relative paths and blob ids of all files
+     * (like {@link AlterDirectory}, with git hashes). With {@link #gitState}, only alterscripts affected by files
+     * changed since the last applied commit are loaded.
+     */
+    private void loadGit(GitSource git, MessageDigest sourceDigest, AlterSink sink) {
+        try {
+            final String commit = git.resolveCommit();
+            final Map<String, String> files = git.listFiles(commit);
+            final Map<String, String> relative = new TreeMap<String, String>();
+            for (String i : files.keySet()) {
+                relative.put(git.getRelativePath(i), i);
+            }
+            for (Map.Entry<String, String> e : relative.entrySet()) {
+                sourceDigest.update(e.getKey().getBytes("UTF-8"));
+                sourceDigest.update((byte) 0);
+                sourceDigest.update(files.get(e.getValue()).getBytes("UTF-8"));
+            }
+
+            Set<String> changed = null;
+            if (gitState != null) {
+                final String previous = gitState.getAppliedCommit(git.getStateKey());
+                if (previous != null) {
+                    changed = git.getChangedFiles(previous, commit);
+                }
+                gitState.setLoadedCommit(git.getStateKey(), commit);
+            }
+            //datafiles are declared in headers, they are read only when some datafile could have changed
+            boolean datafileChanged = false;
+            if (changed != null) {
+                for (String i : changed) {
+                    datafileChanged |= !i.endsWith(ApplyAlter.XML_SUFFIX);
+                }
+            }
+            for (String fullPath : relative.values()) {
+                if (!fullPath.endsWith(ApplyAlter.XML_SUFFIX)) {
+                    continue;
+                }
+                final AlterSource source = git.createSource(fullPath, files);
+                if (changed == null || changed.contains(fullPath) || datafileChanged
+                        && isAffected(fullPath, readDatafileNames(fullPath, source), changed)) {
+                    sink.add(parseScriptFile(fullPath, source, null));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            git.close();
+        }
+    }
+
+    /**
+     * Is the alterscript affected by changed files: some of its datafiles (relative to the alterscript) changed.
+     *
+     * @param scriptPath full path of alterscript
+     * @param datafiles  datafiles declared by the alterscript
+     * @param changed    full paths of changed files
+     */
+    static boolean isAffected(String scriptPath, List<String> datafiles, Set<String> changed) {
+        for (String i : datafiles) {
+            final String path = GitSource.resolve(scriptPath, i);
+            if (path != null && changed.contains(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void loadUrl(URL url, boolean zip, @Nullable UrlCache cache, MessageDigest sourceDigest,
+                         AlterSink sink) {
+        if (cache == null || !UrlCache.isCacheable(url)) {
+            if (zip) {
+                loadZip(url, sourceDigest, sink);
+            } else {
+                sink.add(parseScriptFile(url.toString(), new UrlSource(url), sourceDigest));
+            }
+        } else if (zip) {
+            //the archive is read several times: from the local copy
+            final File file;
+            try {
+                file = cache.fetch(url);
+            } catch (IOException e) {
+                throw new ApplyAlterException("Error reading zip file " + url, e);
+            }
+            loadZip(file, sourceDigest, sink);
         } else {
-            final AlterSource source = new UrlSource(url);
-            return Collections.singletonList(parseScriptFile(url.toString(), source, sourceDigest));
+            sink.add(parseScriptFile(url.toString(), new CachedUrlSource(url, cache), sourceDigest));
         }
     }
 
@@ -250,8 +617,18 @@ public class AlterLoader {
      * @throws ch.ips.g2.applyalter.ApplyAlterException if error occurs during zip file processing
      */
     protected List<Alter> loadZip(File zipfile, MessageDigest sourceDigest) {
+        final List<Alter> a = new ArrayList<Alter>();
+        loadZip(zipfile, sourceDigest, new AlterSink() {
+            public void add(Alter alter) {
+                a.add(alter);
+            }
+        });
+        return a;
+    }
+
+    private void loadZip(File zipfile, MessageDigest sourceDigest, AlterSink sink) {
         try {
-            return loadZip(zipfile.toURI().toURL(), sourceDigest);
+            loadZip(zipfile.toURI().toURL(), sourceDigest, sink);
         } catch (IOException e) {
             throw new ApplyAlterException("Error reading zip file " + zipfile, e);
         }
@@ -268,6 +645,16 @@ public class AlterLoader {
      * @throws ch.ips.g2.applyalter.ApplyAlterException if error occurs during zip file processing
      */
     protected List<Alter> loadZip(URL zipfile, @Nonnull MessageDigest sourceDigest) {
+        final List<Alter> a = new ArrayList<Alter>();
+        loadZip(zipfile, sourceDigest, new AlterSink() {
+            public void add(Alter alter) {
+                a.add(alter);
+            }
+        });
+        return a;
+    }
+
+    private void loadZip(URL zipfile, @Nonnull MessageDigest sourceDigest, AlterSink sink) {
         final List<String> alterNames;
         try {
             InputStream inputStream = zipfile.openStream();
@@ -292,21 +679,37 @@ public class AlterLoader {
             throw new ApplyAlterException("Error computing digest of " + zipfile, e);
         }
 
-        List<Alter> a = new ArrayList<Alter>(alterNames.size());
         Collections.sort(alterNames);
 
         for (String alterName : alterNames) {
             AlterSource source = new JarUrlSource(zipfile, alterName);
             //note: this.sourceDigest already contains whole zip, do NOT update it with alterscript content!
-            Alter alterscript = parseScriptFile(alterName, source, null);
-            a.add(alterscript);
+            sink.add(parseScriptFile(alterName, source, null));
         }
-
-        return a;
     }
 
     //-----------------------------------------------------------------------------------------------------------------
 
+    /**
+     * Receiver of loaded alterscripts.
+     */
+    public interface AlterSink {
+        void add(Alter alter);
+    }
+
+    /**
+     * Applied state of alterscripts, used to skip full parsing of those which will be skipped anyway.
+     */
+    public interface AppliedState {
+        /**
+         * Has the alterscript been applied (with the same hash) to all database instances it is targeted to?
+         *
+         * @param header alterscript with only id, hash and header elements loaded
+         * @return true if the alterscript is not going to be executed, so it does not need to be fully parsed
+         */
+        boolean isApplied(Alter header);
+    }
+
     /**
      * Generic alterscript source: either files on fielsystem or files in archive.
      * All alterscripts must be able to be loaded several times!
@@ -378,6 +781,29 @@ public class AlterLoader {
         }
     }
 
+    /**
+     * Alterscript loaded from HTTP(S) url through {@link UrlCache}, data files are in the same directory.
+     */
+    static class CachedUrlSource implements AlterSource {
+        private final URL url;
+        private final UrlCache cache;
+
+        CachedUrlSource(URL url, UrlCache cache) {
+            this.url = url;
+            this.cache = cache;
+        }
+
+        public InputStream openScript()
+                throws IOException {
+            return new FileInputStream(cache.fetch(url));
+        }
+
+        public InputStream openDataFile(String filename)
+                throws IOException {
+            return new FileInputStream(cache.fetch(new URL(url, filename)));
+        }
+    }
+
     /**
      * Alterscript loaded from inside of JAR (which is referenced by URL).
      */
@@ -409,7 +835,7 @@ public class AlterLoader {
          * @return final URL
          */
         private URL makeURL(URI entryPath) throws MalformedURLException {
-            assert entryPath.isAbsolute();
+            assert entryPath.getPath().startsWith("/");
             return new URL("jar:" + jarUrl + "!" + entryPath);
         }
 
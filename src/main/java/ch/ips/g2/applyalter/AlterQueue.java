@@ -0,0 +1,130 @@
+package ch.ips.g2.applyalter;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded queue of alterscripts for the streaming mode: alterscripts are loaded by one thread
+ * (see {@link #load(AlterLoader, String...)}) and consumed by another one via the iterator interface.
+ * Producer blocks when the queue is full, so only few alterscripts are held in memory at once.
+ * <p/>
+ * When loading fails, the exception is thrown by the consumer (after all alterscripts loaded before it); errors
+ * (e.g. {@link OutOfMemoryError}) are wrapped into {@link ApplyAlterException}, so the consumer never waits forever.
+ */
+class AlterQueue implements Iterator<Alter>, AlterLoader.AlterSink {
+    /**
+     * End of the queue: all alterscripts have been loaded.
+     */
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue;
+    /**
+     * Source hash, set by producer just before {@link #END} is put into the queue.
+     */
+    private volatile String sourceHash;
+
+    //consumer state
+    private Object next;
+    private boolean done;
+    private RuntimeException failure;
+    private int count;
+
+    AlterQueue(int capacity) {
+        this.queue = new ArrayBlockingQueue<Object>(capacity);
+    }
+
+    /**
+     * Producer: load alterscripts into this queue. Returns when all of them are loaded, when loading fails
+     * or when the thread is interrupted.
+     */
+    void load(AlterLoader loader, String... filenames) {
+        Object last;
+        try {
+            sourceHash = loader.loadAlters(this, filenames);
+            last = END;
+        } catch (LoadingCancelled e) {
+            return;
+        } catch (RuntimeException e) {
+            last = e;
+        } catch (Throwable e) {
+            last = new ApplyAlterException("Loading of alterscripts failed: " + e, e);
+        }
+        try {
+            queue.put(last);
+        } catch (InterruptedException e) {
+            //consumer has finished
+        }
+    }
+
+    /**
+     * Producer: add loaded alterscript (blocks when the queue is full).
+     */
+    public void add(Alter alter) {
+        try {
+            queue.put(alter);
+        } catch (InterruptedException e) {
+            throw new LoadingCancelled();
+        }
+    }
+
+    public boolean hasNext() {
+        if (failure != null) {
+            throw failure;
+        }
+        if (next == null && !done) {
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ApplyAlterException("Interrupted while waiting for alterscripts", e);
+            }
+            if (next == END) {
+                next = null;
+                done = true;
+            } else if (next instanceof RuntimeException) {
+                failure = (RuntimeException) next;
+                next = null;
+                done = true;
+                throw failure;
+            }
+        }
+        return next != null;
+    }
+
+    public Alter next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final Alter alter = (Alter) next;
+        next = null;
+        count++;
+        return alter;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Source hash of all loaded files; available when the iterator is exhausted.
+     */
+    public String getSourceHash() {
+        return sourceHash;
+    }
+
+    /**
+     * Number of alterscripts taken from the queue.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Loading cancelled by interrupting the producer.
+     */
+    @SuppressWarnings("serial")
+    private static class LoadingCancelled extends RuntimeException {
+    }
+}
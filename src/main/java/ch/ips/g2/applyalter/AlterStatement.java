@@ -48,6 +48,14 @@ public interface AlterStatement {
     void execute(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles)
             throws SQLException, ApplyAlterException;
 
+    /**
+     * Does the statement commit the transaction by itself (migrations, CSV import with step)?
+     * Such statements cannot be grouped with other alterscripts into single transaction.
+     *
+     * @return true if the statement might commit
+     */
+    boolean isSelfCommitting();
+
 
     /**
      * SQL states that can be safely ignored.
@@ -62,4 +70,18 @@ public interface AlterStatement {
      * @return set of ignored codes, might be null!
      */
     Set<Integer> getIgnoredSqlCodes();
+
+    /**
+     * Lock timeout for this statement, overrides the alterscript setting.
+     *
+     * @return milliseconds, null = use alterscript setting
+     */
+    Integer getLockTimeout();
+
+    /**
+     * Statement timeout for this statement, overrides the alterscript setting.
+     *
+     * @return milliseconds, null = use alterscript setting
+     */
+    Integer getStatementTimeout();
 }
@@ -0,0 +1,286 @@
+package ch.ips.g2.applyalter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static ch.ips.g2.applyalter.ReportLevel.*;
+
+/**
+ * Watch mode for development, see {@link ApplyAlter#WATCH}: alterscripts are applied, then their directories
+ * (and directories of their datafiles) are watched and every changed alterscript (or alterscript with changed
+ * datafile) is parsed and applied again, with the usual incremental mode semantics. New alterscripts are picked up
+ * only in directories given as arguments, by the same rules as {@link AlterDirectory}. Unchanged alterscripts stay
+ * parsed and connections stay open.
+ * Not thread safe: runs in the calling thread until interrupted.
+ */
+class AlterWatcher {
+    /**
+     * Editors usually write a file in several steps: events are collected until there is a pause this long (ms).
+     */
+    private static final long QUIET_PERIOD = 50;
+
+    private final ApplyAlter applyAlter;
+    private final RunContext runContext;
+    private final AlterLoader loader;
+    /**
+     * Watched sources (.xml and .zip files) with their alterscripts, in order of application.
+     */
+    private final Map<File, List<Alter>> sources = new LinkedHashMap<File, List<Alter>>();
+    /**
+     * Datafile to the sources using it.
+     */
+    private final Map<File, Set<File>> datafiles = new HashMap<File, Set<File>>();
+    /**
+     * Directories given as arguments: new alterscripts are accepted only there.
+     */
+    private final List<File> roots = new ArrayList<File>();
+
+    /**
+     * @param applyAlter configured instance, it keeps the connections
+     * @param runContext run context for reporting
+     * @param alterFiles alterscripts (.xml/.zip files and directories, not URLs)
+     * @throws ApplyAlterException unsupported file
+     */
+    public AlterWatcher(ApplyAlter applyAlter, RunContext runContext, String... alterFiles) throws ApplyAlterException {
+        this.applyAlter = applyAlter;
+        this.runContext = runContext;
+        this.loader = applyAlter.createLoader();
+        for (String i : alterFiles) {
+            if (i.contains("://") || GitSource.isGitSpec(i)) {
+                throw new ApplyAlterException("--%s supports only local files: %s", ApplyAlter.WATCH, i);
+            }
+            final File f = new File(i).getAbsoluteFile();
+            if (f.isDirectory()) {
+                roots.add(f);
+                //every alterscript of directory is watched separately
+                for (File script : AlterDirectory.walk(f).getAlterscripts()) {
+                    sources.put(script, Collections.<Alter>emptyList());
+                }
+            } else {
+                sources.put(f, Collections.<Alter>emptyList());
+            }
+        }
+    }
+
+    /**
+     * Apply all alterscripts, then watch for changes until interrupted.
+     *
+     * @throws ApplyAlterException initial alterscripts cannot be loaded, or watch service fails
+     */
+    public void run() throws ApplyAlterException {
+        applyAll();
+
+        final WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            throw new ApplyAlterException("Unable to watch alterscripts", e);
+        }
+        try {
+            final Map<WatchKey, File> directories = new HashMap<WatchKey, File>();
+            register(watcher, directories);
+            runContext.report(MAIN, "watching %d directories, interrupt to stop", directories.size());
+            while (!Thread.currentThread().isInterrupted()) {
+                final Set<File> changed = new LinkedHashSet<File>();
+                WatchKey key = watcher.take();
+                while (key != null) {
+                    collect(key, directories.get(key), changed);
+                    key = watcher.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+                }
+                apply(reload(changed));
+                //reloaded alterscripts may use datafiles elsewhere
+                register(watcher, directories);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            //stopped
+        } catch (IOException e) {
+            throw new ApplyAlterException("Unable to watch alterscripts", e);
+        } finally {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+    }
+
+    /**
+     * Load and apply all alterscripts.
+     *
+     * @throws ApplyAlterException alterscripts cannot be loaded
+     */
+    void applyAll() throws ApplyAlterException {
+        final List<Alter> all = new ArrayList<Alter>();
+        for (File f : new ArrayList<File>(sources.keySet())) {
+            all.addAll(load(f));
+        }
+        apply(all);
+    }
+
+    /**
+     * Register directories of all sources and datafiles which are not watched yet.
+     */
+    private void register(WatchService watcher, Map<WatchKey, File> directories) throws IOException {
+        final Set<File> dirs = new LinkedHashSet<File>(roots);
+        for (File f : sources.keySet()) {
+            dirs.add(f.getParentFile());
+        }
+        for (File f : datafiles.keySet()) {
+            dirs.add(f.getParentFile());
+        }
+        for (File dir : dirs) {
+            if (!directories.containsValue(dir) && dir.isDirectory()) {
+                directories.put(dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+            }
+        }
+    }
+
+    private void collect(WatchKey key, File dir, Set<File> changed) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                //events lost: check everything in the directory
+                for (File f : sources.keySet()) {
+                    if (dir.equals(f.getParentFile())) {
+                        changed.add(f);
+                    }
+                }
+            } else {
+                changed.add(new File(dir, ((Path) event.context()).toString()));
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * Reload changed sources and find the alterscripts to apply.
+     *
+     * @param changed changed files (sources, datafiles, new files)
+     * @return new and changed alterscripts, in order of application
+     */
+    List<Alter> reload(Set<File> changed) {
+        final Set<File> reload = new LinkedHashSet<File>();
+        for (File f : changed) {
+            if (sources.containsKey(f) || isNewAlterscript(f)) {
+                reload.add(f);
+            }
+            final Set<File> users = datafiles.get(f);
+            if (users != null) {
+                reload.addAll(users);
+            }
+        }
+        final List<Alter> result = new ArrayList<Alter>();
+        for (Map.Entry<File, List<Alter>> e : new ArrayList<Map.Entry<File, List<Alter>>>(sources.entrySet())) {
+            if (reload.remove(e.getKey())) {
+                result.addAll(reloadSource(e.getKey(), e.getValue()));
+            }
+        }
+        //new alterscripts
+        for (File f : reload) {
+            if (f.isFile()) {
+                sources.put(f, Collections.<Alter>emptyList());
+                result.addAll(reloadSource(f, Collections.<Alter>emptyList()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * New file is an alterscript if {@link AlterDirectory} would list it for some directory argument: .xml file
+     * which is not hidden (nor in hidden subdirectory). Known datafiles are never alterscripts.
+     */
+    private boolean isNewAlterscript(File f) {
+        if (!f.getName().endsWith(ApplyAlter.XML_SUFFIX) || datafiles.containsKey(f)) {
+            return false;
+        }
+        for (File root : roots) {
+            boolean hidden = false;
+            File i = f;
+            while (i != null && !i.equals(root)) {
+                hidden |= i.getName().startsWith(".");
+                i = i.getParentFile();
+            }
+            if (i != null && !hidden) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Alter> reloadSource(File f, List<Alter> previous) {
+        if (!f.exists()) {
+            runContext.report(MAIN, "%s removed", f.getName());
+            return Collections.emptyList();
+        }
+        final List<Alter> loaded;
+        try {
+            loaded = load(f);
+        } catch (ApplyAlterException e) {
+            runContext.report(ERROR, "%s cannot be loaded: %s", f.getName(), e.getMessage());
+            return Collections.emptyList();
+        }
+        final Set<String> unchanged = new LinkedHashSet<String>();
+        for (Alter a : previous) {
+            unchanged.add(a.getId() + ":" + a.getHash());
+        }
+        final List<Alter> result = new ArrayList<Alter>();
+        for (Alter a : loaded) {
+            if (!unchanged.contains(a.getId() + ":" + a.getHash())) {
+                result.add(a);
+            }
+        }
+        return result;
+    }
+
+    private List<Alter> load(File f) {
+        final List<Alter> loaded = loader.loadAlters(f.getPath()).getAlters();
+        sources.put(f, loaded);
+        for (Alter a : loaded) {
+            if (a.datafile != null && f.getName().endsWith(ApplyAlter.XML_SUFFIX)) {
+                for (String i : a.datafile) {
+                    //normalized: events come for the real directory, not for "../data"
+                    final File datafile = new File(f.getParentFile(), i).toPath().normalize().toFile();
+                    Set<File> users = datafiles.get(datafile);
+                    if (users == null) {
+                        users = new LinkedHashSet<File>();
+                        datafiles.put(datafile, users);
+                    }
+                    users.add(f);
+                }
+            }
+        }
+        return loaded;
+    }
+
+    void apply(List<Alter> alters) {
+        if (alters.isEmpty()) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        try {
+            applyAlter.applyKeepingConnections(alters);
+            runContext.report(MAIN, "%d alterscripts processed in %d ms", alters.size(),
+                    System.currentTimeMillis() - start);
+        } catch (ApplyAlterException e) {
+            runContext.report(ERROR, "execution failed: %s", e.getMessage());
+        }
+    }
+}
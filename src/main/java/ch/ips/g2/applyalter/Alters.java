@@ -12,10 +12,19 @@ public class Alters {
     final List<Alter> alters;
     @Nullable
     final String sourceHash;
+    final int count;
 
     Alters(@Nonnull List<Alter> alters, @Nullable String sourceHash) {
+        this(alters, sourceHash, alters.size());
+    }
+
+    /**
+     * Alterscripts which are not held in memory (streaming mode): only their count is known.
+     */
+    Alters(@Nonnull List<Alter> alters, @Nullable String sourceHash, int count) {
         this.alters = alters;
         this.sourceHash = sourceHash;
+        this.count = count;
     }
 
     @Nonnull
@@ -23,6 +32,13 @@ public class Alters {
         return alters;
     }
 
+    /**
+     * Number of loaded alterscripts; in streaming mode, {@link #getAlters()} is empty.
+     */
+    public int getCount() {
+        return count;
+    }
+
     /**
      * Source hash: when not present, these alterscripts are internal.
      */
@@ -2,8 +2,11 @@ package ch.ips.g2.applyalter;
 
 import ch.ips.g2.applyalter.logreport.ReportedResult;
 import ch.ips.g2.applyalter.logreport.StructuredLog;
+import com.google.common.base.Function;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.PeekingIterator;
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.XStreamException;
 import org.apache.commons.cli.BasicParser;
@@ -22,6 +25,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.sql.Connection;
@@ -29,11 +34,14 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
+import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -41,7 +49,16 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
@@ -119,6 +136,101 @@ public class ApplyAlter {
      * Query the APPLYALTER_PKG table: limit to specified hash (instead of the alterscripts one).
      */
     public static final String QUERY_PKG_HASH = "query-pkg-hash";
+    /**
+     * Answer checks from catalog snapshot.
+     */
+    public static final String CATALOG_SNAPSHOT = "catalog-snapshot";
+    /**
+     * Skip database instances which already have the source hash in APPLYALTER_PKG table.
+     */
+    public static final String SKIP_APPLIED_PKG = "skip-applied-pkg";
+    /**
+     * Fully parse only alterscripts which are not applied yet (incremental mode).
+     */
+    public static final String LAZY_PARSE = "lazy-parse";
+    /**
+     * Group commit: maximum number of alterscripts in one transaction.
+     */
+    public static final String GROUP_COMMIT = "group-commit";
+    /**
+     * Send consecutive plain SQL statements in one batch.
+     */
+    public static final String BATCH_SQL = "batch-sql";
+    /**
+     * Connection timeout (seconds).
+     */
+    public static final String CONNECT_TIMEOUT = "connect-timeout";
+    /**
+     * Connect to all database instances before loading alterscripts.
+     */
+    public static final String CONNECT_ALL = "connect-all";
+    /**
+     * Apply alterscripts while they are being loaded.
+     */
+    public static final String STREAMING = "streaming";
+    /**
+     * Streaming mode: maximum number of loaded alterscripts waiting for execution.
+     */
+    protected static final int STREAMING_QUEUE_SIZE = 32;
+    /**
+     * Group commit: maximum duration of one transaction (milliseconds).
+     */
+    public static final String GROUP_COMMIT_TIME = "group-commit-time";
+    /**
+     * Execute alterscripts with declared dependencies concurrently, at most N at a time.
+     */
+    public static final String PARALLEL_ALTERS = "parallel-alters";
+    /**
+     * Fleet mode: apply alterscripts to many database configurations (comma separated files and directories),
+     * see {@link FleetRunner}.
+     */
+    public static final String FLEET = "fleet";
+    /**
+     * Fleet mode: number of database configurations applied concurrently.
+     */
+    public static final String FLEET_PARALLEL = "fleet-parallel";
+    /**
+     * Rollout in waves of database instances: comma separated wave sizes (count or percentage), see
+     * {@link RolloutPlan}. The first wave is applied sequentially, the following ones concurrently.
+     */
+    public static final String ROLLOUT_WAVES = "rollout-waves";
+    /**
+     * Rollout: stop before the next wave when some alterscript took longer (milliseconds).
+     */
+    public static final String ROLLOUT_THRESHOLD = "rollout-threshold";
+    /**
+     * Daemon mode: listen on local TCP port, see {@link ApplyAlterDaemon}.
+     */
+    public static final String DAEMON = "daemon";
+    /**
+     * Client of daemon: send the invocation to local TCP port.
+     */
+    public static final String CLIENT = "client";
+    /**
+     * Watch mode: apply alterscripts and then keep applying new and changed ones, see {@link AlterWatcher}.
+     */
+    public static final String WATCH = "watch";
+    /**
+     * Index file of hashes of files in directories of alterscripts, see {@link DirectoryIndex}.
+     */
+    public static final String DIR_INDEX = "dir-index";
+    /**
+     * State file of git sources: only alterscripts changed since the commit applied by the last successful run
+     * are loaded, see {@link GitState}.
+     */
+    public static final String GIT_STATE = "git-state";
+    /**
+     * Directory of local cache of alterscripts loaded over HTTP(S), see {@link UrlCache}.
+     */
+    public static final String URL_CACHE = "url-cache";
+    /**
+     * Lock failure retry: delay before the first retry (milliseconds); doubled for every next retry.
+     */
+    protected static final long LOCK_RETRY_DELAY = 500;
+    /**
+     * Lock failure retry: maximum delay before retry (milliseconds).
+     */
+    protected static final long LOCK_RETRY_MAX_DELAY = 30000;
 
 
     /**
@@ -132,10 +244,21 @@ public class ApplyAlter {
 
     private static final String[] INTERNAL_SCRIPTS = {
             "applyalter_log_db2.xml", "applyalter_log_pgsql.xml", "applyalter_log_mysql.xml",
+            "applyalter_log_oracle.xml",
             "applyalter_hash_db2.xml", "applyalter_hash_pgsql.xml",
             "applyalter_idindex_db2.xml", "applyalter_idindex_pgsql.xml",
             "applyalter_pkg_db2.xml", "applyalter_pkg_pgsql.xml", "applyalter_pkg_mysql.xml",
+            "applyalter_pkg_oracle.xml",
+            "applyalter_meta_db2.xml", "applyalter_meta_pgsql.xml", "applyalter_meta_mysql.xml",
+            "applyalter_meta_oracle.xml",
+            "applyalter_schema_db2.xml", "applyalter_schema_pgsql.xml", "applyalter_schema_mysql.xml",
+            "applyalter_schema_oracle.xml",
     };
+    /**
+     * Version of the internal schema created by {@link #INTERNAL_SCRIPTS}, stored in APPLYALTER_META table.
+     * Must be changed whenever internal scripts are changed!
+     */
+    protected static final String INTERNAL_SCHEMA_VERSION = "4";
 
     /**
      * XML validator
@@ -153,12 +276,57 @@ public class ApplyAlter {
     @Nullable
     private PkgLogTableHandler pkgLogTable;
 
-    protected XStream xstream = new XStream();
+    protected XStream xstream = getSharedXStream();
     protected String username;
     protected Multimap<String, String> unapplied = ArrayListMultimap.create();
     private boolean logTableUsed;
     private String environment;
     private boolean unknownInstancesIgnored = false;
+    private boolean catalogSnapshotUsed = false;
+    private boolean appliedPkgSkipped = false;
+    private boolean lazyParse = false;
+    private int groupCommitSize = 0;
+    private boolean sqlBatched = false;
+    private boolean streaming = false;
+    private boolean connectAll = false;
+    private int connectTimeout = 0;
+    /**
+     * Database instances already checked by {@link #applyInternal(Collection)}.
+     */
+    private final Set<DbInstance> internalApplied = new HashSet<DbInstance>();
+    private long groupCommitTime = 0;
+    private int parallelAlters = 0;
+    @Nullable
+    private String rolloutWaves;
+    private long rolloutThreshold = 0;
+    @Nullable
+    private DirectoryIndex directoryIndex;
+    @Nullable
+    private GitState gitState;
+    @Nullable
+    private UrlCache urlCache;
+    /**
+     * Maximum duration of every alterscript applied since the last {@link Map#clear()}, by id (for rollout).
+     */
+    private final Map<String, Long> alterDurations = new HashMap<String, Long>();
+    private static XStream sharedXStream;
+    /**
+     * Parsed {@link #INTERNAL_SCRIPTS}, shared by all instances (they do not change).
+     */
+    private static List<Alter> internalAlters;
+    /**
+     * Cache of loaded alterscripts shared by invocations of the daemon; null = no cache.
+     */
+    @Nullable
+    private AlterCache alterCache;
+    /**
+     * Ids of alterscripts already processed by {@link #applyAlters}.
+     */
+    private final Set<String> processedAlterIds = new HashSet<String>();
+    /**
+     * Database instances (ids) where the current source bundle has already been applied.
+     */
+    private Set<String> appliedPkgInstances = Collections.emptySet();
 
 
     protected RunMode getRunMode() {
@@ -177,6 +345,191 @@ public class ApplyAlter {
         return unknownInstancesIgnored;
     }
 
+    /**
+     * Are checks answered from {@link CatalogSnapshot} (loaded once per instance and schema)?
+     */
+    public boolean isCatalogSnapshotUsed() {
+        return catalogSnapshotUsed;
+    }
+
+    public void setCatalogSnapshotUsed(boolean catalogSnapshotUsed) {
+        this.catalogSnapshotUsed = catalogSnapshotUsed;
+    }
+
+    /**
+     * Are database instances with the source hash recorded in APPLYALTER_PKG skipped (in incremental mode)?
+     */
+    public boolean isAppliedPkgSkipped() {
+        return appliedPkgSkipped;
+    }
+
+    public void setAppliedPkgSkipped(boolean appliedPkgSkipped) {
+        this.appliedPkgSkipped = appliedPkgSkipped;
+    }
+
+    /**
+     * Are alterscripts fully parsed only when they have not been applied yet (in incremental mode)?
+     */
+    public boolean isLazyParse() {
+        return lazyParse;
+    }
+
+    public void setLazyParse(boolean lazyParse) {
+        this.lazyParse = lazyParse;
+    }
+
+    /**
+     * Maximum number of alterscripts committed together; 0 or 1 disables group commit.
+     */
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    public void setGroupCommitSize(int groupCommitSize) {
+        this.groupCommitSize = groupCommitSize;
+    }
+
+    /**
+     * Maximum number of alterscripts executed concurrently; 0 or 1 disables concurrent execution.
+     */
+    public int getParallelAlters() {
+        return parallelAlters;
+    }
+
+    public void setParallelAlters(int parallelAlters) {
+        this.parallelAlters = parallelAlters;
+    }
+
+    /**
+     * Rollout waves, see {@link #ROLLOUT_WAVES}; null = all database instances at once.
+     */
+    @Nullable
+    public String getRolloutWaves() {
+        return rolloutWaves;
+    }
+
+    public void setRolloutWaves(@Nullable String rolloutWaves) {
+        this.rolloutWaves = rolloutWaves;
+    }
+
+    /**
+     * Rollout: maximum duration of alterscript (milliseconds) allowing the next wave; 0 = no limit.
+     */
+    public long getRolloutThreshold() {
+        return rolloutThreshold;
+    }
+
+    public void setRolloutThreshold(long rolloutThreshold) {
+        this.rolloutThreshold = rolloutThreshold;
+    }
+
+    /**
+     * Use index file of hashes for directories of alterscripts: unchanged files are not read to compute
+     * the source hash.
+     *
+     * @param indexFile index file; null = no index
+     */
+    public void setDirectoryIndex(@Nullable String indexFile) {
+        this.directoryIndex = indexFile == null ? null : new DirectoryIndex(new File(indexFile));
+    }
+
+    /**
+     * Load only alterscripts changed since the last successful run from git sources; commits are recorded
+     * in the state file (in {@link RunMode#SHARP} mode only), separately for every database configuration.
+     *
+     * @param stateFile state file; null = always load all alterscripts
+     */
+    public void setGitState(@Nullable String stateFile) {
+        this.gitState = stateFile == null ? null : new GitState(new File(stateFile), getConfigKey());
+    }
+
+    /**
+     * Identity of database configuration: environment and all instances with their urls.
+     */
+    String getConfigKey() {
+        final Set<String> instances = new TreeSet<String>();
+        for (DbInstance d : db.getEntries()) {
+            instances.add(d.getId() + '=' + d.getUrl());
+        }
+        return getEnvironment() + instances;
+    }
+
+    /**
+     * Keep alterscripts loaded over HTTP(S) in local cache; they are revalidated (ETag, Last-Modified) and
+     * downloaded again only when changed.
+     *
+     * @param cacheDir cache directory; null = downloaded by every loading
+     */
+    public void setUrlCache(@Nullable String cacheDir) {
+        this.urlCache = cacheDir == null ? null : new UrlCache(new File(cacheDir));
+    }
+
+    /**
+     * Record commits of git sources after successful execution, see {@link #setGitState(String)}.
+     */
+    private void saveGitState() {
+        if (gitState != null && getRunMode() == RunMode.SHARP) {
+            gitState.save();
+        }
+    }
+
+    /**
+     * Group commit: no more alterscripts are added to the transaction after this time (milliseconds);
+     * 0 means no limit.
+     */
+    public long getGroupCommitTime() {
+        return groupCommitTime;
+    }
+
+    public void setGroupCommitTime(long groupCommitTime) {
+        this.groupCommitTime = groupCommitTime;
+    }
+
+    /**
+     * Are consecutive plain SQL statements sent in one batch?
+     */
+    public boolean isSqlBatched() {
+        return sqlBatched;
+    }
+
+    public void setSqlBatched(boolean sqlBatched) {
+        this.sqlBatched = sqlBatched;
+    }
+
+    /**
+     * Are alterscripts applied while they are being loaded (by another thread)?
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Are all database instances connected (and verified) before alterscripts are loaded?
+     * By default, only instances targeted by some alterscript are connected.
+     */
+    public boolean isConnectAll() {
+        return connectAll;
+    }
+
+    public void setConnectAll(boolean connectAll) {
+        this.connectAll = connectAll;
+    }
+
+    /**
+     * Connection timeout in seconds; 0 means driver default.
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
     public void setLogTableUsed(boolean logTableUsed) {
         this.logTableUsed = logTableUsed;
     }
@@ -202,14 +555,25 @@ public class ApplyAlter {
     @SuppressWarnings("unchecked")
     public ApplyAlter(String config, RunContext runContext, boolean ignorefailures, String username,
                       boolean validateXml, boolean useLogTable, String environment) {
+        this(parseConfiguration(config), runContext, ignorefailures, username, validateXml, useLogTable, environment);
+    }
+
+    /**
+     * Create instance of ApplyAlter from already loaded database configuration.
+     *
+     * @param dcf            database configuration; its instances are used directly (not copied)
+     * @param runContext     execution context, providing methods to output the results and report the processing steps.
+     * @param ignorefailures ignore all failures?
+     * @param username       username used for logging
+     * @param validateXml    should ve validate xml (by xsd)
+     */
+    public ApplyAlter(DbConfigFile dcf, RunContext runContext, boolean ignorefailures, String username,
+                      boolean validateXml, boolean useLogTable, String environment) {
         this.runContext = runContext;
         this.username = username;
         this.setLogTableUsed(useLogTable);
         this.environment = environment;
 
-        xstream.processAnnotations(getXmlClasses());
-
-        DbConfigFile dcf = parseConfiguration(config);
         db = new DbConfig(dcf, ignorefailures, runContext);
 
         if (validateXml) {
@@ -223,7 +587,33 @@ public class ApplyAlter {
         }
     }
 
-    private DbConfigFile parseConfiguration(String config) {
+    /**
+     * Create worker for concurrent execution of alterscripts: it shares the settings, but it has its own
+     * connections to the database instances.
+     *
+     * @param parent    the main instance
+     * @param instances database instances to copy
+     */
+    private ApplyAlter(ApplyAlter parent, List<DbInstance> instances) {
+        this.runContext = parent.runContext;
+        this.username = parent.username;
+        this.environment = parent.environment;
+        this.logTableUsed = parent.logTableUsed;
+        this.unknownInstancesIgnored = parent.unknownInstancesIgnored;
+        this.catalogSnapshotUsed = parent.catalogSnapshotUsed;
+        this.sqlBatched = parent.sqlBatched;
+        this.groupCommitSize = parent.groupCommitSize;
+        this.groupCommitTime = parent.groupCommitTime;
+        this.parallelAlters = parent.parallelAlters;
+        this.appliedPkgInstances = parent.appliedPkgInstances;
+        final List<DbInstance> copies = new ArrayList<DbInstance>(instances.size());
+        for (DbInstance d : instances) {
+            copies.add(d.copyForWorker());
+        }
+        this.db = new DbConfig(copies, parent.db.isIgnorefailures(), runContext);
+    }
+
+    static DbConfigFile parseConfiguration(String config) {
         File dbconfigfile = new File(config);
         if (dbconfigfile.exists()) {
             return loadConfigFile(dbconfigfile);
@@ -232,11 +622,11 @@ public class ApplyAlter {
         throw new ApplyAlterException("File not found " + config);
     }
 
-    private DbConfigFile loadConfigFile(File dbconfigfile) {
+    private static DbConfigFile loadConfigFile(File dbconfigfile) {
         FileInputStream fis = null;
         try {
             fis = new FileInputStream(dbconfigfile);
-            return (DbConfigFile) xstream.fromXML(fis);
+            return (DbConfigFile) getSharedXStream().fromXML(fis);
         } catch (FileNotFoundException e) {
             throw new ApplyAlterException("File not found " + dbconfigfile, e);
         } catch (XStreamException e) {
@@ -268,8 +658,20 @@ public class ApplyAlter {
         runContext.report(MAIN, "environment: %s", this.environment);
     }
 
+    /**
+     * XStream with all annotations processed; it is thread safe once configured, so all instances share it.
+     */
+    static synchronized XStream getSharedXStream() {
+        if (sharedXStream == null) {
+            final XStream x = new XStream();
+            x.processAnnotations(getXmlClasses());
+            sharedXStream = x;
+        }
+        return sharedXStream;
+    }
+
     @SuppressWarnings({"deprecation"})
-    private Class[] getXmlClasses() {
+    private static Class[] getXmlClasses() {
         return new Class[]{
                 DbConfigFile.class,
                 Alter.class,
@@ -278,6 +680,8 @@ public class ApplyAlter {
                 SelectQuery.class,
                 DynamicQuery.class,
                 Comment.class,
+                ParallelBlock.class,
+                Schemas.class,
                 MigrationProc.class,
                 MigrationIdRange.class,
                 MigrationIdList.class,
@@ -291,31 +695,79 @@ public class ApplyAlter {
     }
 
     /**
-     * Apply internal alterscripts.
+     * Apply internal alterscripts to given database instances (only once to each of them). Untargeted instances are
+     * not passed here, so that they are not connected just because of the internal schema.
+     *
+     * @param instances database instances
      */
-    protected void applyInternal() {
+    protected void applyInternal(Collection<DbInstance> instances) {
         if (!isLogTableUsed()) {
             //no internal scripts needed
             return;
         }
+        final List<DbInstance> unchecked = new ArrayList<DbInstance>();
+        for (DbInstance d : instances) {
+            if (internalApplied.add(d)) {
+                unchecked.add(d);
+            }
+        }
+        if (unchecked.isEmpty()) {
+            return;
+        }
 
-        final RunContext backupCtx = this.runContext;
-        AlterLoader alterLoader = new AlterLoader(xstream, validator, createPlaceHolderMap());
+        final List<Alter> internalAlters = getInternalAlters(xstream, validator);
+        final Set<String> engines = new HashSet<String>();
+        for (Alter a : internalAlters) {
+            engines.add(a.engine.toLowerCase());
+        }
 
-        List<Alter> internalAlters = new ArrayList<Alter>(INTERNAL_SCRIPTS.length);
-        for (final String alterName : INTERNAL_SCRIPTS) {
-            internalAlters.add(alterLoader.parseScriptFile(alterName,
-                    new AlterLoader.RelativeToClassAlterSource(getClass(), alterName), null)
-            );
+        //skip instances where the internal schema is up to date, or which have no internal schema at all
+        final MetaTableHandler metaTable = new MetaTableHandler(runContext);
+        final List<DbInstance> outdated = new ArrayList<DbInstance>();
+        for (DbInstance d : unchecked) {
+            if (!engines.contains(d.getEngine().toLowerCase())) {
+                runContext.report(DETAIL, "no internal schema for %s (%s)", d.getId(), d.getEngine());
+            } else if (!INTERNAL_SCHEMA_VERSION.equals(metaTable.getValue(d, MetaTableHandler.INTERNAL_SCHEMA))) {
+                outdated.add(d);
+            }
+        }
+        if (outdated.isEmpty()) {
+            runContext.report(DETAIL, "internal schema version %s is up to date", INTERNAL_SCHEMA_VERSION);
+            return;
         }
 
+        final RunContext backupCtx = this.runContext;
         //nothing should be shown to user
         this.runContext = new InternalRunContext();
-        //run, but don't close the connections!
-        applyWithoutClosing(internalAlters, null);
+        try {
+            //run, but don't close the connections!
+            applyWithoutClosing(internalAlters, null, outdated);
+        } finally {
+            //restore the context
+            this.runContext = backupCtx;
+        }
+
+        for (DbInstance d : outdated) {
+            runContext.report(DETAIL, "internal schema of %s upgraded to version %s", d.getId(), INTERNAL_SCHEMA_VERSION);
+            metaTable.setValue(d, MetaTableHandler.INTERNAL_SCHEMA, INTERNAL_SCHEMA_VERSION);
+        }
+    }
 
-        //restore the context
-        this.runContext = backupCtx;
+    /**
+     * Parse {@link #INTERNAL_SCRIPTS} once; every one of them is for one engine.
+     */
+    private static synchronized List<Alter> getInternalAlters(XStream xstream, @Nullable Validator validator) {
+        if (internalAlters == null) {
+            final AlterLoader alterLoader = new AlterLoader(xstream, validator, Collections.<String, byte[]>emptyMap());
+            final List<Alter> alters = new ArrayList<Alter>(INTERNAL_SCRIPTS.length);
+            for (final String alterName : INTERNAL_SCRIPTS) {
+                alters.add(alterLoader.parseScriptFile(alterName,
+                        new AlterLoader.RelativeToClassAlterSource(ApplyAlter.class, alterName), null)
+                );
+            }
+            internalAlters = Collections.unmodifiableList(alters);
+        }
+        return internalAlters;
     }
 
     @Nonnull
@@ -344,64 +796,381 @@ public class ApplyAlter {
      */
     public Alters apply(boolean validateXml, String... alterFiles)
             throws ApplyAlterException {
-        AlterLoader ldr = new AlterLoader(xstream, validator, createPlaceHolderMap());
-        Alters a = ldr.loadAlters(alterFiles);
-        // actually apply them
-        apply(a.getAlters(), a.getSourceHash());
-        return a;
+        if (isConnectAll()) {
+            //fail fast
+            db.connect(runContext, db.getEntries(), connectTimeout);
+        }
+        AlterLoader ldr = createLoader();
+        if (isLazyParse() && isLogTableUsed() && runContext.isIncremental()) {
+            //applyalter_log is needed to load alterscripts
+            db.connect(runContext, db.getEntries(), connectTimeout);
+            applyInternal(db.getEntries());
+            final LogTableAppliedState appliedState = new LogTableAppliedState();
+            if (isStreaming()) {
+                //loader thread must not touch the connections
+                appliedState.preload();
+            }
+            ldr.setAppliedState(appliedState);
+        }
+        if (isStreaming()) {
+            db.connect(runContext, db.getEntries(), connectTimeout);
+            applyInternal(db.getEntries());
+            return applyStreaming(ldr, alterFiles);
+        }
+        final AlterCache cache = alterCache;
+        if (cache != null) {
+            return apply(cache.load(this, validator, alterFiles));
+        }
+        return apply(ldr.loadAlters(alterFiles));
     }
 
     /**
-     * Check if object exists in database, which means an alter was applied already.
+     * Set cache of loaded alterscripts (daemon mode).
      *
-     * @param d database instance
-     * @param c Connection to database
-     * @param a check object @return true if object exists in database
-     * @throws ApplyAlterException failed to check (database error?)
+     * @param cache cache; null = no cache
      */
-    protected boolean check(DbInstance d, Connection c, Check a, String schema) throws ApplyAlterException {
-        a.check();
-        try {
-            return d.check(runContext, c, a, schema);
-        } catch (SQLException e) {
-            throw new ApplyAlterException("Can not check " + a, e);
-        } catch (UnsupportedOperationException e) {
-            throw new ApplyAlterException("Unsupported check " + a, e);
-        }
+    void setAlterCache(@Nullable AlterCache cache) {
+        alterCache = cache;
     }
 
     /**
-     * Custom check if an alter was applieds already.
+     * Set pool of connections for all database instances (daemon mode).
      *
-     * @param c   Connection to database
-     * @param sql custom SQL statement
-     * @return true if sql is not null and result of sql statement is equal {@link #CHECK_OK} value
-     * @throws ApplyAlterException failed to check (database error?)
+     * @param pool pool; null = connections are really closed
      */
-    protected boolean check(Connection c, String sql) throws ApplyAlterException {
-        if (sql == null || "".equals(sql.trim()))
-            return false;
-        PreparedStatement s = null;
-        ResultSet rs = null;
-        try {
-            runContext.report(ReportLevel.STATEMENT_STEP, "Check: %s", sql);
-            s = c.prepareStatement(sql);
-            rs = s.executeQuery();
-            if (!rs.next())
-                return false;
-            String check = rs.getString(1);
-            return (CHECK_OK.equalsIgnoreCase(check));
-        } catch (SQLException e) {
-            throw new ApplyAlterException("Can not check " + sql, e);
-        } finally {
-            DbUtils.close(s, rs);
+    void setConnectionPool(@Nullable ConnectionPool pool) {
+        for (DbInstance d : db.getEntries()) {
+            d.setConnectionPool(pool);
         }
     }
 
     /**
-     * Check if all database types (and environments) in alters are defined in database configuration.
-     * If any alterscript contains unknown database it, exception is thrown.
-     * If any alterscript contains environment and database configuration has none, exception is throws.
+     * Apply already loaded alterscripts (see {@link #load(Validator, String...)}) to all or selected database
+     * instances.
+     *
+     * @param a loaded alterscripts
+     * @return the same alterscripts
+     * @throws ApplyAlterException alter application fails
+     */
+    public Alters apply(Alters a) throws ApplyAlterException {
+        //untargeted instances are connected only when needed (QUERY_PKG), not for internal scripts or APPLYALTER_PKG
+        final List<DbInstance> targeted = getTargetedInstances(a.getAlters());
+        db.connect(runContext, targeted, connectTimeout);
+        applyInternal(targeted);
+        // actually apply them
+        apply(a.getAlters(), a.getSourceHash());
+        saveGitState();
+        return a;
+    }
+
+    /**
+     * Key of alterscripts loaded by {@link #load}: configurations with the same key can share them.
+     *
+     * @return placeholders; with git state also the configuration itself, because only alterscripts changed since
+     *         its own applied commit are loaded
+     */
+    Object getLoadKey() {
+        return gitState == null ? getPlaceholders() : Arrays.asList(getPlaceholders(), getConfigKey());
+    }
+
+    /**
+     * Load alterscripts, with placeholders (and git state) of this database configuration. The result can be shared
+     * by all configurations with the same {@link #getLoadKey()}.
+     *
+     * @param validator  XSD validator; null = no validation
+     * @param alterFiles files with XML serialized alter scripts
+     * @return loaded alterscripts
+     */
+    Alters load(@Nullable Validator validator, String... alterFiles) throws ApplyAlterException {
+        return createLoader(validator).loadAlters(alterFiles);
+    }
+
+    /**
+     * Create loader of alterscripts with placeholders and validator of this instance.
+     */
+    AlterLoader createLoader() {
+        return createLoader(validator);
+    }
+
+    private AlterLoader createLoader(@Nullable Validator v) {
+        final AlterLoader loader = new AlterLoader(xstream, v, createPlaceHolderMap());
+        loader.setDirectoryIndex(directoryIndex);
+        loader.setGitState(gitState);
+        loader.setUrlCache(urlCache);
+        return loader;
+    }
+
+    /**
+     * Apply alterscripts and keep the connections open for the next call (watch mode). All database instances
+     * are connected; after a failure, the connections are closed and they are opened again by the next call.
+     *
+     * @param alters alterscripts to apply
+     * @throws ApplyAlterException alter application fails
+     */
+    void applyKeepingConnections(Collection<Alter> alters) throws ApplyAlterException {
+        try {
+            db.connect(runContext, db.getEntries(), connectTimeout);
+            applyInternal(db.getEntries());
+            applyWithoutClosing(alters, null);
+        } catch (ApplyAlterException e) {
+            db.closeConnections();
+            throw e;
+        }
+    }
+
+    /**
+     * Placeholders of this database configuration.
+     *
+     * @return name to value, sorted by name
+     */
+    Map<String, String> getPlaceholders() {
+        final Map<String, String> result = new TreeMap<String, String>();
+        if (db.placeholders != null) {
+            for (DbCustomParam p : db.placeholders) {
+                result.put(p.getName(), p.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Database instances targeted by some alterscript, to be connected in advance; the others stay in the
+     * configuration (APPLYALTER_PKG, {@link #QUERY_PKG}) and are connected only when needed.
+     * When there are no alterscripts at all, all instances are returned (for queries).
+     *
+     * @param alters loaded alterscripts
+     * @return targeted instances
+     */
+    private List<DbInstance> getTargetedInstances(Collection<Alter> alters) {
+        if (alters.isEmpty()) {
+            return db.getEntries();
+        }
+        final List<DbInstance> targeted = new ArrayList<DbInstance>();
+        for (DbInstance d : db.getEntries()) {
+            for (Alter a : alters) {
+                if (isTargeted(a, d)) {
+                    targeted.add(d);
+                    break;
+                }
+            }
+            if (!targeted.contains(d)) {
+                runContext.report(DETAIL, "database instance %s is not targeted by any alterscript", d.getId());
+            }
+        }
+        return targeted;
+    }
+
+    /**
+     * Streaming mode: alterscripts are loaded by separate thread and each of them is applied as soon as it is
+     * loaded (and then released). Source hash is known only after all alterscripts are loaded, so
+     * {@link #SKIP_APPLIED_PKG} cannot be used; {@link #ROLLOUT_WAVES} needs all alterscripts for every wave, so it
+     * is rejected.
+     *
+     * @param ldr        alterscript loader
+     * @param alterFiles files with XML serialized alter scripts
+     * @return source hash and number of alterscripts (the alterscripts themselves are not retained)
+     */
+    protected Alters applyStreaming(final AlterLoader ldr, final String... alterFiles)
+            throws ApplyAlterException {
+        if (rolloutWaves != null) {
+            throw new ApplyAlterException("--%s is not supported in streaming mode", ROLLOUT_WAVES);
+        }
+        final AlterQueue queue = new AlterQueue(STREAMING_QUEUE_SIZE);
+        final Thread loader = new Thread(new Runnable() {
+            public void run() {
+                queue.load(ldr, alterFiles);
+            }
+        }, "applyalter-loader");
+        loader.setDaemon(true);
+        try {
+            loader.start();
+            runContext.report(ALTER, "Executing alterscripts on %d database instances (streaming)",
+                    db.getEntries().size());
+            if (isAppliedPkgSkipped()) {
+                runContext.report(MAIN, "--%s is not supported in streaming mode", SKIP_APPLIED_PKG);
+            }
+            appliedPkgInstances = Collections.emptySet();
+
+            final ApplyAlterExceptions aae = new ApplyAlterExceptions(db.isIgnorefailures());
+            final Iterator<Alter> checked = Iterators.transform(queue, new Function<Alter, Alter>() {
+                public Alter apply(Alter a) {
+                    checkDbIds(Collections.singletonList(a));
+                    return a;
+                }
+            });
+            applyAlters(Iterators.peekingIterator(checked), aae, db.getEntries());
+            if (!aae.isEmpty()) throw aae;
+
+            final String sourceHash = queue.getSourceHash();
+            runContext.reportProperty(ALTER, "sourceHash", sourceHash);
+            savelogPkg(sourceHash);
+            saveGitState();
+            return new Alters(Collections.<Alter>emptyList(), sourceHash, queue.getCount());
+        } finally {
+            loader.interrupt();
+            db.closeConnections();
+        }
+    }
+
+    /**
+     * Applied state read from applyalter_log: the last hash of every alterscript, loaded once per database instance.
+     */
+    private class LogTableAppliedState implements AlterLoader.AppliedState {
+        private final Map<String, Map<String, String>> appliedHashes = new HashMap<String, Map<String, String>>();
+
+        public boolean isApplied(Alter header) {
+            if (header.getSchemas() != null) {
+                //applied state of each schema is checked when executed
+                return false;
+            }
+            for (DbInstance d : db.getEntries()) {
+                if (!isTargeted(header, d)) {
+                    continue;
+                }
+                if (!d.isReal() || !header.getHash().equals(getAppliedHashes(d).get(header.getId()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Load applied state of all database instances now.
+         */
+        void preload() {
+            for (DbInstance d : db.getEntries()) {
+                if (d.isReal()) {
+                    getAppliedHashes(d);
+                }
+            }
+        }
+
+        private Map<String, String> getAppliedHashes(DbInstance d) {
+            Map<String, String> hashes = appliedHashes.get(d.getId());
+            if (hashes == null) {
+                hashes = loadAppliedHashes(d);
+                appliedHashes.put(d.getId(), hashes);
+            }
+            return hashes;
+        }
+
+        private Map<String, String> loadAppliedHashes(DbInstance d) {
+            final Map<String, String> hashes = new HashMap<String, String>();
+            final Connection c = d.getConnection(runContext);
+            PreparedStatement s = null;
+            ResultSet rs = null;
+            try {
+                runContext.report(DETAIL, "loading applied alterscripts from %s", d.getId());
+                s = c.prepareStatement("select id,hash from " + d.getLogTable() + " order by AT");
+                rs = s.executeQuery();
+                while (rs.next()) {
+                    //the last one wins
+                    hashes.put(rs.getString(1), rs.getString(2));
+                }
+            } catch (SQLException e) {
+                runContext.report(ReportLevel.ERROR, "failed to select applyalter_log records: %s", e.getMessage());
+                try {
+                    d.rollback();
+                } catch (SQLException ignored) {
+                    //ignore
+                }
+            } finally {
+                DbUtils.close(s, rs);
+            }
+            return hashes;
+        }
+    }
+
+    /**
+     * Is the alterscript targeted to the database instance (engine, environment and instance type match)?
+     */
+    protected boolean isTargeted(Alter a, DbInstance d) {
+        if (a.engine != null && !a.engine.equalsIgnoreCase(d.getEngine())) {
+            return false;
+        }
+        if (a.environment != null && !a.environment.contains(getEnvironment())) {
+            return false;
+        }
+        return a.isAllInstances() || a.getInstance().contains(d.getType());
+    }
+
+    /**
+     * Check if object exists in database, which means an alter was applied already.
+     *
+     * @param d database instance
+     * @param c Connection to database
+     * @param a check object @return true if object exists in database
+     * @throws ApplyAlterException failed to check (database error?)
+     */
+    protected boolean check(DbInstance d, Connection c, Check a, String schema) throws ApplyAlterException {
+        a.check();
+        try {
+            if (isCatalogSnapshotUsed()) {
+                return d.checkSnapshot(runContext, c, a, schema);
+            }
+            return d.check(runContext, c, a, schema);
+        } catch (SQLException e) {
+            throw new ApplyAlterException("Can not check " + a, e);
+        } catch (UnsupportedOperationException e) {
+            throw new ApplyAlterException("Unsupported check " + a, e);
+        }
+    }
+
+    /**
+     * Check if all objects exists in database; database instance may process all checks at once.
+     *
+     * @param d      database instance
+     * @param c      Connection to database
+     * @param checks check objects
+     * @return true if all checks are satisfied
+     * @throws ApplyAlterException failed to check (database error?)
+     */
+    protected boolean checkAll(DbInstance d, Connection c, List<Check> checks, String schema)
+            throws ApplyAlterException {
+        for (Check i : checks) {
+            i.check();
+        }
+        try {
+            return d.checkAll(runContext, c, checks, schema);
+        } catch (SQLException e) {
+            throw new ApplyAlterException("Can not check " + checks, e);
+        } catch (UnsupportedOperationException e) {
+            throw new ApplyAlterException("Unsupported check " + checks, e);
+        }
+    }
+
+    /**
+     * Custom check if an alter was applieds already.
+     *
+     * @param c   Connection to database
+     * @param sql custom SQL statement
+     * @return true if sql is not null and result of sql statement is equal {@link #CHECK_OK} value
+     * @throws ApplyAlterException failed to check (database error?)
+     */
+    protected boolean check(Connection c, String sql) throws ApplyAlterException {
+        if (sql == null || "".equals(sql.trim()))
+            return false;
+        PreparedStatement s = null;
+        ResultSet rs = null;
+        try {
+            runContext.report(ReportLevel.STATEMENT_STEP, "Check: %s", sql);
+            s = c.prepareStatement(sql);
+            rs = s.executeQuery();
+            if (!rs.next())
+                return false;
+            String check = rs.getString(1);
+            return (CHECK_OK.equalsIgnoreCase(check));
+        } catch (SQLException e) {
+            throw new ApplyAlterException("Can not check " + sql, e);
+        } finally {
+            DbUtils.close(s, rs);
+        }
+    }
+
+    /**
+     * Check if all database types (and environments) in alters are defined in database configuration.
+     * If any alterscript contains unknown database it, exception is thrown.
+     * If any alterscript contains environment and database configuration has none, exception is throws.
      *
      * @param alters to check
      * @throws ApplyAlterException if there is an unknown database type
@@ -445,53 +1214,524 @@ public class ApplyAlter {
 
             applyWithoutClosing(alters, sourceHash);
 
-            if (sourceHash != null) {
-                runContext.report(ALTER, "alterscripts done, source hash: %s", sourceHash);
-                if (pkgLogTable != null) {
-                    pkgLogTable.savelog_pkg(sourceHash);
+            savelogPkg(sourceHash);
+        } finally {
+            db.closeConnections();
+        }
+    }
+
+    private void savelogPkg(@Nullable String sourceHash) {
+        if (sourceHash != null) {
+            runContext.report(ALTER, "alterscripts done, source hash: %s", sourceHash);
+            if (pkgLogTable != null) {
+                pkgLogTable.savelog_pkg(sourceHash, appliedPkgInstances);
+            }
+        }
+    }
+
+    /**
+     * Apply alter scripts to all or selected database instances
+     *
+     * @param alters     alter scripts to apply
+     * @param sourceHash sha1 hash of source bundle; optional
+     * @throws ApplyAlterException if one of statements can not be executed
+     */
+    public void applyWithoutClosing(Collection<Alter> alters, @Nullable String sourceHash)
+            throws ApplyAlterException {
+        if (rolloutWaves != null && db.getEntries().size() > 1) {
+            applyRollout(alters, sourceHash);
+        } else {
+            applyWithoutClosing(alters, sourceHash, db.getEntries());
+        }
+    }
+
+    /**
+     * Apply alterscripts in waves of database instances, see {@link #ROLLOUT_WAVES}. The first wave is applied
+     * sequentially, every next one by workers (one per instance). Rollout stops when a wave fails or when some
+     * alterscript took more than {@link #getRolloutThreshold()} in it.
+     *
+     * @param alters     alterscripts to apply
+     * @param sourceHash sha1 hash of source bundle; optional
+     * @throws ApplyAlterException failure, or rollout stopped
+     */
+    private void applyRollout(Collection<Alter> alters, @Nullable String sourceHash) throws ApplyAlterException {
+        final List<DbInstance> instances = db.getEntries();
+        final RolloutPlan plan = new RolloutPlan(rolloutWaves, instances.size(), rolloutThreshold);
+        runContext.report(ALTER, "Executing %d alterscripts on %d database instances in waves %s",
+                alters.size(), instances.size(), plan.getSizes());
+        checkDbIds(alters);
+        appliedPkgInstances = findAppliedPkgInstances(sourceHash);
+
+        int from = 0;
+        for (int wave = 0; wave < plan.getSizes().size(); wave++) {
+            final List<DbInstance> waveInstances = instances.subList(from, from + plan.getSizes().get(wave));
+            from += waveInstances.size();
+            final List<String> ids = new ArrayList<String>(waveInstances.size());
+            for (DbInstance d : waveInstances) {
+                ids.add(d.getId());
+            }
+            runContext.report(ALTER, "rollout wave %d of %d: %s", wave + 1, plan.getSizes().size(), ids);
+
+            final ApplyAlterExceptions aae = new ApplyAlterExceptions(db.isIgnorefailures());
+            alterDurations.clear();
+            if (wave == 0 || waveInstances.size() == 1) {
+                applyAlters(Iterators.peekingIterator(alters.iterator()), aae, waveInstances);
+            } else {
+                applyWave(alters, aae, waveInstances);
+            }
+            if (!aae.isEmpty()) {
+                runContext.report(ALTER, "rollout stopped: wave %d failed", wave + 1);
+                throw aae;
+            }
+            final Map<String, Long> slow = plan.findSlow(alterDurations);
+            if (from < instances.size() && !slow.isEmpty()) {
+                throw new ApplyAlterException("Rollout stopped after wave %d of %d: alterscripts slower than %d ms: %s",
+                        wave + 1, plan.getSizes().size(), plan.getThreshold(), slow);
+            }
+        }
+    }
+
+    /**
+     * Apply alterscripts to database instances concurrently: every instance by its own worker, with its own
+     * connection. Every instance is reported as a whole when it finishes.
+     *
+     * @param alters    alterscripts to apply
+     * @param aae       exceptions
+     * @param instances database instances of the wave
+     * @throws ApplyAlterException failure of some instance (the others are finished)
+     */
+    private void applyWave(final Collection<Alter> alters, ApplyAlterExceptions aae, List<DbInstance> instances)
+            throws ApplyAlterException {
+        final ExecutorService executor = Executors.newFixedThreadPool(instances.size(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "applyalter-wave");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final CompletionService<WaveResult> completion = new ExecutorCompletionService<WaveResult>(executor);
+        final List<ApplyAlter> workers = new ArrayList<ApplyAlter>(instances.size());
+        ApplyAlterException fatal = null;
+        try {
+            for (DbInstance d : instances) {
+                final ApplyAlter worker = new ApplyAlter(this, Collections.singletonList(d));
+                workers.add(worker);
+                completion.submit(new Callable<WaveResult>() {
+                    public WaveResult call() {
+                        return worker.applyInstanceBuffered(alters, runContext);
+                    }
+                });
+            }
+            for (int i = 0; i < workers.size(); i++) {
+                final WaveResult r;
+                try {
+                    r = completion.take().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ApplyAlterException("Interrupted while executing rollout wave", e);
+                } catch (ExecutionException e) {
+                    throw new ApplyAlterException("Rollout worker failed", e.getCause());
+                }
+                r.context.replay();
+                unapplied.putAll(r.worker.unapplied);
+                for (Map.Entry<String, Long> e : r.worker.alterDurations.entrySet()) {
+                    recordDuration(e.getKey(), e.getValue());
+                }
+                if (!r.aae.isEmpty()) {
+                    aae.add(r.aae);
+                }
+                if (r.failure != null && fatal == null) {
+                    fatal = r.failure;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            for (ApplyAlter worker : workers) {
+                worker.db.closeConnections();
+            }
+        }
+        if (fatal != null) {
+            throw fatal;
+        }
+    }
+
+    /**
+     * Worker: apply all alterscripts to the only database instance, reporting to buffer.
+     *
+     * @param alters  alterscripts
+     * @param context the real run context
+     * @return result, never throws
+     */
+    private WaveResult applyInstanceBuffered(Collection<Alter> alters, RunContext context) {
+        final RunContext.BufferedRunContext buffer = new RunContext.BufferedRunContext(context);
+        runContext = buffer;
+        final ApplyAlterExceptions aae = new ApplyAlterExceptions(db.isIgnorefailures());
+        ApplyAlterException failure = null;
+        try {
+            applyAlters(Iterators.peekingIterator(alters.iterator()), aae, db.getEntries());
+        } catch (ApplyAlterException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new ApplyAlterException("Rollout of " + db.getEntries().get(0).getId() + " failed", e);
+        }
+        return new WaveResult(this, buffer, aae, failure);
+    }
+
+    /**
+     * Result of database instance applied by worker, see {@link #applyInstanceBuffered}.
+     */
+    private static class WaveResult {
+        final ApplyAlter worker;
+        final RunContext.BufferedRunContext context;
+        final ApplyAlterExceptions aae;
+        final ApplyAlterException failure;
+
+        WaveResult(ApplyAlter worker, RunContext.BufferedRunContext context, ApplyAlterExceptions aae,
+                   ApplyAlterException failure) {
+            this.worker = worker;
+            this.context = context;
+            this.aae = aae;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Maximum duration of every applied alterscript (milliseconds), by id.
+     */
+    Map<String, Long> getAlterDurations() {
+        return alterDurations;
+    }
+
+    /**
+     * Remember the longest duration of alterscript, see {@link #alterDurations}.
+     */
+    private void recordDuration(String id, long time) {
+        final Long max = alterDurations.get(id);
+        if (max == null || max < time) {
+            alterDurations.put(id, time);
+        }
+    }
+
+    /**
+     * Apply alter scripts to selected database instances
+     *
+     * @param alters     alter scripts to apply
+     * @param sourceHash sha1 hash of source bundle; optional
+     * @param instances  database instances (subset of {@link DbConfig#getEntries()})
+     * @throws ApplyAlterException if one of statements can not be executed
+     */
+    protected void applyWithoutClosing(Collection<Alter> alters, @Nullable String sourceHash,
+                                       List<DbInstance> instances)
+            throws ApplyAlterException {
+        final ApplyAlterExceptions aae = new ApplyAlterExceptions(db.isIgnorefailures());
+        //initialize databases
+        runContext.report(ALTER, "Executing %d alterscripts on %d database instances",
+                alters.size(), instances.size());
+
+        checkDbIds(alters);
+        appliedPkgInstances = findAppliedPkgInstances(sourceHash);
+
+        // for all alter scripts
+        applyAlters(Iterators.peekingIterator(alters.iterator()), aae, instances);
+
+        if (!aae.isEmpty()) throw aae;
+    }
+
+    /**
+     * Apply alterscripts one by one (or in groups, see {@link #GROUP_COMMIT}, or concurrently,
+     * see {@link #PARALLEL_ALTERS}).
+     *
+     * @param alters    alterscripts to apply
+     * @param aae       exceptions
+     * @param instances database instances
+     */
+    private void applyAlters(PeekingIterator<Alter> alters, ApplyAlterExceptions aae, List<DbInstance> instances) {
+        while (alters.hasNext()) {
+            if (isParallelUsed(alters.peek())) {
+                final List<Alter> parallel = new ArrayList<Alter>();
+                while (alters.hasNext() && isParallelUsed(alters.peek())) {
+                    parallel.add(alters.next());
+                }
+                applyParallel(parallel, aae, instances);
+            } else if (isGroupCommitUsed(alters.peek(), aae, instances)) {
+                applyGroup(alters, aae, instances);
+            } else {
+                final Alter a = alters.next();
+                applySingleAlter(a, aae, true, instances);
+                processedAlterIds.add(a.getId());
+            }
+        }
+    }
+
+    /**
+     * Should the alterscript be executed concurrently with others?
+     */
+    private boolean isParallelUsed(Alter a) {
+        return parallelAlters > 1 && a.isParallelizable();
+    }
+
+    /**
+     * Execute consecutive alterscripts with declared dependencies concurrently, each of them in its own transaction
+     * on its own connections. Every alterscript is reported as a whole when it finishes, so the report (and the
+     * applyalter_log) contains the real completion order.
+     *
+     * @param parallel  alterscripts with dependencies, see {@link Alter#isParallelizable()}
+     * @param aae       exceptions
+     * @param instances database instances
+     */
+    private void applyParallel(List<Alter> parallel, ApplyAlterExceptions aae, List<DbInstance> instances) {
+        final AlterDag dag = new AlterDag(parallel, processedAlterIds);
+        if (!dag.getUnresolved().isEmpty()) {
+            runContext.report(MAIN, "dependencies not processed in this run, assuming they are applied already: %s",
+                    dag.getUnresolved());
+        }
+        final int threads = Math.min(parallelAlters, parallel.size());
+        runContext.report(ALTER, "executing %d alterscripts concurrently, at most %d at a time",
+                parallel.size(), threads);
+        final Deque<ApplyAlter> idle = new ArrayDeque<ApplyAlter>();
+        for (int i = 0; i < threads; i++) {
+            idle.push(new ApplyAlter(this, instances));
+        }
+        final List<ApplyAlter> workers = new ArrayList<ApplyAlter>(idle);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "applyalter-alter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final CompletionService<ParallelResult> completion = new ExecutorCompletionService<ParallelResult>(executor);
+        ApplyAlterException fatal = null;
+        try {
+            while (true) {
+                if (fatal == null) {
+                    for (final Alter a : dag.takeReady(idle.size())) {
+                        final ApplyAlter worker = idle.pop();
+                        completion.submit(new Callable<ParallelResult>() {
+                            public ParallelResult call() {
+                                return worker.applyBuffered(a, runContext);
+                            }
+                        });
+                    }
+                }
+                if (dag.getRunning() == 0) {
+                    break;
+                }
+                final ParallelResult r;
+                try {
+                    r = completion.take().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ApplyAlterException("Interrupted while executing alterscripts", e);
+                } catch (ExecutionException e) {
+                    throw new ApplyAlterException("Alterscript worker failed", e.getCause());
+                }
+                dag.finished(r.alter);
+                idle.push(r.worker);
+                r.context.replay();
+                processedAlterIds.add(r.alter.getId());
+                unapplied.putAll(r.worker.unapplied);
+                r.worker.unapplied.clear();
+                for (Map.Entry<String, Long> e : r.worker.alterDurations.entrySet()) {
+                    recordDuration(e.getKey(), e.getValue());
+                }
+                r.worker.alterDurations.clear();
+                if (!r.aae.isEmpty()) {
+                    aae.add(r.aae);
+                }
+                if (r.failure != null && fatal == null) {
+                    //do not start anything else, wait for the running ones
+                    fatal = r.failure;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            for (ApplyAlter worker : workers) {
+                worker.db.closeConnections();
+            }
+            //the workers changed the catalog
+            for (DbInstance d : instances) {
+                d.invalidateCatalogSnapshots();
+            }
+        }
+        if (fatal != null) {
+            throw fatal;
+        }
+    }
+
+    /**
+     * Worker: apply one alterscript, reporting to buffer.
+     * Catalog snapshots are dropped first: other workers might have changed the catalog.
+     *
+     * @param a       alterscript
+     * @param context the real run context
+     * @return result, never throws
+     */
+    private ParallelResult applyBuffered(Alter a, RunContext context) {
+        final RunContext.BufferedRunContext buffer = new RunContext.BufferedRunContext(context);
+        runContext = buffer;
+        for (DbInstance d : db.getEntries()) {
+            d.invalidateCatalogSnapshots();
+        }
+        final ApplyAlterExceptions aae = new ApplyAlterExceptions(db.isIgnorefailures());
+        ApplyAlterException failure = null;
+        try {
+            applySingleAlter(a, aae, true, db.getEntries());
+        } catch (ApplyAlterException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new ApplyAlterException("Alterscript " + a.getId() + " failed", e);
+        }
+        if (failure != null) {
+            try {
+                db.rollbackUsed(buffer);
+            } catch (ApplyAlterException e) {
+                //already failed
+            }
+        }
+        return new ParallelResult(a, this, buffer, aae, failure);
+    }
+
+    /**
+     * Result of alterscript applied by worker, see {@link #applyBuffered(Alter, RunContext)}.
+     */
+    private static class ParallelResult {
+        final Alter alter;
+        final ApplyAlter worker;
+        final RunContext.BufferedRunContext context;
+        final ApplyAlterExceptions aae;
+        final ApplyAlterException failure;
+
+        ParallelResult(Alter alter, ApplyAlter worker, RunContext.BufferedRunContext context,
+                       ApplyAlterExceptions aae, ApplyAlterException failure) {
+            this.alter = alter;
+            this.worker = worker;
+            this.context = context;
+            this.aae = aae;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Should the alterscript be executed in group commit mode?
+     */
+    private boolean isGroupCommitUsed(Alter a, ApplyAlterExceptions aae, List<DbInstance> instances) {
+        return groupCommitSize > 1 && RunMode.SHARP.equals(getRunMode()) && aae.isEmpty()
+                && isGroupCommitEligible(a, instances);
+    }
+
+    /**
+     * Can the alterscript share transaction with others, see {@link Alter#isGroupCommitEligible()}? Statement
+     * committing implicitly (DDL on MySQL, Oracle) would commit the group so far, so that it could not be rolled
+     * back and executed again one by one.
+     */
+    private static boolean isGroupCommitEligible(Alter a, List<DbInstance> instances) {
+        if (!a.isGroupCommitEligible()) {
+            return false;
+        }
+        for (DbInstance d : instances) {
+            for (AlterStatement s : a.getStatements()) {
+                if (isImplicitCommit(d, s)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Execute consecutive alterscripts eligible for group commit in one transaction (per database instance).
+     * When any of them fails, the whole group is rolled back and executed again, one by one.
+     *
+     * @param alters    alterscripts; the group is taken from the beginning
+     * @param aae       exceptions
+     * @param instances database instances
+     */
+    private void applyGroup(final PeekingIterator<Alter> alters, final ApplyAlterExceptions aae,
+                            final List<DbInstance> instances) {
+        final List<Alter> group = new ArrayList<Alter>(groupCommitSize);
+        final boolean[] ok = {false};
+        runContext.subreport("group", new Runnable() {
+            public void run() {
+                //any failure ends the group
+                final ApplyAlterExceptions groupAae = new ApplyAlterExceptions(false);
+                final long start = System.currentTimeMillis();
+                try {
+                    while (alters.hasNext() && group.size() < groupCommitSize
+                            && (groupCommitTime <= 0 || System.currentTimeMillis() - start < groupCommitTime)
+                            && isGroupCommitEligible(alters.peek(), instances) && !isParallelUsed(alters.peek())) {
+                        final Alter a = alters.next();
+                        group.add(a);
+                        applySingleAlter(a, groupAae, false, instances);
+                    }
+                    runContext.report(ALTER, "committing group of %d alterscripts", group.size());
+                    db.commitUsed(runContext);
+                    ok[0] = true;
+                } catch (ApplyAlterException e) {
+                    runContext.report(ALTER, "group of %d alterscripts failed, executing them one by one: %s",
+                            group.size(), e.getMessage());
+                    db.rollbackUsed(runContext);
                 }
             }
-        } finally {
-            db.closeConnections();
+        });
+        if (!ok[0]) {
+            //retry for exact error reporting
+            for (Alter a : group) {
+                applySingleAlter(a, aae, true, instances);
+            }
+        }
+        for (Alter a : group) {
+            processedAlterIds.add(a.getId());
         }
     }
 
     /**
-     * Apply alter scripts to all or selected database instances
+     * Find database instances where the source bundle has already been applied, see {@link #SKIP_APPLIED_PKG}.
      *
-     * @param alters     alter scripts to apply
      * @param sourceHash sha1 hash of source bundle; optional
-     * @throws ApplyAlterException if one of statements can not be executed
+     * @return database instance ids; empty if the feature is not enabled
      */
-    public void applyWithoutClosing(Collection<Alter> alters, @Nullable String sourceHash)
-            throws ApplyAlterException {
-        final ApplyAlterExceptions aae = new ApplyAlterExceptions(db.isIgnorefailures());
-        //initialize databases
-        runContext.report(ALTER, "Executing %d alterscripts on %d database instances",
-                alters.size(), db.getEntries().size());
-
-        checkDbIds(alters);
-
-        // for all alter scripts
-        for (final Alter a : alters) {
-            runContext.subreport("alterscript", new Runnable() {
-                public void run() {
-                    applySingleAlter(a, aae);
-                }
-            });
+    private Set<String> findAppliedPkgInstances(@Nullable String sourceHash) {
+        if (!isAppliedPkgSkipped() || sourceHash == null || pkgLogTable == null || !runContext.isIncremental()) {
+            return Collections.emptySet();
+        }
+        final Set<String> result = new HashSet<String>();
+        for (DbInstance d : db.getEntries()) {
+            //untargeted instances are not connected, there is nothing to skip
+            if (d.isConnected() && pkgLogTable.isApplied(d, sourceHash)) {
+                runContext.report(ALTER, "source bundle %s already applied to %s, skipping", sourceHash, d.getId());
+                result.add(d.getId());
+            }
         }
+        return result;
+    }
 
-        if (!aae.isEmpty()) throw aae;
+    /**
+     * Execute the alterscript in subreport.
+     *
+     * @param a         alterscript
+     * @param aae       exceptions
+     * @param commit    end the transaction (commit/rollback)?
+     * @param instances database instances
+     */
+    private void applySingleAlter(final Alter a, final ApplyAlterExceptions aae, final boolean commit,
+                                  final List<DbInstance> instances) {
+        runContext.subreport("alterscript", new Runnable() {
+            public void run() {
+                applySingleAlterInternal(a, aae, commit, instances);
+            }
+        });
     }
 
-    private void applySingleAlter(final Alter a, ApplyAlterExceptions aae) {
+    private void applySingleAlterInternal(final Alter a, ApplyAlterExceptions aae, boolean commit,
+                                          List<DbInstance> instances) {
         //logged as property//  runContext.report(ALTER, "alterscript: %s", a.getId());
         runContext.reportProperty(ALTER, "id", a.getId());
         runContext.reportProperty(ALTER, "hash", a.getHash());
 
         // for all (or selected) databases
         Set<ReportedResult> results = EnumSet.noneOf(ReportedResult.class);
-        for (final DbInstance d : db.getEntries()) {
+        for (final DbInstance d : instances) {
             //check engine
             if (a.engine != null && !a.engine.equalsIgnoreCase(d.getEngine())) {
                 //skip
@@ -508,44 +1748,48 @@ public class ApplyAlter {
                 continue;
             }
 
+            if (appliedPkgInstances.contains(d.getId())) {
+                results.add(ReportedResult.SKIPPED);
+                continue;
+            }
+
             // apply to this instance?
             if (a.isAllInstances() || a.getInstance().contains(d.getType())) {
                 long start = System.currentTimeMillis();
                 String dbid = d.getId();
                 try {
+                    if (a.getSchemas() != null) {
+                        final ReportedResult result = applySchemas(a, d, aae);
+                        if (result != null) {
+                            results.add(result);
+                        }
+                        continue;
+                    }
                     Connection c = d.getConnection(runContext);
                     runContext.report(DETAIL, "Database instance %s %s, schema %s", dbid, d.getUrl(), a.getSchema());
-                    d.setSchema(a.getSchema());
-                    d.setIsolation(a.getIsolation());
+                    d.ensureSchema(a.getSchema());
+                    d.ensureIsolation(a.getIsolation());
 
                     // do checks
-                    if (executeChecks(a, d, c)) {
+                    if (executeChecks(a, d, c, a.getSchema())) {
                         //alter already applied
                         runContext.report(ALTER, "Alter already applied, skipping");
                         continue;
                     }
 
+                    if (a.isHeaderOnly()) {
+                        //applyalter_log must have changed since the alterscript was loaded
+                        throw new ApplyAlterException("Alterscript %s has not been fully loaded", a.getId());
+                    }
+
                     if (RunMode.LOOK.equals(getRunMode())) {
                         runContext.report(MAIN, "Alter %s seems unapplied", a.getId());
                         unapplied.put(d.getId(), a.getId());
                         continue;
                     }
-                    d.markConnectionUsed(runContext);
-                    // for all alter statements
-                    for (final AlterStatement s : a.getStatements()) {
-                        //print to user
-                        runContext.report(STATEMENT, "%s", s);
-                        runContext.subreport("statement", new Runnable() {
-                            public void run() {
-                                s.recordStructuredInfo(runContext);
-                                if (!RunMode.PRINT.equals(getRunMode())) {
-                                    executeStatement(d, a, s);
-                                }
-                            }
-                        });
-                    }
+                    executeStatements(d, a);
                     long time = System.currentTimeMillis() - start;
-                    savelog(d, dbid, a.getId(), time, a.getHash());
+                    savelog(d, dbid, a.getId(), time, a.getHash(), null);
 
                     results.add(ReportedResult.FINISHED);
                 } catch (ApplyAlterException e) {
@@ -557,11 +1801,13 @@ public class ApplyAlter {
                 }
             }
         }
-        // commit each alter on used databases
-        if (aae.isEmpty() && RunMode.SHARP.equals(getRunMode())) {
-            db.commitUsed(runContext);
-        } else {
-            db.rollbackUsed(runContext);
+        // commit each alter on used databases (in group commit mode, the transaction continues)
+        if (commit) {
+            if (aae.isEmpty() && RunMode.SHARP.equals(getRunMode())) {
+                db.commitUsed(runContext);
+            } else {
+                db.rollbackUsed(runContext);
+            }
         }
         //structured report: pick one status - in most cases, there is only one result anyway
         if (results.size() == 1) {
@@ -569,6 +1815,365 @@ public class ApplyAlter {
         }
     }
 
+    /**
+     * Execute all statements of the alterscript (or just print them in PRINT mode).
+     *
+     * @param d database instance, connected and with schema set
+     * @param a the alterscript
+     */
+    private void executeStatements(final DbInstance d, final Alter a) {
+        d.markConnectionUsed(runContext);
+        // for all alter statements
+        final List<AlterStatement> statements = a.getStatements();
+        try {
+            //statements of failed batch are all executed one by one, they are not batched again
+            int unbatchedEnd = 0;
+            for (int i = 0; i < statements.size(); ) {
+                if (i >= unbatchedEnd) {
+                    final int batchEnd = findSqlBatchEnd(d, a, i);
+                    if (batchEnd - i > 1) {
+                        invalidateCatalogSnapshots(d, statements.subList(i, batchEnd));
+                        if (executeSqlBatch(d, a, statements.subList(i, batchEnd))) {
+                            i = batchEnd;
+                            continue;
+                        }
+                        unbatchedEnd = batchEnd;
+                    }
+                }
+                final AlterStatement s = statements.get(i++);
+                //print to user
+                runContext.report(STATEMENT, "%s", s);
+                runContext.subreport("statement", new Runnable() {
+                    public void run() {
+                        s.recordStructuredInfo(runContext);
+                        if (!RunMode.PRINT.equals(getRunMode())) {
+                            invalidateCatalogSnapshots(d, Collections.singletonList(s));
+                            executeStatement(d, a, s);
+                        }
+                    }
+                });
+            }
+        } finally {
+            if (!RunMode.PRINT.equals(getRunMode())) {
+                //statements might change the session
+                d.resetSessionState();
+            }
+        }
+    }
+
+    /**
+     * Forget catalog snapshots of the database instance before statements which might change the catalog.
+     * Pure DML, selects and comments keep them, so the checks of following alterscripts need not reload them.
+     *
+     * @param d          database instance
+     * @param statements statements to be executed
+     */
+    private static void invalidateCatalogSnapshots(DbInstance d, List<AlterStatement> statements) {
+        for (AlterStatement s : statements) {
+            if (s instanceof SelectQuery || s instanceof Comment) {
+                continue;
+            }
+            if (!(s instanceof SQL) || !d.isDml(((SQL) s).getSqlStatement())) {
+                d.invalidateCatalogSnapshots();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Apply the alterscript to all its schemas (see {@link Alter#getSchemas()}) of one database instance.
+     * Every schema is applied by a worker with its own connection, in its own transaction, and it is reported
+     * as a whole when it finishes. The first failure (not ignored) stops starting of other schemas.
+     *
+     * @param a   the alterscript
+     * @param d   database instance
+     * @param aae exceptions
+     * @return combined result; null = nothing to report (LOOK mode)
+     * @throws ApplyAlterException failure of some schema
+     */
+    private ReportedResult applySchemas(final Alter a, DbInstance d, ApplyAlterExceptions aae)
+            throws ApplyAlterException {
+        final List<String> schemas;
+        try {
+            schemas = a.getSchemas().resolve(d.getConnection(runContext));
+            //do not keep the transaction open while the workers run
+            d.rollback();
+        } catch (SQLException e) {
+            throw new ApplyAlterException("Can not get schemas of alterscript " + a.getId(), e);
+        }
+        if (schemas.isEmpty()) {
+            runContext.report(ALTER, "no schemas on %s, skipping", d.getId());
+            return ReportedResult.SKIPPED;
+        }
+        if (a.isHeaderOnly()) {
+            throw new ApplyAlterException("Alterscript %s has not been fully loaded", a.getId());
+        }
+        checkSchemaOutputs(a, a.getStatements());
+        final int threads = Math.min(a.getSchemas().getParallelism(), schemas.size());
+        runContext.report(ALTER, "applying to %d schemas of %s, at most %d at a time",
+                schemas.size(), d.getId(), threads);
+        runContext.reportProperty(ALTER, "schemas", schemas.size());
+
+        final Deque<ApplyAlter> idle = new ArrayDeque<ApplyAlter>();
+        for (int i = 0; i < threads; i++) {
+            idle.push(new ApplyAlter(this, Collections.singletonList(d)));
+        }
+        final List<ApplyAlter> workers = new ArrayList<ApplyAlter>(idle);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "applyalter-schema");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final CompletionService<SchemaResult> completion = new ExecutorCompletionService<SchemaResult>(executor);
+        final Set<ReportedResult> results = EnumSet.noneOf(ReportedResult.class);
+        ApplyAlterException fatal = null;
+        int next = 0;
+        int running = 0;
+        try {
+            while (true) {
+                while (fatal == null && !idle.isEmpty() && next < schemas.size()) {
+                    final String schema = schemas.get(next++);
+                    final ApplyAlter worker = idle.pop();
+                    completion.submit(new Callable<SchemaResult>() {
+                        public SchemaResult call() {
+                            return worker.applySchemaBuffered(a, schema, runContext);
+                        }
+                    });
+                    running++;
+                }
+                if (running == 0) {
+                    break;
+                }
+                final SchemaResult r;
+                try {
+                    r = completion.take().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ApplyAlterException("Interrupted while applying schemas", e);
+                } catch (ExecutionException e) {
+                    throw new ApplyAlterException("Schema worker failed", e.getCause());
+                }
+                running--;
+                idle.push(r.worker);
+                r.context.replay();
+                unapplied.putAll(r.worker.unapplied);
+                r.worker.unapplied.clear();
+                for (Map.Entry<String, Long> e : r.worker.alterDurations.entrySet()) {
+                    recordDuration(e.getKey(), e.getValue());
+                }
+                if (r.result != null) {
+                    results.add(r.result);
+                }
+                if (!r.aae.isEmpty()) {
+                    aae.add(r.aae);
+                }
+                if (r.failure != null && fatal == null) {
+                    //do not start anything else, wait for the running ones
+                    fatal = r.failure;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            for (ApplyAlter worker : workers) {
+                worker.db.closeConnections();
+            }
+        }
+        if (fatal != null) {
+            throw fatal;
+        }
+        if (results.contains(ReportedResult.FAILED_IGNORED)) {
+            return ReportedResult.FAILED_IGNORED;
+        } else if (results.contains(ReportedResult.FINISHED)) {
+            return ReportedResult.FINISHED;
+        }
+        return results.isEmpty() ? null : ReportedResult.SKIPPED;
+    }
+
+    /**
+     * Check that select output files of alterscript applied to more schemas do not overwrite each other.
+     *
+     * @throws ApplyAlterException output file without <code>${schema}</code>
+     */
+    private static void checkSchemaOutputs(Alter a, List<AlterStatement> statements) throws ApplyAlterException {
+        for (AlterStatement s : statements) {
+            if (s instanceof SelectQuery && !((SelectQuery) s).isOutputPerSchema()) {
+                throw new ApplyAlterException(
+                        "Alterscript %s is applied to more schemas, select output must contain ${schema}", a.getId());
+            } else if (s instanceof ParallelBlock) {
+                checkSchemaOutputs(a, ((ParallelBlock) s).getStatements());
+            }
+        }
+    }
+
+    /**
+     * Worker: apply the alterscript to one schema and end the transaction, reporting to buffer.
+     *
+     * @param a       alterscript
+     * @param schema  schema
+     * @param context the real run context
+     * @return result, never throws
+     */
+    private SchemaResult applySchemaBuffered(final Alter a, final String schema, RunContext context) {
+        final RunContext.BufferedRunContext buffer = new RunContext.BufferedRunContext(context);
+        runContext = buffer;
+        final SchemaResult r = new SchemaResult(this, buffer, new ApplyAlterExceptions(db.isIgnorefailures()));
+        runContext.subreport("schema", new Runnable() {
+            public void run() {
+                runContext.reportProperty(ALTER, "schema", schema);
+                try {
+                    r.result = applySchema(a, db.getEntries().get(0), schema);
+                } catch (ApplyAlterException e) {
+                    runContext.reportProperty(ALTER, "result", ReportedResult.FAILED);
+                    r.result = ReportedResult.FAILED;
+                    try {
+                        r.aae.addOrThrow(e);
+                        r.result = ReportedResult.FAILED_IGNORED;
+                    } catch (ApplyAlterException fatal) {
+                        r.failure = fatal;
+                    }
+                } catch (RuntimeException e) {
+                    r.result = ReportedResult.FAILED;
+                    r.failure = new ApplyAlterException("Alterscript " + a.getId() + " failed in schema " + schema, e);
+                }
+                try {
+                    if (r.result == ReportedResult.FINISHED && RunMode.SHARP.equals(getRunMode())) {
+                        db.commitUsed(runContext);
+                    } else {
+                        db.rollbackUsed(runContext);
+                    }
+                } catch (ApplyAlterException e) {
+                    if (r.failure == null) {
+                        r.result = ReportedResult.FAILED;
+                        r.failure = e;
+                    }
+                }
+                if (r.result != null) {
+                    runContext.reportProperty(ALTER, "result", r.result);
+                }
+            }
+        });
+        return r;
+    }
+
+    /**
+     * Apply the alterscript to one schema: checks (including applyalter_log record of the schema),
+     * statements and applyalter_log record. Transaction is not ended.
+     *
+     * @return result; null = nothing to report (LOOK mode)
+     */
+    private ReportedResult applySchema(Alter a, DbInstance d, String schema) throws ApplyAlterException {
+        final long start = System.currentTimeMillis();
+        final Connection c = d.getConnection(runContext);
+        runContext.report(DETAIL, "Database instance %s %s, schema %s", d.getId(), d.getUrl(), schema);
+        d.ensureSchema(schema);
+        d.ensureIsolation(a.getIsolation());
+        if (executeChecks(a, d, c, schema)) {
+            runContext.report(ALTER, "Alter already applied to schema %s, skipping", schema);
+            return ReportedResult.SKIPPED;
+        }
+        if (RunMode.LOOK.equals(getRunMode())) {
+            runContext.report(MAIN, "Alter %s seems unapplied to schema %s", a.getId(), schema);
+            unapplied.put(d.getId(), a.getId() + "@" + schema);
+            return null;
+        }
+        executeStatements(d, a);
+        savelog(d, d.getId(), a.getId(), System.currentTimeMillis() - start, a.getHash(), schema);
+        return ReportedResult.FINISHED;
+    }
+
+    /**
+     * Result of alterscript applied to one schema by worker, see {@link #applySchemaBuffered}.
+     */
+    private static class SchemaResult {
+        final ApplyAlter worker;
+        final RunContext.BufferedRunContext context;
+        final ApplyAlterExceptions aae;
+        ReportedResult result;
+        ApplyAlterException failure;
+
+        SchemaResult(ApplyAlter worker, RunContext.BufferedRunContext context, ApplyAlterExceptions aae) {
+            this.worker = worker;
+            this.context = context;
+            this.aae = aae;
+        }
+    }
+
+    /**
+     * Find run of plain SQL statements which can be sent in one batch, see {@link SQL#isBatchable(Map)}.
+     * DDL committing implicitly is never batched: failed batch could not be rolled back to savepoint and
+     * the statements before it would be executed again.
+     *
+     * @param d    database instance
+     * @param a    the alterscript
+     * @param from index of the first statement
+     * @return index after the last statement of the batch; from+1 or less when there is nothing to batch
+     */
+    private int findSqlBatchEnd(DbInstance d, Alter a, int from) {
+        if (!isSqlBatched() || RunMode.PRINT.equals(getRunMode())) {
+            return from;
+        }
+        final List<AlterStatement> statements = a.getStatements();
+        int end = from;
+        while (end < statements.size() && statements.get(end) instanceof SQL
+                && ((SQL) statements.get(end)).isBatchable(a._datafiles)
+                && !d.isImplicitCommit(((SQL) statements.get(end)).getSqlStatement())) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Execute plain SQL statements in one batch. When the batch fails, it is rolled back (to savepoint) and nothing
+     * is reported: caller should execute the statements one by one to get the exact error.
+     *
+     * @param d          database instance
+     * @param a          the alterscript
+     * @param statements batchable statements
+     * @return true if the batch was executed; false if it failed and has been rolled back
+     */
+    private boolean executeSqlBatch(DbInstance d, Alter a, List<AlterStatement> statements) {
+        final Connection c = d.getConnection(runContext);
+        d.ensureTimeouts(a.getLockTimeout(), a.getStatementTimeout());
+        final List<String> sqls = new ArrayList<String>(statements.size());
+        for (AlterStatement s : statements) {
+            sqls.add(((SQL) s).getSqlStatement().trim());
+        }
+        final int[] counts;
+        Savepoint savepoint = null;
+        try {
+            savepoint = c.setSavepoint();
+            counts = d.executeSqlBatch(runContext, sqls);
+        } catch (SQLException e) {
+            runContext.report(STATEMENT_STEP, "batch of %d statements failed, executing them one by one: %s",
+                    statements.size(), e.getMessage());
+            if (savepoint != null) {
+                try {
+                    c.rollback(savepoint);
+                } catch (SQLException e1) {
+                    throw new ApplyAlterException(e.getMessage(), e1);
+                }
+            }
+            return false;
+        }
+        //report as if executed one by one
+        for (int i = 0; i < statements.size(); i++) {
+            final AlterStatement s = statements.get(i);
+            final int rows = counts.length > i ? counts[i] : Statement.SUCCESS_NO_INFO;
+            runContext.report(STATEMENT, "%s", s);
+            runContext.subreport("statement", new Runnable() {
+                public void run() {
+                    s.recordStructuredInfo(runContext);
+                    runContext.reportProperty(STATEMENT, "batch", statements.size());
+                    runContext.report(STATEMENT_STEP, "statement executed, changed rows: %d%n", Math.max(rows, 0));
+                    runContext.reportProperty(STATEMENT, "result", ReportedResult.FINISHED);
+                }
+            });
+        }
+        return true;
+    }
+
     /**
      * Execute statement and handle errors (ignoge if configured so).
      *
@@ -578,8 +2183,11 @@ public class ApplyAlter {
      */
     private void executeStatement(DbInstance db, Alter a, AlterStatement s)
             throws ApplyAlterException {
+        db.ensureTimeouts(s.getLockTimeout() != null ? s.getLockTimeout() : a.getLockTimeout(),
+                s.getStatementTimeout() != null ? s.getStatementTimeout() : a.getStatementTimeout());
         Savepoint savepoint = null;
-        if (db.isSavepointNeededForIgnoredFailure() &&
+        //self-committing statement would release the savepoint
+        if (db.isSavepointNeededForIgnoredFailure() && !isAutocommit(s) && !s.isSelfCommitting() &&
                 (s.canFail() || s.getIgnoredSqlStates() != null || s.getIgnoredSqlCodes() != null)) {
             try {
                 savepoint = db.getConnection(runContext).setSavepoint();
@@ -589,27 +2197,15 @@ public class ApplyAlter {
         }
         ReportedResult result = null;
         try {
-            s.execute(db, runContext, a._datafiles);
+            executeWithLockRetry(db, a, s);
             result = ReportedResult.FINISHED;
         } catch (ApplyAlterException e) {
-            if (s.canFail()) {
-                runContext.report(ReportLevel.ERROR, "statement failed, ignoring: %s", e.getMessage());
+            if (isFailureIgnored(runContext, s, e)) {
                 result = ReportedResult.FAILED_IGNORED;
             } else
                 throw e;
         } catch (SQLException e) {
-            runContext.report(STATEMENT, "database error: %s", e.getMessage());
-            runContext.reportProperty(STATEMENT, "sqlcode", e.getErrorCode());
-            runContext.reportProperty(STATEMENT, "sqlstate", e.getSQLState());
-            if (s.canFail()) {
-                runContext.report(STATEMENT, "statement failed, ignoring: %s", e.getMessage());
-            } else if (s.getIgnoredSqlStates() != null && s.getIgnoredSqlStates().contains(e.getSQLState())) {
-                runContext.report(STATEMENT, "statement failed with SQLSTATE=%s, ignoring: %s",
-                        e.getSQLState(), e.getMessage());
-            } else if (s.getIgnoredSqlCodes() != null && s.getIgnoredSqlCodes().contains(e.getErrorCode())) {
-                runContext.report(STATEMENT, "statement failed with SQLSTATE=%s, ignoring: %s",
-                        e.getSQLState(), e.getMessage());
-            } else {
+            if (!isFailureIgnored(runContext, s, e)) {
                 throw new ApplyAlterException(e.getMessage(), e);
             }
 
@@ -634,8 +2230,110 @@ public class ApplyAlter {
         }
     }
 
-    protected boolean executeChecks(Alter alter, DbInstance d, Connection connection) {
-        if (checkInc(alter, d, connection)) {
+    /**
+     * Report the database error of the statement and decide whether it is ignored (canfail, ignored SQLSTATE
+     * or SQLCODE).
+     *
+     * @param ctx run context
+     * @param s   the failed statement
+     * @param e   database error
+     * @return true if the failure is ignored; caller must roll back the statement
+     */
+    static boolean isFailureIgnored(RunContext ctx, AlterStatement s, SQLException e) {
+        ctx.report(STATEMENT, "database error: %s", e.getMessage());
+        ctx.reportProperty(STATEMENT, "sqlcode", e.getErrorCode());
+        ctx.reportProperty(STATEMENT, "sqlstate", e.getSQLState());
+        if (s.canFail()) {
+            ctx.report(STATEMENT, "statement failed, ignoring: %s", e.getMessage());
+        } else if (s.getIgnoredSqlStates() != null && s.getIgnoredSqlStates().contains(e.getSQLState())) {
+            ctx.report(STATEMENT, "statement failed with SQLSTATE=%s, ignoring: %s", e.getSQLState(), e.getMessage());
+        } else if (s.getIgnoredSqlCodes() != null && s.getIgnoredSqlCodes().contains(e.getErrorCode())) {
+            ctx.report(STATEMENT, "statement failed with SQLSTATE=%s, ignoring: %s", e.getSQLState(), e.getMessage());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Report the error of the statement and decide whether it is ignored (canfail).
+     *
+     * @return true if the failure is ignored
+     */
+    static boolean isFailureIgnored(RunContext ctx, AlterStatement s, ApplyAlterException e) {
+        if (s.canFail()) {
+            ctx.report(ReportLevel.ERROR, "statement failed, ignoring: %s", e.getMessage());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Is the statement executed in autocommit mode (so that savepoint makes no sense)?
+     */
+    private static boolean isAutocommit(AlterStatement s) {
+        return s instanceof SQL && ((SQL) s).isAutocommit();
+    }
+
+    /**
+     * Might the statement commit implicitly (see {@link DbInstance#isDdlTransactional()}), so that savepoint set
+     * before it is lost? Only plain SQL is checked; other statements are considered committing on such databases.
+     */
+    private static boolean isImplicitCommit(DbInstance db, AlterStatement s) {
+        if (db.isDdlTransactional()) {
+            return false;
+        }
+        return !(s instanceof SQL) || db.isImplicitCommit(((SQL) s).getSqlStatement());
+    }
+
+    /**
+     * Execute statement; when it fails on lock timeout or deadlock and the database allows it
+     * (see {@link DbInstance#isLockFailureRetryable(SQLException)}), rollback to savepoint and retry after
+     * exponential backoff with jitter, at most {@link Alter#getLockRetries()} times. Statements committing implicitly
+     * are not retried: the savepoint would be gone.
+     */
+    private void executeWithLockRetry(DbInstance db, Alter a, AlterStatement s)
+            throws ApplyAlterException, SQLException {
+        final int retries = s.isSelfCommitting() || isImplicitCommit(db, s) ? 0 : a.getLockRetries();
+        for (int attempt = 0; ; attempt++) {
+            Savepoint savepoint = null;
+            if (attempt < retries) {
+                savepoint = db.getConnection(runContext).setSavepoint();
+            }
+            try {
+                s.execute(db, runContext, a._datafiles);
+                if (attempt > 0) {
+                    runContext.reportProperty(STATEMENT, "lockRetries", attempt);
+                }
+                return;
+            } catch (SQLException e) {
+                if (savepoint == null || !db.isLockFailureRetryable(e)) {
+                    throw e;
+                }
+                db.getConnection(runContext).rollback(savepoint);
+                final long delay = Math.min(LOCK_RETRY_DELAY << attempt, LOCK_RETRY_MAX_DELAY);
+                final long sleep = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+                runContext.report(STATEMENT, "lock failure (SQLSTATE=%s), retry %d of %d in %d ms: %s",
+                        e.getSQLState(), attempt + 1, retries, sleep, e.getMessage());
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new ApplyAlterException("Interrupted while waiting for lock retry", ie);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether the alterscript has been already applied.
+     *
+     * @param schema schema the alterscript is applied to; for alterscript with {@link Alter#getSchemas()},
+     *               the applyalter_log record of this schema is checked
+     * @return true = already applied, skip it
+     */
+    protected boolean executeChecks(Alter alter, DbInstance d, Connection connection, String schema) {
+        if (checkInc(alter, d, connection, alter.getSchemas() != null ? schema : null)) {
             return true;
         }
         if (check(connection, alter.getCheckok())) {
@@ -648,28 +2346,39 @@ public class ApplyAlter {
             //no checks --> not applied
             return false;
         }
-        for (Check i : checks) {
-            if (!check(d, connection, i, alter.getSchema())) {
-                return false;
+        if (isCatalogSnapshotUsed()) {
+            for (Check i : checks) {
+                if (!check(d, connection, i, schema)) {
+                    return false;
+                }
             }
+            return true;
         }
-        return true;
+        return checkAll(d, connection, checks, schema);
     }
 
     /**
      * Check incremental mode.
      *
+     * @param tenantSchema schema of alterscript applied to several schemas; null = any record
+     *
      * @return true = this script has already been executed, skip it; <br />
      * false = execute it
      */
-    boolean checkInc(Alter alter, DbInstance d, Connection c) {
+    boolean checkInc(Alter alter, DbInstance d, Connection c, @Nullable String tenantSchema) {
         if (!runContext.isIncremental()) {
             // continue with checks
             return false;
         }
         PreparedStatement s = null;
         try {
-            s = c.prepareStatement("select hash,AT from " + d.getLogTable() + " where id = ? order by AT desc");
+            if (tenantSchema == null) {
+                s = c.prepareStatement("select hash,AT from " + d.getLogTable() + " where id = ? order by AT desc");
+            } else {
+                s = c.prepareStatement("select hash,AT from " + d.getLogTable()
+                        + " where id = ? and schema_name = ? order by AT desc");
+                s.setString(2, tenantSchema);
+            }
             s.setString(1, alter.getId());
             s.setMaxRows(1);
             s.execute();
@@ -716,10 +2425,17 @@ public class ApplyAlter {
      * @param dbid database id
      * @param id   alter id
      * @param time alter duration
+     * @param tenantSchema schema of alterscript applied to several schemas, null otherwise
      */
-    protected void savelog(DbInstance d, String dbid, String id, long time, String hash) {
+    protected void savelog(DbInstance d, String dbid, String id, long time, String hash,
+                           @Nullable String tenantSchema) {
         Connection c = d.getConnection(runContext);
-        runContext.report(ALTER, "Alter %s on %s took %s ms", id, dbid, time);
+        recordDuration(id, time);
+        if (tenantSchema != null) {
+            runContext.report(ALTER, "Alter %s on %s schema %s took %s ms", id, dbid, tenantSchema, time);
+        } else {
+            runContext.report(ALTER, "Alter %s on %s took %s ms", id, dbid, time);
+        }
 
         if (runContext.getRunMode() != RunMode.SHARP || !isLogTableUsed()) {
             //do not write to database
@@ -728,7 +2444,14 @@ public class ApplyAlter {
 
         PreparedStatement s = null;
         try {
-            s = c.prepareStatement("insert into " + d.getLogTable() + " (username,id,duration,hash) values (?,?,?,?)");
+            if (tenantSchema == null) {
+                s = c.prepareStatement("insert into " + d.getLogTable()
+                        + " (username,id,duration,hash) values (?,?,?,?)");
+            } else {
+                s = c.prepareStatement("insert into " + d.getLogTable()
+                        + " (username,id,duration,hash,schema_name) values (?,?,?,?,?)");
+                s.setString(5, tenantSchema);
+            }
             s.setString(1, username);
             s.setString(2, id);
             s.setLong(3, time);
@@ -794,6 +2517,13 @@ public class ApplyAlter {
      * @param args commandline arguments
      */
     public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * Command line options.
+     */
+    static Options createOptions() {
         Options o = new Options();
         o.addOption(IGNORE_FAILURES, false, "ignore failures");
         o.addOption(PRINTSTACKTRACE, false, "print stacktrace");
@@ -814,6 +2544,67 @@ public class ApplyAlter {
 
         o.addOption(null, QUERY_PKG, true, "query the APPLYALTER_PKG table and write result to file");
         o.addOption(null, QUERY_PKG_HASH, true, "limit output of --" + QUERY_PKG + " by specified SHA1 hash");
+        o.addOption(null, CATALOG_SNAPSHOT, false, "answer checks from catalog snapshot (loaded once per schema)");
+        o.addOption(null, CONNECT_TIMEOUT, true, "connection timeout in seconds (connections are opened concurrently)");
+        o.addOption(null, CONNECT_ALL, false,
+                "connect to all database instances first (default: only those targeted by alterscripts)");
+        o.addOption(null, STREAMING, false, "apply alterscripts while they are being loaded (bounded memory)");
+        o.addOption(null, BATCH_SQL, false, "send consecutive plain SQL statements in one batch");
+        o.addOption(null, GROUP_COMMIT, true,
+                "commit up to N consecutive alterscripts in one transaction (mode " + RunMode.SHARP + " only)");
+        o.addOption(null, GROUP_COMMIT_TIME, true, "group commit: maximum duration of one transaction (ms)");
+        o.addOption(null, PARALLEL_ALTERS, true,
+                "execute alterscripts with <depends-on> concurrently, at most N at a time");
+        o.addOption(null, ROLLOUT_WAVES, true, "apply to database instances in waves, e.g. 1,10%,rest; "
+                + "the first wave sequentially, the next ones concurrently");
+        o.addOption(null, ROLLOUT_THRESHOLD, true,
+                "rollout: stop before the next wave when some alterscript took longer (ms)");
+        o.addOption(null, FLEET, true, "apply alterscripts to many database configurations "
+                + "(comma separated files and directories); all arguments are alterscripts");
+        o.addOption(null, FLEET_PARALLEL, true, "fleet: apply at most N database configurations at a time (default 4)");
+        o.addOption(null, LAZY_PARSE, false,
+                "incremental mode: fully parse (and validate) only alterscripts which are not applied yet");
+        o.addOption(null, SKIP_APPLIED_PKG, false,
+                "incremental mode: skip databases where the same alterscripts (source hash) were already applied");
+        o.addOption(null, DAEMON, true, "run as daemon listening on local TCP port; keeps parsed alterscripts "
+                + "and database connections between invocations");
+        o.addOption(null, CLIENT, true, "send this invocation to daemon listening on local TCP port");
+        o.addOption(null, DIR_INDEX, true, "index file of hashes of files in directories of alterscripts; "
+                + "unchanged files (path, size, modification time) are not read again");
+        o.addOption(null, GIT_STATE, true, "git sources (git:/repo@rev:path): load only alterscripts changed "
+                + "since the commit recorded in this file by the last successful run");
+        o.addOption(null, URL_CACHE, true, "directory of local cache of alterscripts loaded over HTTP(S); "
+                + "unchanged ones (ETag, Last-Modified) are not downloaded again");
+        o.addOption(null, WATCH, false, "apply alterscripts, then watch their directories and apply new "
+                + "and changed ones (including datafiles) until interrupted");
+        return o;
+    }
+
+    /**
+     * Run from command line, but without exiting the JVM; used by {@link #main(String[])} and by daemon.
+     *
+     * @param args commandline arguments
+     * @param out  standard output
+     * @param err  standard error
+     * @return exit code
+     */
+    static int run(String[] args, PrintStream out, PrintStream err) {
+        return run(args, out, err, null, null);
+    }
+
+    /**
+     * Run from command line with resources kept by daemon between invocations.
+     *
+     * @param args  commandline arguments
+     * @param out   standard output
+     * @param err   standard error
+     * @param cache cache of loaded alterscripts; null = no cache
+     * @param pool  pool of idle connections; null = connections are really closed
+     * @return exit code
+     */
+    static int run(String[] args, PrintStream out, PrintStream err, @Nullable final AlterCache cache,
+                   @Nullable final ConnectionPool pool) {
+        final Options o = createOptions();
 
         boolean ignfail = false;
         boolean printstacktrace = false;
@@ -831,8 +2622,15 @@ public class ApplyAlter {
             cmd = parser.parse(o, args);
 
             if (cmd.hasOption("V")) {
-                printVersion();
-                System.exit(0);
+                printVersion(out);
+                return 0;
+            }
+            if (cmd.hasOption(CLIENT)) {
+                return ApplyAlterDaemon.runClient(Integer.parseInt(cmd.getOptionValue(CLIENT)), args, out, err);
+            }
+            if (cmd.hasOption(DAEMON)) {
+                new ApplyAlterDaemon(Integer.parseInt(cmd.getOptionValue(DAEMON))).serve(out);
+                return 0;
             }
 
             username = cmd.getOptionValue(USER_NAME);
@@ -854,6 +2652,10 @@ public class ApplyAlter {
             if (cmd.hasOption(INC_MODE) && cmd.hasOption(NONINC_MODE)) {
                 throw new UnrecognizedOptionException("Options `-s' and `-S' are mutually exclusive ");
             }
+            if (cmd.hasOption(STREAMING) && cmd.hasOption(ROLLOUT_WAVES)) {
+                throw new UnrecognizedOptionException("Options `--" + STREAMING + "' and `--" + ROLLOUT_WAVES
+                        + "' are mutually exclusive ");
+            }
 
             ReportLevel quietLevel = null;
             try {
@@ -867,23 +2669,30 @@ public class ApplyAlter {
 
 
             String[] a = cmd.getArgs();
-            if (a.length < 1) {
-                throw new UnrecognizedOptionException("Not enough parameters (dbconfig.xml alterscripts...)");
-            }
-            configFile = a[0];
+            if (cmd.hasOption(FLEET)) {
+                //configurations are given by option
+                configFile = null;
+                param = a;
+            } else {
+                if (a.length < 1) {
+                    throw new UnrecognizedOptionException("Not enough parameters (dbconfig.xml alterscripts...)");
+                }
+                configFile = a[0];
 
-            // prepare arguments
-            param = new String[a.length - 1];
-            System.arraycopy(a, 1, param, 0, a.length - 1);
+                // prepare arguments
+                param = new String[a.length - 1];
+                System.arraycopy(a, 1, param, 0, a.length - 1);
+            }
 
-            rctx = PrintWriterRunContext.createInstance(isIncrimental, rnmd, quietLevel);
+            rctx = PrintWriterRunContext.createInstance(out, err, isIncrimental, rnmd, quietLevel);
 
             String structuredLogFile = cmd.getOptionValue(STRUCTURED_LOG);
-            if (structuredLogFile != null) {
+            //fleet: every database configuration has its own structured log
+            if (structuredLogFile != null && configFile != null) {
                 final OutputStream fos = StructuredLog.openLogFile(rctx, structuredLogFile);
                 if (fos == null) {
                     //exit
-                    System.exit(-1);
+                    return -1;
                 } else {
                     //create context
                     rctx = StructuredLog.create(fos, rctx);
@@ -901,31 +2710,60 @@ public class ApplyAlter {
             );
 
         } catch (UnrecognizedOptionException e) {
-            System.out.println(e.getMessage());
+            out.println(e.getMessage());
             final HelpFormatter helpFormatter = new HelpFormatter();
             helpFormatter.setWidth(114);
-            helpFormatter.printHelp("applyalter [options] <dbconfig.xml> (alter.xml|alter.zip) ...", o, false);
-            printVersion();
-            System.exit(-2);
-            return;
+            final PrintWriter pw = new PrintWriter(out);
+            helpFormatter.printHelp(pw, 114, "applyalter [options] <dbconfig.xml> (alter.xml|alter.zip|dir|git:repo@rev:path) ...\n"
+                            + "       applyalter [options] --" + FLEET + " <configs> (alter.xml|alter.zip|dir) ...",
+                    null, o, helpFormatter.getLeftPadding(), helpFormatter.getDescPadding(), null, false);
+            pw.flush();
+            printVersion(out);
+            return -2;
         } catch (Throwable e) {
             IOUtils.closeQuietly(rctx);
             if (e instanceof ApplyAlterException && (!printstacktrace || ignfail))
-                ((ApplyAlterException) e).printMessages(System.err);
+                ((ApplyAlterException) e).printMessages(err);
             else
-                e.printStackTrace(System.err);
-            System.exit(-1);
-            return;
+                e.printStackTrace(err);
+            return -1;
         }
 
         try {
             final boolean useLogTable = !cmd.hasOption(NO_LOG_TABLE);
             final String env = cmd.getOptionValue(ENVIRONMENT_OPT);
 
+            if (configFile == null) {
+                final boolean ignoreFailures = ignfail;
+                final String user = username;
+                final FleetRunner fleet = new FleetRunner(rctx, new FleetRunner.Factory() {
+                    public ApplyAlter create(String config, RunContext runContext) {
+                        //alterscripts are validated by the fleet runner, just once
+                        final ApplyAlter applyAlter = new ApplyAlter(config, runContext, ignoreFailures, user,
+                                false, useLogTable, env);
+                        configure(applyAlter, cmd);
+                        applyAlter.setAlterCache(cache);
+                        applyAlter.setConnectionPool(pool);
+                        return applyAlter;
+                    }
+                }, Integer.parseInt(cmd.getOptionValue(FLEET_PARALLEL, "4")), validateXml,
+                        cmd.getOptionValue(STRUCTURED_LOG));
+                boolean failed = false;
+                for (FleetRunner.Result r : fleet.run(FleetRunner.findConfigs(cmd.getOptionValue(FLEET)), param)) {
+                    failed |= r.getResult() != ReportedResult.FINISHED;
+                }
+                return failed ? -1 : 0;
+            }
+
             ApplyAlter applyAlter = new ApplyAlter(configFile, rctx, ignfail, username, validateXml, useLogTable, env);
-            applyAlter.setUnknownInstancesIgnored(cmd.hasOption(IGNORE_UNKNOWN_INSTANCES));
+            configure(applyAlter, cmd);
+            applyAlter.setAlterCache(cache);
+            applyAlter.setConnectionPool(pool);
 
-            applyAlter.applyInternal();
+            if (cmd.hasOption(WATCH)) {
+                new AlterWatcher(applyAlter, rctx, param).run();
+                return 0;
+            }
             final Alters alters = applyAlter.apply(validateXml, param);
             if (RunMode.LOOK.equals(rnmd)) {
                 rctx.report(MAIN, "Unapplied alters: \n%s", applyAlter.getUnappliedAlters());
@@ -935,31 +2773,64 @@ public class ApplyAlter {
             final String queryPkgFile = cmd.getOptionValue(QUERY_PKG);
             if (queryPkgFile != null && applyAlter.pkgLogTable != null) {
                 String queryPkgHash = cmd.getOptionValue(QUERY_PKG_HASH);
-                if (queryPkgHash == null && alters.getAlters().size() > 0) {
+                if (queryPkgHash == null && alters.getCount() > 0) {
                     //--query-pkg-hash not present, but there are some alterscripts --> use their hash
                     queryPkgHash = alters.getSourceHash();
                 }
-                applyAlter.pkgLogTable.queryAndWrite(queryPkgFile, queryPkgHash);
+                applyAlter.pkgLogTable.queryAndWrite(queryPkgFile, queryPkgHash, out);
             }
 
         } catch (Throwable e) {
             rctx.report(ERROR, "execution failed: %s", e.getMessage());
             IOUtils.closeQuietly(rctx);
             if (e instanceof ApplyAlterException && (!printstacktrace || ignfail))
-                ((ApplyAlterException) e).printMessages(System.err);
+                ((ApplyAlterException) e).printMessages(err);
             else
-                e.printStackTrace(System.err);
-            System.exit(-1);
+                e.printStackTrace(err);
+            return -1;
         } finally {
             IOUtils.closeQuietly(rctx);
         }
+        return 0;
+    }
+
+    /**
+     * Apply command line options to the instance.
+     */
+    private static void configure(ApplyAlter applyAlter, CommandLine cmd) {
+        applyAlter.setUnknownInstancesIgnored(cmd.hasOption(IGNORE_UNKNOWN_INSTANCES));
+        applyAlter.setCatalogSnapshotUsed(cmd.hasOption(CATALOG_SNAPSHOT));
+        applyAlter.setAppliedPkgSkipped(cmd.hasOption(SKIP_APPLIED_PKG));
+        applyAlter.setLazyParse(cmd.hasOption(LAZY_PARSE));
+        applyAlter.setSqlBatched(cmd.hasOption(BATCH_SQL));
+        applyAlter.setStreaming(cmd.hasOption(STREAMING));
+        applyAlter.setConnectAll(cmd.hasOption(CONNECT_ALL));
+        if (cmd.hasOption(CONNECT_TIMEOUT)) {
+            applyAlter.setConnectTimeout(Integer.parseInt(cmd.getOptionValue(CONNECT_TIMEOUT)));
+        }
+        if (cmd.hasOption(GROUP_COMMIT)) {
+            applyAlter.setGroupCommitSize(Integer.parseInt(cmd.getOptionValue(GROUP_COMMIT)));
+        }
+        if (cmd.hasOption(GROUP_COMMIT_TIME)) {
+            applyAlter.setGroupCommitTime(Long.parseLong(cmd.getOptionValue(GROUP_COMMIT_TIME)));
+        }
+        if (cmd.hasOption(PARALLEL_ALTERS)) {
+            applyAlter.setParallelAlters(Integer.parseInt(cmd.getOptionValue(PARALLEL_ALTERS)));
+        }
+        applyAlter.setRolloutWaves(cmd.getOptionValue(ROLLOUT_WAVES));
+        applyAlter.setDirectoryIndex(cmd.getOptionValue(DIR_INDEX));
+        applyAlter.setGitState(cmd.getOptionValue(GIT_STATE));
+        applyAlter.setUrlCache(cmd.getOptionValue(URL_CACHE));
+        if (cmd.hasOption(ROLLOUT_THRESHOLD)) {
+            applyAlter.setRolloutThreshold(Long.parseLong(cmd.getOptionValue(ROLLOUT_THRESHOLD)));
+        }
     }
 
-    private static void printVersion() {
-        System.out.println();
+    private static void printVersion(PrintStream out) {
+        out.println();
         try {
             final URL jarUrl = ApplyAlter.class.getProtectionDomain().getCodeSource().getLocation();
-            System.out.println(jarUrl);
+            out.println(jarUrl);
             Manifest man = new JarFile(jarUrl.getFile()).getManifest();
             final Attributes a = man.getMainAttributes();
             List<String> keys = new ArrayList<String>();
@@ -970,10 +2841,10 @@ public class ApplyAlter {
             }
             Collections.sort(keys);
             for (String key : keys) {
-                System.out.printf("%s: %s%n", key, a.getValue(key));
+                out.printf("%s: %s%n", key, a.getValue(key));
             }
         } catch (Exception e) {
-            System.out.printf("Unknown version (%s)%n", e);
+            out.printf("Unknown version (%s)%n", e);
         }
     }
 
@@ -0,0 +1,386 @@
+package ch.ips.g2.applyalter;
+
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Daemon mode: long running process listening on local TCP port, see {@link ApplyAlter#DAEMON}. Every request is
+ * one command line invocation, executed by {@link ApplyAlter#run(String[], PrintStream, PrintStream)}; between
+ * requests, the daemon keeps compiled XSD, configured XStream, loaded alterscripts ({@link AlterCache}) and open
+ * database connections ({@link ConnectionPool}).
+ * <p/>
+ * Requests are authenticated by random token written by the daemon to a file readable only by its owner
+ * (see {@link #getTokenFile(File, int)}), so other local users cannot use the daemon's database credentials.
+ * <p/>
+ * Protocol (UTF-8 lines): client sends the token, number of arguments and then the arguments, one per line;
+ * daemon sends output lines prefixed by <code>O </code> (standard output) or <code>E </code> (standard error)
+ * and finally <code>X </code> with the exit code. Client is {@link #runClient(int, String[], PrintStream, PrintStream)}.
+ */
+class ApplyAlterDaemon {
+    private static final String CHARSET = "UTF-8";
+    /**
+     * Options with file name argument; relative names are resolved by client.
+     */
+    private static final Set<String> FILE_OPTIONS = new HashSet<String>(Arrays.asList(
+            ApplyAlter.STRUCTURED_LOG, ApplyAlter.QUERY_PKG, ApplyAlter.FLEET, ApplyAlter.DIR_INDEX,
+            ApplyAlter.GIT_STATE, ApplyAlter.URL_CACHE));
+    private static final int MAX_CACHED_BUNDLES = 16;
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+
+    private final int port;
+    private final File tokenDir;
+    private volatile ServerSocket serverSocket;
+    private volatile String token;
+    private volatile AlterCache alterCache;
+    private volatile ConnectionPool connectionPool;
+
+    /**
+     * @param port local TCP port; 0 = any free port
+     */
+    public ApplyAlterDaemon(int port) {
+        this(port, getDefaultTokenDir());
+    }
+
+    /**
+     * @param port     local TCP port; 0 = any free port
+     * @param tokenDir directory of token files
+     */
+    ApplyAlterDaemon(int port, File tokenDir) {
+        this.port = port;
+        this.tokenDir = tokenDir;
+    }
+
+    /**
+     * Default directory of token files: <code>~/.applyalter</code>.
+     */
+    static File getDefaultTokenDir() {
+        return new File(System.getProperty("user.home"), ".applyalter");
+    }
+
+    /**
+     * Token file of daemon listening on the port.
+     */
+    static File getTokenFile(File tokenDir, int port) {
+        return new File(tokenDir, "daemon-" + port + ".token");
+    }
+
+    /**
+     * Serve requests until {@link #stop()}.
+     *
+     * @param out output for daemon messages
+     */
+    public void serve(PrintStream out) throws IOException {
+        final ServerSocket ss = new ServerSocket(port, 50, InetAddress.getByName(null));
+        final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "applyalter-daemon");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final File tokenFile = getTokenFile(tokenDir, ss.getLocalPort());
+        try {
+            token = createToken();
+            writeToken(tokenFile, token);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(ss);
+            throw e;
+        }
+        final ConnectionPool pool = new ConnectionPool(MAX_IDLE_CONNECTIONS);
+        alterCache = new AlterCache(MAX_CACHED_BUNDLES);
+        connectionPool = pool;
+        serverSocket = ss;
+        out.printf("applyalter daemon listening on %s:%d%n", ss.getInetAddress().getHostAddress(), ss.getLocalPort());
+        out.flush();
+        try {
+            while (!ss.isClosed()) {
+                final Socket s;
+                try {
+                    s = ss.accept();
+                } catch (IOException e) {
+                    if (ss.isClosed()) {
+                        break;
+                    }
+                    throw e;
+                }
+                executor.execute(new Runnable() {
+                    public void run() {
+                        handle(s);
+                    }
+                });
+            }
+        } finally {
+            IOUtils.closeQuietly(ss);
+            FileUtils.deleteQuietly(tokenFile);
+            executor.shutdownNow();
+            alterCache = null;
+            connectionPool = null;
+            pool.closeAll();
+        }
+    }
+
+    /**
+     * Local port the daemon is listening on; -1 = not listening yet.
+     */
+    public int getLocalPort() {
+        final ServerSocket ss = serverSocket;
+        return ss == null ? -1 : ss.getLocalPort();
+    }
+
+    /**
+     * Stop accepting requests; running requests are interrupted.
+     */
+    public void stop() {
+        IOUtils.closeQuietly(serverSocket);
+    }
+
+    private void handle(Socket s) {
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), CHARSET));
+            final Writer writer = new OutputStreamWriter(s.getOutputStream(), CHARSET);
+            final String clientToken = reader.readLine();
+            if (clientToken == null || !MessageDigest.isEqual(clientToken.getBytes(CHARSET), token.getBytes(CHARSET))) {
+                writer.write("E applyalter daemon: invalid token\nX -1\n");
+                writer.flush();
+                return;
+            }
+            final String count = reader.readLine();
+            if (count == null) {
+                return;
+            }
+            final String[] args = new String[Integer.parseInt(count.trim())];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = reader.readLine();
+            }
+            final PrintStream out = new PrintStream(new LineOutputStream(writer, 'O'), true, CHARSET);
+            final PrintStream err = new PrintStream(new LineOutputStream(writer, 'E'), true, CHARSET);
+            int code;
+            try {
+                code = ApplyAlter.run(args, out, err, alterCache, connectionPool);
+            } catch (RuntimeException e) {
+                e.printStackTrace(err);
+                code = -1;
+            }
+            out.close();
+            err.close();
+            synchronized (writer) {
+                writer.write("X " + code + "\n");
+                writer.flush();
+            }
+        } catch (Exception e) {
+            //client is gone, nothing to report to
+        } finally {
+            IOUtils.closeQuietly(s);
+        }
+    }
+
+    /**
+     * Send the invocation to daemon and write its output.
+     *
+     * @param port daemon port
+     * @param args command line arguments, including {@link ApplyAlter#CLIENT}
+     * @param out  standard output
+     * @param err  standard error
+     * @return exit code of the invocation
+     */
+    public static int runClient(int port, String[] args, PrintStream out, PrintStream err) throws IOException {
+        return runClient(port, getDefaultTokenDir(), args, out, err);
+    }
+
+    static int runClient(int port, File tokenDir, String[] args, PrintStream out, PrintStream err)
+            throws IOException {
+        final List<String> request = prepareArgs(ApplyAlter.createOptions(), args, new File("."));
+        final File tokenFile = getTokenFile(tokenDir, port);
+        final String clientToken;
+        try {
+            clientToken = FileUtils.readFileToString(tokenFile, CHARSET).trim();
+        } catch (IOException e) {
+            err.println("cannot read applyalter daemon token " + tokenFile + ": " + e.getMessage());
+            return -1;
+        }
+        final Socket s = new Socket(InetAddress.getByName(null), port);
+        try {
+            final Writer writer = new OutputStreamWriter(s.getOutputStream(), CHARSET);
+            writer.write(clientToken + "\n");
+            writer.write(request.size() + "\n");
+            for (String i : request) {
+                writer.write(i + "\n");
+            }
+            writer.flush();
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), CHARSET));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("O ")) {
+                    out.println(line.substring(2));
+                } else if (line.startsWith("E ")) {
+                    err.println(line.substring(2));
+                } else if (line.startsWith("X ")) {
+                    return Integer.parseInt(line.substring(2).trim());
+                }
+            }
+            err.println("applyalter daemon closed the connection");
+            return -1;
+        } finally {
+            out.flush();
+            err.flush();
+            IOUtils.closeQuietly(s);
+        }
+    }
+
+    private static String createToken() {
+        final byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        return AlterLoader.bytes2hex(bytes);
+    }
+
+    /**
+     * Write token to file readable only by the owner (the directory is created the same way).
+     */
+    private static void writeToken(File file, String token) throws IOException {
+        final Path path = file.toPath();
+        final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        if (posix) {
+            Files.createDirectories(path.getParent(),
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else {
+            Files.createDirectories(path.getParent());
+        }
+        Files.deleteIfExists(path);
+        if (posix) {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(path);
+            if (!file.setReadable(false, false) || !file.setReadable(true, true)) {
+                throw new IOException("cannot restrict permissions of " + file);
+            }
+        }
+        Files.write(path, token.getBytes(CHARSET));
+    }
+
+    /**
+     * Arguments for daemon: {@link ApplyAlter#CLIENT} is removed, file names are resolved against client working
+     * directory (daemon might run elsewhere).
+     */
+    static List<String> prepareArgs(Options options, String[] args, File workDir) {
+        final List<String> result = new ArrayList<String>(args.length);
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (!arg.startsWith("-") || arg.length() == 1) {
+                result.add(resolve(workDir, arg));
+                continue;
+            }
+            final String name = arg.replaceFirst("^--?", "");
+            final int eq = name.indexOf('=');
+            final Option option = options.getOption(eq < 0 ? name : name.substring(0, eq));
+            final String key = option == null ? null
+                    : option.getOpt() != null ? option.getOpt() : option.getLongOpt();
+            if (option == null || !option.hasArg()) {
+                result.add(arg);
+            } else if (ApplyAlter.CLIENT.equals(key)) {
+                if (eq < 0) {
+                    i++;
+                }
+            } else if (eq >= 0) {
+                final String value = name.substring(eq + 1);
+                result.add(arg.substring(0, arg.length() - value.length())
+                        + (FILE_OPTIONS.contains(key) ? resolveList(workDir, value) : value));
+            } else {
+                result.add(arg);
+                if (i + 1 < args.length) {
+                    final String value = args[++i];
+                    result.add(FILE_OPTIONS.contains(key) ? resolveList(workDir, value) : value);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String resolveList(File workDir, String value) {
+        final StringBuilder sb = new StringBuilder();
+        for (String i : value.split(",", -1)) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(resolve(workDir, i.trim()));
+        }
+        return sb.toString();
+    }
+
+    private static String resolve(File workDir, String fileName) {
+        if (fileName.length() == 0 || "-".equals(fileName) || fileName.contains("://")
+                || GitSource.isGitSpec(fileName) || new File(fileName).isAbsolute()) {
+            return fileName;
+        }
+        return new File(workDir.getAbsoluteFile(), fileName).getPath();
+    }
+
+    /**
+     * Sends every written line to the client, with prefix.
+     */
+    private static class LineOutputStream extends OutputStream {
+        private final Writer writer;
+        private final char prefix;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LineOutputStream(Writer writer, char prefix) {
+            this.writer = writer;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (b == '\n') {
+                sendLine();
+            } else if (b != '\r') {
+                line.write(b);
+            }
+        }
+
+        private void sendLine() throws IOException {
+            synchronized (writer) {
+                writer.write(prefix);
+                writer.write(' ');
+                writer.write(line.toString(CHARSET));
+                writer.write('\n');
+                writer.flush();
+            }
+            line.reset();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (line.size() > 0) {
+                sendLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package ch.ips.g2.applyalter;
+
+import com.google.common.collect.Multimap;
+
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Embeddable engine: applies alterscripts inside the caller's JVM (for example at service startup), without
+ * command line. The engine is thread safe and it can be shared: it prepares the configured XStream and the compiled
+ * XSD once (both immutable), every {@link Session} has its own database configuration, run context and
+ * connections (login timeout included; no daemon pool or alterscript cache), so sessions can run concurrently.
+ * <pre>
+ * Session s = engine.createSession(config, runContext, false, "app", true, null);
+ * s.setDataSource("main", dataSource);
+ * Result r = s.apply("alters.zip");
+ * </pre>
+ */
+public class ApplyAlterEngine {
+    private final boolean validateXml;
+
+    /**
+     * Create the engine; XStream is configured and XSD compiled immediately.
+     *
+     * @param validateXml validate alterscripts by XSD
+     * @throws ApplyAlterException XSD cannot be compiled
+     */
+    public ApplyAlterEngine(boolean validateXml) throws ApplyAlterException {
+        this.validateXml = validateXml;
+        ApplyAlter.getSharedXStream();
+        if (validateXml) {
+            XsdValidatorUtil.readXsd(new InternalRunContext());
+        }
+    }
+
+    /**
+     * Create session for database configuration file.
+     *
+     * @param configFile     file with database configuration
+     * @param runContext     run context of the session (run mode, incremental mode, reporting)
+     * @param ignoreFailures ignore all failures?
+     * @param username       username used for logging
+     * @param useLogTable    use log tables
+     * @param environment    environment; null = from configuration
+     * @return new session
+     * @throws ApplyAlterException configuration cannot be loaded
+     */
+    public Session createSession(String configFile, RunContext runContext, boolean ignoreFailures,
+                                 String username, boolean useLogTable, @Nullable String environment)
+            throws ApplyAlterException {
+        return createSession(ApplyAlter.parseConfiguration(configFile), runContext, ignoreFailures, username,
+                useLogTable, environment);
+    }
+
+    /**
+     * Create session for database configuration made by caller. The configuration is copied, so it can be
+     * used for more sessions.
+     *
+     * @param config         database configuration
+     * @param runContext     run context of the session (run mode, incremental mode, reporting)
+     * @param ignoreFailures ignore all failures?
+     * @param username       username used for logging
+     * @param useLogTable    use log tables
+     * @param environment    environment; null = from configuration
+     * @return new session
+     */
+    public Session createSession(DbConfigFile config, RunContext runContext, boolean ignoreFailures,
+                                 String username, boolean useLogTable, @Nullable String environment) {
+        final DbConfigFile copy = new DbConfigFile();
+        copy.environment = config.environment;
+        copy.placeholders = config.placeholders;
+        for (DbInstance d : config.instances) {
+            copy.instances.add(d.copyForWorker());
+        }
+        return new Session(new ApplyAlter(copy, runContext, ignoreFailures, username, validateXml, useLogTable,
+                environment));
+    }
+
+    /**
+     * One application of alterscripts to one database configuration. Not thread safe and not reusable:
+     * {@link #apply(String...)} can be called only once.
+     */
+    public class Session {
+        private final ApplyAlter applyAlter;
+        private boolean used;
+
+        Session(ApplyAlter applyAlter) {
+            this.applyAlter = applyAlter;
+        }
+
+        /**
+         * The underlying instance, for settings not covered by session (group commit, catalog snapshot...).
+         */
+        public ApplyAlter getApplyAlter() {
+            return applyAlter;
+        }
+
+        /**
+         * Take connections to database instance from data source, see {@link DbInstance#setDataSource(DataSource)}.
+         *
+         * @throws ApplyAlterException unknown database instance
+         */
+        public void setDataSource(String instanceId, DataSource dataSource) throws ApplyAlterException {
+            getInstance(instanceId).setDataSource(dataSource);
+        }
+
+        /**
+         * Use connection owned by caller for database instance, see {@link DbInstance#setConnection(Connection)}.
+         *
+         * @throws ApplyAlterException unknown database instance
+         */
+        public void setConnection(String instanceId, Connection connection) throws ApplyAlterException {
+            getInstance(instanceId).setConnection(connection);
+        }
+
+        private DbInstance getInstance(String instanceId) {
+            for (DbInstance d : applyAlter.db.getEntries()) {
+                if (instanceId.equals(d.getId())) {
+                    return d;
+                }
+            }
+            throw new ApplyAlterException("Unknown database instance %s", instanceId);
+        }
+
+        /**
+         * Apply alterscripts (.xml/.zip). Failure of alterscripts is returned in the result, not thrown.
+         *
+         * @param alterFiles files with XML serialized alter scripts
+         * @return result
+         */
+        public Result apply(String... alterFiles) {
+            if (used) {
+                throw new IllegalStateException("Session has been already used");
+            }
+            used = true;
+            final long start = System.currentTimeMillis();
+            Alters alters = null;
+            ApplyAlterException failure = null;
+            try {
+                alters = applyAlter.apply(validateXml, alterFiles);
+            } catch (ApplyAlterException e) {
+                failure = e;
+            } finally {
+                applyAlter.db.closeConnections();
+            }
+            return new Result(alters, failure, applyAlter.unapplied, applyAlter.getAlterDurations(),
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Result of {@link Session#apply(String...)}.
+     */
+    public static class Result {
+        @Nullable
+        private final String sourceHash;
+        private final int alterCount;
+        @Nullable
+        private final ApplyAlterException failure;
+        private final Map<String, List<String>> unapplied;
+        private final Map<String, Long> durations;
+        private final long time;
+
+        Result(@Nullable Alters alters, @Nullable ApplyAlterException failure, Multimap<String, String> unapplied,
+               Map<String, Long> durations, long time) {
+            this.sourceHash = alters == null ? null : alters.getSourceHash();
+            this.alterCount = alters == null ? 0 : alters.getCount();
+            this.failure = failure;
+            final Map<String, List<String>> u = new LinkedHashMap<String, List<String>>();
+            for (Map.Entry<String, Collection<String>> e : unapplied.asMap().entrySet()) {
+                u.put(e.getKey(), Collections.unmodifiableList(new ArrayList<String>(e.getValue())));
+            }
+            this.unapplied = Collections.unmodifiableMap(u);
+            this.durations = Collections.unmodifiableMap(new TreeMap<String, Long>(durations));
+            this.time = time;
+        }
+
+        /**
+         * Were all alterscripts applied (or checked, according to run mode) without failure?
+         */
+        public boolean isSuccess() {
+            return failure == null;
+        }
+
+        /**
+         * Failure of alterscripts (all failures when failures are ignored); null = success.
+         */
+        @Nullable
+        public ApplyAlterException getFailure() {
+            return failure;
+        }
+
+        /**
+         * SHA1 hash of the alterscripts; null when they were not loaded.
+         */
+        @Nullable
+        public String getSourceHash() {
+            return sourceHash;
+        }
+
+        /**
+         * Number of loaded alterscripts.
+         */
+        public int getAlterCount() {
+            return alterCount;
+        }
+
+        /**
+         * Alterscripts found unapplied (run mode {@link RunMode#LOOK}), by database instance id.
+         */
+        public Map<String, List<String>> getUnapplied() {
+            return unapplied;
+        }
+
+        /**
+         * Maximum duration of every applied alterscript (milliseconds), by id.
+         */
+        public Map<String, Long> getDurations() {
+            return durations;
+        }
+
+        /**
+         * Duration of the whole session (milliseconds).
+         */
+        public long getTime() {
+            return time;
+        }
+    }
+}
@@ -49,6 +49,14 @@ public class CSV extends AbstractStatement {
         this.step = step;
     }
 
+    /**
+     * CSV import with step commits after every step.
+     */
+    @Override
+    public boolean isSelfCommitting() {
+        return step != null && step > 0;
+    }
+
     public CSV() {
         super();
     }
@@ -0,0 +1,151 @@
+package ch.ips.g2.applyalter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory copy of database catalog for single schema, used to answer {@link Check}s without querying
+ * the database again and again. It is loaded in bulk by {@link DbInstance#loadCatalogSnapshot} and dropped
+ * by {@link DbInstance#invalidateCatalogSnapshots()} whenever an alterscript could have changed the catalog.
+ * <p/>
+ * Some object types cannot be loaded for whole schema at once (for example indexes via JDBC metadata);
+ * these are loaded per table, see {@link #isLoaded(CheckType, String)}.
+ * <p/>
+ * All names are compared case-insensitively.
+ */
+class CatalogSnapshot {
+    /**
+     * Table name used for objects not bound to any table (tables, views, routines...).
+     */
+    static final String NO_TABLE = "";
+
+    private final String schema;
+    /**
+     * Object type -&gt; object name -&gt; names of tables containing such object.
+     */
+    private final Map<CheckType, Map<String, Set<String>>> objects =
+            new EnumMap<CheckType, Map<String, Set<String>>>(CheckType.class);
+    /**
+     * Object types loaded for the whole schema.
+     */
+    private final Set<CheckType> loadedTypes = EnumSet.noneOf(CheckType.class);
+    /**
+     * Object types loaded only for some tables.
+     */
+    private final Map<CheckType, Set<String>> loadedTables = new EnumMap<CheckType, Set<String>>(CheckType.class);
+    private int size;
+
+    CatalogSnapshot(@Nonnull String schema) {
+        this.schema = schema;
+    }
+
+    public String getSchema() {
+        return schema;
+    }
+
+    /**
+     * Number of objects in this snapshot.
+     */
+    public int size() {
+        return size;
+    }
+
+    private static String normalize(@Nullable String name) {
+        return name == null ? NO_TABLE : name.toUpperCase();
+    }
+
+    /**
+     * Add object to snapshot.
+     *
+     * @param type  object type
+     * @param table table containing the object; null for objects not bound to table
+     * @param name  object name
+     */
+    public void add(@Nonnull CheckType type, @Nullable String table, @Nonnull String name) {
+        Map<String, Set<String>> names = objects.get(type);
+        if (names == null) {
+            names = new HashMap<String, Set<String>>();
+            objects.put(type, names);
+        }
+        final String key = normalize(name);
+        Set<String> tables = names.get(key);
+        if (tables == null) {
+            tables = new HashSet<String>(2);
+            names.put(key, tables);
+        }
+        if (tables.add(normalize(table))) {
+            size++;
+        }
+    }
+
+    /**
+     * Mark object type as completely loaded (for all tables).
+     */
+    public void markLoaded(@Nonnull CheckType type) {
+        loadedTypes.add(type);
+    }
+
+    /**
+     * Mark object type as loaded for single table.
+     *
+     * @param table table name; null means the whole schema
+     */
+    public void markLoaded(@Nonnull CheckType type, @Nullable String table) {
+        if (table == null) {
+            markLoaded(type);
+            return;
+        }
+        Set<String> tables = loadedTables.get(type);
+        if (tables == null) {
+            tables = new HashSet<String>();
+            loadedTables.put(type, tables);
+        }
+        tables.add(normalize(table));
+    }
+
+    /**
+     * Is the snapshot able to answer check of this type?
+     *
+     * @param type  object type
+     * @param table table name; null means the whole schema
+     * @return true if loaded
+     */
+    public boolean isLoaded(@Nonnull CheckType type, @Nullable String table) {
+        if (loadedTypes.contains(type)) {
+            return true;
+        }
+        final Set<String> tables = loadedTables.get(type);
+        return table != null && tables != null && tables.contains(normalize(table));
+    }
+
+    /**
+     * Does the object exist?
+     *
+     * @param type  object type
+     * @param table table name; null means "any table", objects not bound to table match every table name
+     * @param name  object name
+     * @return true if object exists
+     */
+    public boolean contains(@Nonnull CheckType type, @Nullable String table, @Nonnull String name) {
+        final Map<String, Set<String>> names = objects.get(type);
+        if (names == null) {
+            return false;
+        }
+        final Set<String> tables = names.get(normalize(name));
+        if (tables == null) {
+            return false;
+        }
+        return table == null || tables.contains(NO_TABLE) || tables.contains(normalize(table));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("catalog snapshot of %s (%d objects)", schema, size);
+    }
+}
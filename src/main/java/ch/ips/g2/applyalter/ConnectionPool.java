@@ -0,0 +1,107 @@
+package ch.ips.g2.applyalter;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of idle database connections kept between invocations of daemon, see {@link ApplyAlterDaemon}.
+ * Connections are returned rolled back, with session defaults (schema, isolation, timeouts) restored by
+ * {@link DbInstance#closeConnection()}; connection whose session cannot be restored is closed instead. Thread safe.
+ */
+class ConnectionPool {
+    /**
+     * Timeout of validity check of idle connection, in seconds.
+     */
+    private static final int VALIDATION_TIMEOUT = 5;
+
+    private final Map<String, Deque<Connection>> idle = new HashMap<String, Deque<Connection>>();
+    private final int maxIdle;
+
+    /**
+     * @param maxIdle maximum number of idle connections per database (url and properties)
+     */
+    public ConnectionPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Take idle connection, if there is a valid one.
+     *
+     * @param key database key (url and properties)
+     * @return connection; null = none, caller must open a new one
+     */
+    public Connection take(String key) {
+        while (true) {
+            final Connection c;
+            synchronized (idle) {
+                final Deque<Connection> connections = idle.get(key);
+                c = connections == null ? null : connections.pollFirst();
+            }
+            if (c == null) {
+                return null;
+            }
+            try {
+                if (c.isValid(VALIDATION_TIMEOUT)) {
+                    return c;
+                }
+            } catch (SQLException e) {
+                //not valid
+            }
+            close(c);
+        }
+    }
+
+    /**
+     * Return connection to the pool; it is rolled back first. Connection which cannot be rolled back
+     * or exceeds {@link #maxIdle} is closed.
+     *
+     * @param key database key (url and properties)
+     * @param c   connection
+     */
+    public void release(String key, Connection c) {
+        try {
+            c.rollback();
+        } catch (SQLException e) {
+            close(c);
+            return;
+        }
+        synchronized (idle) {
+            Deque<Connection> connections = idle.get(key);
+            if (connections == null) {
+                connections = new ArrayDeque<Connection>();
+                idle.put(key, connections);
+            }
+            if (connections.size() < maxIdle) {
+                connections.addFirst(c);
+                return;
+            }
+        }
+        close(c);
+    }
+
+    /**
+     * Close all idle connections.
+     */
+    public void closeAll() {
+        synchronized (idle) {
+            for (Deque<Connection> connections : idle.values()) {
+                for (Connection c : connections) {
+                    close(c);
+                }
+            }
+            idle.clear();
+        }
+    }
+
+    private static void close(Connection c) {
+        try {
+            c.close();
+        } catch (SQLException e) {
+            //ignore
+        }
+    }
+}
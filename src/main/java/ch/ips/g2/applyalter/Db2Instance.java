@@ -114,6 +114,44 @@ public class Db2Instance extends DbInstance {
         }
     }
 
+    protected String makeSnapshotSql(CheckType cht) {
+        if (cht.getExtra() != null)
+            return String.format("select %sname, %s from syscat.%s where %sschema=?",
+                    cht.getAbbr(), cht.getExtra(), cht.getTbl(), cht.getAbbr());
+        return String.format("select %sname from syscat.%s where %sschema=?",
+                cht.getAbbr(), cht.getTbl(), cht.getAbbr());
+    }
+
+    /**
+     * Load all object types from syscat at once: one query per {@link CheckType}.
+     */
+    @Override
+    protected void loadCatalogSnapshot(RunContext runContext, Connection c, CatalogSnapshot snapshot)
+            throws SQLException {
+        final String schema = snapshot.getSchema().toUpperCase();
+        for (CheckType cht : CheckType.values()) {
+            PreparedStatement s = null;
+            ResultSet rs = null;
+            try {
+                final String sql = makeSnapshotSql(cht);
+                runContext.report(ReportLevel.STATEMENT_STEP, "Catalog snapshot: %s (%s)", sql, schema);
+                s = c.prepareStatement(sql);
+                s.setString(1, schema);
+                rs = s.executeQuery();
+                while (rs.next()) {
+                    if (cht.getExtra() != null) {
+                        snapshot.add(cht, rs.getString(1), rs.getString(2));
+                    } else {
+                        snapshot.add(cht, null, rs.getString(1));
+                    }
+                }
+                snapshot.markLoaded(cht);
+            } finally {
+                DbUtils.close(s, rs);
+            }
+        }
+    }
+
     @Override
     public String makeTemporaryTableName(String tableBaseName) {
         return "session." + tableBaseName;
@@ -3,15 +3,27 @@ package ch.ips.g2.applyalter;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 /**
  * Databases configuration with method applied to all (or used) database instances.
  * Database istances with null {@link DbInstance#getHost()} are skipped in constructor and never included
  * in {@link #instances}; they are, however, inclused in {@link #knownDbTypes}.
+ * Connections are opened lazily, or concurrently by {@link #connect(RunContext, Collection, int)}.
  *
  * @author Martin Caslavsky &lt;martin.caslavsky@ips-ag.cz&gt;
  * @version $Id$
@@ -43,7 +55,6 @@ public class DbConfig {
             }
             if (instance.isReal()) {
                 instances.add(instance);
-                instance.getConnection(ctx);
             }
         }
         this.ignorefailures = ignorefailures;
@@ -65,6 +76,85 @@ public class DbConfig {
         return ignorefailures;
     }
 
+    /**
+     * Maximum number of threads opening connections.
+     */
+    protected static final int MAX_CONNECT_THREADS = 16;
+
+    /**
+     * Open connections to the database instances concurrently; already connected instances are skipped.
+     * All failures are collected and thrown together.
+     *
+     * @param ctx       run context
+     * @param toConnect database instances to connect
+     * @param timeout   connection timeout in seconds; 0 means driver default
+     * @throws ApplyAlterException some of the connections cannot be opened
+     */
+    public void connect(RunContext ctx, Collection<DbInstance> toConnect, int timeout) throws ApplyAlterException {
+        final List<DbInstance> pending = new ArrayList<DbInstance>();
+        for (DbInstance i : toConnect) {
+            if (i.isReal() && !i.isConnected()) {
+                pending.add(i);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        for (DbInstance i : pending) {
+            //per connection: DriverManager login timeout is global
+            i.setLoginTimeout(timeout);
+        }
+        ctx.report(ReportLevel.DETAIL, "connecting to %d database instances", pending.size());
+        final RunContext syncCtx = new RunContext.SynchronizedRunContext(ctx);
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(pending.size(), MAX_CONNECT_THREADS), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, "applyalter-connect");
+                        //hanging connection attempt must not block exit
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try {
+            final Map<DbInstance, Future<?>> futures = new LinkedHashMap<DbInstance, Future<?>>();
+            for (final DbInstance i : pending) {
+                futures.put(i, executor.submit(new Callable<Void>() {
+                    public Void call() {
+                        i.getConnection(syncCtx);
+                        return null;
+                    }
+                }));
+            }
+            final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout);
+            final ApplyAlterExceptions aae = new ApplyAlterExceptions(true);
+            for (Map.Entry<DbInstance, Future<?>> entry : futures.entrySet()) {
+                final Future<?> future = entry.getValue();
+                try {
+                    if (timeout > 0) {
+                        future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    } else {
+                        future.get();
+                    }
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    aae.add(cause instanceof ApplyAlterException ? (ApplyAlterException) cause
+                            : new ApplyAlterException("Can not connect to " + entry.getKey().getId(), cause));
+                } catch (TimeoutException e) {
+                    future.cancel(true);
+                    aae.add(new ApplyAlterException("Connection to %s timed out after %d s",
+                            entry.getKey().getId(), timeout));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ApplyAlterException("Interrupted while connecting", e);
+                }
+            }
+            if (!aae.isEmpty())
+                throw aae;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * Close connections to all database instances
      */
@@ -106,7 +196,7 @@ public class DbConfig {
                     if (commit)
                         connection.commit();
                     else
-                        connection.rollback();
+                        i.rollback();
 
                 } catch (SQLException e) {
                     aae.addOrThrow(new ApplyAlterException("Error commiting", e));
@@ -2,11 +2,17 @@ package ch.ips.g2.applyalter;
 
 import com.thoughtworks.xstream.annotations.XStreamOmitField;
 
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -19,7 +25,7 @@ import java.util.regex.Pattern;
  * @author Martin Caslavsky &lt;martin.caslavsky@ips-ag.cz&gt;
  * @version $Id$
  */
-public abstract class DbInstance {
+public abstract class DbInstance implements Cloneable {
 
     public String id;
     public String type;
@@ -36,6 +42,74 @@ public abstract class DbInstance {
     protected Connection con;
     @XStreamOmitField
     protected boolean used;
+    /**
+     * Catalog snapshots, by uppercase schema name; null when none is loaded.
+     */
+    @XStreamOmitField
+    protected Map<String, CatalogSnapshot> catalogSnapshots;
+    /**
+     * Session state: schema set by {@link #ensureSchema(String)}; null = unknown.
+     */
+    @XStreamOmitField
+    protected String sessionSchema;
+    /**
+     * Session state: isolation level set by {@link #ensureIsolation(IsolationLevel)}; null = unknown.
+     */
+    @XStreamOmitField
+    protected IsolationLevel sessionIsolation;
+    /**
+     * Session state: lock timeout set by {@link #ensureTimeouts(Integer, Integer)}; 0 = default, -1 = unknown.
+     */
+    @XStreamOmitField
+    protected int sessionLockTimeout;
+    /**
+     * Session state: statement timeout set by {@link #ensureTimeouts(Integer, Integer)}; 0 = default, -1 = unknown.
+     */
+    @XStreamOmitField
+    protected int sessionStatementTimeout;
+    /**
+     * Session state: non-default timeouts have been set by {@link #ensureTimeouts(Integer, Integer)} on this
+     * connection (and maybe not restored yet); kept by {@link #resetSessionState()}.
+     */
+    @XStreamOmitField
+    protected boolean sessionTimeoutsChanged;
+    /**
+     * Session defaults of connection returned to pool ({@link ConnectionPool} or {@link #dataSource}), restored
+     * before it is returned: isolation level (-1 = unknown), schema (null = unknown) and auto commit.
+     */
+    @XStreamOmitField
+    private int defaultIsolation = -1;
+    @XStreamOmitField
+    private String defaultSchema;
+    @XStreamOmitField
+    private boolean defaultAutoCommit;
+    /**
+     * Schema has been changed by {@link #ensureSchema(String)} on this connection.
+     */
+    @XStreamOmitField
+    private boolean sessionSchemaChanged;
+    /**
+     * Connections are taken from this data source instead of {@link DriverManager}; null = use JDBC url.
+     */
+    @XStreamOmitField
+    protected DataSource dataSource;
+    /**
+     * Connection provided (and owned) by caller; it is used instead of opening a new one and it is never closed.
+     */
+    @XStreamOmitField
+    protected Connection externalConnection;
+    /**
+     * Login timeout of new connections in seconds; 0 = driver default.
+     */
+    @XStreamOmitField
+    protected int loginTimeout;
+    /**
+     * Pool of connections shared by instances of the daemon (see {@link ApplyAlterDaemon}); null = connections
+     * are really closed. Workers share the pool of their instance.
+     */
+    @Nullable
+    @XStreamOmitField
+    private ConnectionPool connectionPool;
 
 
     public DbInstance() {
@@ -135,6 +209,176 @@ public abstract class DbInstance {
         }
     }
 
+    /**
+     * Change database schema, but only when it differs from the schema already set on the connection.
+     *
+     * @param schema schema name to set
+     * @throws ApplyAlterException if schema can not be set
+     * @see #setSchema(String)
+     */
+    public void ensureSchema(String schema) throws ApplyAlterException {
+        if (schema != null && schema.equals(sessionSchema)) {
+            return;
+        }
+        setSchema(schema);
+        sessionSchema = schema;
+        sessionSchemaChanged = true;
+    }
+
+    /**
+     * Set transaction isolation level, but only when it differs from the level already set on the connection.
+     *
+     * @param isolation isolation level; null = do not change
+     * @throws ApplyAlterException error setting
+     * @see #setIsolation(IsolationLevel)
+     */
+    public void ensureIsolation(IsolationLevel isolation) throws ApplyAlterException {
+        if (isolation == null || isolation == sessionIsolation) {
+            return;
+        }
+        setIsolation(isolation);
+        sessionIsolation = isolation;
+    }
+
+    /**
+     * Set lock and statement timeouts, but only when they differ from the values already set on the connection.
+     *
+     * @param lockTimeout      lock timeout in milliseconds; null or 0 = database default
+     * @param statementTimeout statement timeout in milliseconds; null or 0 = database default
+     * @throws ApplyAlterException error setting
+     * @see #setTimeouts(Integer, Integer)
+     */
+    public void ensureTimeouts(Integer lockTimeout, Integer statementTimeout) throws ApplyAlterException {
+        final int lock = lockTimeout == null || lockTimeout < 0 ? 0 : lockTimeout;
+        final int stmt = statementTimeout == null || statementTimeout < 0 ? 0 : statementTimeout;
+        if (lock == sessionLockTimeout && stmt == sessionStatementTimeout) {
+            return;
+        }
+        if (lock == 0 && stmt == 0 && !sessionTimeoutsChanged) {
+            //defaults were never changed by us: nothing to restore (and nothing is sent on every alterscript)
+            sessionLockTimeout = 0;
+            sessionStatementTimeout = 0;
+            return;
+        }
+        try {
+            setTimeouts(lock == 0 ? null : lock, stmt == 0 ? null : stmt);
+        } catch (SQLException e) {
+            throw new ApplyAlterException("Can not set lock timeout %d ms, statement timeout %d ms", e, lock, stmt);
+        }
+        sessionLockTimeout = lock;
+        sessionStatementTimeout = stmt;
+        sessionTimeoutsChanged = lock != 0 || stmt != 0;
+    }
+
+    /**
+     * Set lock and statement timeouts of the session. DB2: <code>CURRENT LOCK TIMEOUT</code> (in seconds);
+     * there is no statement timeout.
+     * Connection must be open.
+     *
+     * @param lockTimeout      lock timeout in milliseconds; null = database default
+     * @param statementTimeout statement timeout in milliseconds; null = database default
+     * @throws SQLException error setting
+     */
+    protected void setTimeouts(Integer lockTimeout, Integer statementTimeout) throws SQLException {
+        DbUtils.executeUpdate(con, "set current lock timeout " + (lockTimeout == null ? "null" : toSeconds(lockTimeout)));
+    }
+
+    /**
+     * Convert milliseconds to whole seconds, rounding up.
+     */
+    protected static long toSeconds(int millis) {
+        return (millis + 999) / 1000;
+    }
+
+    /**
+     * Is the error caused by lock timeout or deadlock, and is the transaction still usable so that the statement
+     * can be retried after rollback to savepoint? DB2: SQLCODE -913 (without rollback); -911 rolls back the
+     * whole transaction.
+     *
+     * @param e database error
+     * @return true if the statement can be retried
+     */
+    public boolean isLockFailureRetryable(SQLException e) {
+        return e.getErrorCode() == -913 || "57033".equals(e.getSQLState());
+    }
+
+    /**
+     * Is DDL part of the transaction? When it is not, DDL commits implicitly, so savepoint set before it no longer
+     * exists and the statement can be neither retried nor sent in batch. DB2: DDL is transactional.
+     *
+     * @return true if DDL can be rolled back to savepoint
+     */
+    public boolean isDdlTransactional() {
+        return true;
+    }
+
+    /**
+     * Does the SQL statement commit implicitly, see {@link #isDdlTransactional()}?
+     *
+     * @param sql SQL statement
+     * @return true if the statement is DDL and this database commits DDL implicitly
+     */
+    public boolean isImplicitCommit(String sql) {
+        return !isDdlTransactional() && DDL_PATTERN.matcher(sql).lookingAt();
+    }
+
+    /**
+     * Is the SQL statement plain data manipulation, which does not change the catalog (so that catalog snapshots
+     * stay valid)? Anything else (DDL, but also procedure calls and anonymous blocks) might change it.
+     *
+     * @param sql SQL statement
+     * @return true for select, insert, update, delete, merge, values and lock
+     */
+    public boolean isDml(String sql) {
+        return DML_PATTERN.matcher(sql).lookingAt();
+    }
+
+    /**
+     * Clean up after failed statement executed in autocommit mode (see {@link SQL#isAutocommit()}).
+     * Connection is in autocommit mode. Default implementation does nothing.
+     *
+     * @param ctx run context
+     * @param sql the failed statement
+     */
+    public void cleanupFailedAutocommit(RunContext ctx, String sql) {
+    }
+
+    /**
+     * Forget the session state, so that next {@link #ensureSchema}, {@link #ensureIsolation} and
+     * {@link #ensureTimeouts} really send the commands. Must be called whenever the session might have been
+     * changed by something else (for example, by statements of alterscript).
+     */
+    public void resetSessionState() {
+        sessionSchema = null;
+        sessionIsolation = null;
+        sessionLockTimeout = -1;
+        sessionStatementTimeout = -1;
+    }
+
+    /**
+     * Are session settings (schema, isolation) part of the transaction, ie undone by rollback?
+     *
+     * @return true if rollback resets the session settings
+     */
+    protected boolean isSessionStateTransactional() {
+        return false;
+    }
+
+    /**
+     * Rollback the current transaction (if connected).
+     *
+     * @throws SQLException error rolling back
+     */
+    public void rollback() throws SQLException {
+        if (con == null) {
+            return;
+        }
+        if (isSessionStateTransactional()) {
+            resetSessionState();
+        }
+        con.rollback();
+    }
+
     /**
      * Get a current connection to this database instance with auto commit turned off
      *
@@ -145,9 +389,28 @@ public abstract class DbInstance {
     public Connection getConnection(RunContext ctx) throws ApplyAlterException {
         if (con == null) {
             String url = getUrl();
+            resetSessionState();
+            sessionTimeoutsChanged = false;
+            sessionSchemaChanged = false;
             try {
-                con = connect(url, ctx);
+                if (externalConnection != null) {
+                    //session state of caller's connection is unknown
+                    con = externalConnection;
+                    con.setAutoCommit(false);
+                    return con;
+                }
+                final ConnectionPool pool = dataSource == null ? connectionPool : null;
+                con = pool == null ? null : pool.take(getPoolKey());
+                if (con == null) {
+                    con = dataSource != null ? dataSource.getConnection() : connect(url, ctx);
+                }
+                if (pool != null || dataSource != null) {
+                    rememberSessionDefaults();
+                }
                 con.setAutoCommit(false);
+                //new session (or pooled one, restored by closeConnection) has default timeouts
+                sessionLockTimeout = 0;
+                sessionStatementTimeout = 0;
             } catch (SQLException e) {
                 throw new ApplyAlterException("Can not acquire db connection for " + url, e);
             }
@@ -167,7 +430,41 @@ public abstract class DbInstance {
      */
     protected Connection connect(String url, RunContext ctx)
             throws SQLException {
-        return DriverManager.getConnection(url, makeConnectionProperties());
+        final Properties info = makeConnectionProperties();
+        if (loginTimeout > 0) {
+            addLoginTimeout(info, loginTimeout);
+        }
+        return DriverManager.getConnection(url, info);
+    }
+
+    /**
+     * Set login timeout of connections opened by this instance. It is passed as driver property
+     * (see {@link #addLoginTimeout(Properties, int)}), {@link DriverManager#setLoginTimeout(int)} is global.
+     *
+     * @param seconds timeout in seconds; 0 = driver default
+     */
+    public void setLoginTimeout(int seconds) {
+        this.loginTimeout = seconds;
+    }
+
+    /**
+     * Add login timeout to connection properties; property set in configuration is kept.
+     * DB2: <code>loginTimeout</code> (seconds).
+     *
+     * @param info    connection properties
+     * @param seconds timeout in seconds
+     */
+    protected void addLoginTimeout(Properties info, int seconds) {
+        setDefaultProperty(info, "loginTimeout", String.valueOf(seconds));
+    }
+
+    /**
+     * Set connection property unless it is already set.
+     */
+    protected static void setDefaultProperty(Properties info, String key, String value) {
+        if (!info.containsKey(key)) {
+            info.setProperty(key, value);
+        }
     }
 
     /**
@@ -190,6 +487,62 @@ public abstract class DbInstance {
         return info;
     }
 
+    /**
+     * Is the connection open?
+     */
+    public boolean isConnected() {
+        return con != null;
+    }
+
+    /**
+     * Create a copy of this instance configuration, without connection; it connects on demand.
+     *
+     * @return new database instance
+     */
+    public DbInstance copyForWorker() {
+        final DbInstance worker;
+        try {
+            worker = (DbInstance) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        if (externalConnection != null) {
+            throw new ApplyAlterException("Database instance %s uses connection provided by caller, "
+                    + "concurrent execution needs a data source", id);
+        }
+        worker.con = null;
+        worker.used = false;
+        worker.catalogSnapshots = null;
+        worker.resetSessionState();
+        return worker;
+    }
+
+    /**
+     * Open another connection to the same database, with the same schema and isolation level as the current
+     * session. The worker is a copy of this instance configuration; caller must close its connection.
+     *
+     * @param ctx run context
+     * @return worker instance, already connected
+     * @throws ApplyAlterException if connection could not be acquired
+     */
+    public DbInstance openWorker(RunContext ctx) throws ApplyAlterException {
+        final DbInstance worker = copyForWorker();
+        try {
+            worker.getConnection(ctx);
+            if (sessionSchema != null) {
+                worker.ensureSchema(sessionSchema);
+            }
+            worker.ensureIsolation(sessionIsolation);
+            if (sessionLockTimeout >= 0 && sessionStatementTimeout >= 0) {
+                worker.ensureTimeouts(sessionLockTimeout, sessionStatementTimeout);
+            }
+        } catch (ApplyAlterException e) {
+            worker.closeConnection();
+            throw e;
+        }
+        return worker;
+    }
+
     /**
      * Get a current connection to this database instance nad mark it as used
      *
@@ -207,16 +560,138 @@ public abstract class DbInstance {
      * Close connection
      */
     public void closeConnection() {
-        if (con != null) {
-            try {
-                con.close();
-            } catch (SQLException e) {
-                //ignore
+        invalidateCatalogSnapshots();
+        resetSessionState();
+        if (con != null && con == externalConnection) {
+            //owned by caller, left open (uncommitted work included)
+            con = null;
+        } else if (con != null) {
+            final ConnectionPool pool = dataSource == null ? connectionPool : null;
+            if (pool != null && restoreSessionDefaults()) {
+                pool.release(getPoolKey(), con);
+            } else {
+                if (dataSource != null) {
+                    //returned to the caller's pool: best effort, the caller's application uses it next
+                    restoreSessionDefaults();
+                }
+                try {
+                    con.close();
+                } catch (SQLException e) {
+                    //ignore
+                }
             }
             con = null;
         }
     }
 
+    /**
+     * Remember session defaults of connection which will be returned to pool ({@link ConnectionPool} or
+     * {@link #dataSource}).
+     */
+    private void rememberSessionDefaults() throws SQLException {
+        defaultAutoCommit = con.getAutoCommit();
+        try {
+            defaultIsolation = con.getTransactionIsolation();
+        } catch (SQLException e) {
+            defaultIsolation = -1;
+        }
+        try {
+            defaultSchema = getSessionSchema();
+        } catch (SQLException e) {
+            defaultSchema = null;
+        } catch (AbstractMethodError e) {
+            //pre-JDBC 4.1 driver
+            defaultSchema = null;
+        }
+    }
+
+    /**
+     * Current schema of the session, as {@link #restoreSessionSchema(String)} accepts it.
+     */
+    protected String getSessionSchema() throws SQLException {
+        return con.getSchema();
+    }
+
+    /**
+     * Restore schema remembered by {@link #getSessionSchema()}.
+     */
+    protected void restoreSessionSchema(String schema) throws ApplyAlterException {
+        setSchema(schema);
+    }
+
+    /**
+     * Roll back and restore session defaults (timeouts, isolation, schema, auto commit), so that the next user
+     * of the connection does not inherit the session settings of this one.
+     *
+     * @return true if restored; false = the connection must not be pooled
+     */
+    private boolean restoreSessionDefaults() {
+        try {
+            boolean restored = true;
+            con.rollback();
+            if (sessionTimeoutsChanged) {
+                setTimeouts(null, null);
+                sessionTimeoutsChanged = false;
+            }
+            if (defaultIsolation >= 0) {
+                con.setTransactionIsolation(defaultIsolation);
+            } else {
+                restored = false;
+            }
+            if (defaultSchema != null) {
+                restoreSessionSchema(defaultSchema);
+            } else if (sessionSchemaChanged) {
+                restored = false;
+            }
+            //session settings might be transactional (PostgreSQL)
+            con.commit();
+            con.setAutoCommit(defaultAutoCommit);
+            return restored;
+        } catch (SQLException e) {
+            return false;
+        } catch (ApplyAlterException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Take connections from data source instead of {@link DriverManager}; JDBC url is still used for reporting.
+     * Connections are closed (returned to the data source) as usual.
+     *
+     * @param dataSource data source; null = use JDBC url
+     */
+    public void setDataSource(@Nullable DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Use connection provided by caller: it is never closed, auto commit is turned off and session settings
+     * (schema, isolation, timeouts) may be changed. Concurrent execution (parallel blocks, schemas, rollout
+     * waves) needs a data source instead.
+     *
+     * @param connection connection owned by caller; null = open connections as usual
+     */
+    public void setConnection(@Nullable Connection connection) {
+        this.externalConnection = connection;
+    }
+
+    /**
+     * Key of connection in {@link ConnectionPool}: connections are shared by instances with the same url
+     * and connection properties.
+     */
+    private String getPoolKey() {
+        return getClass().getName() + '|' + getUrl() + '|' + makeConnectionProperties();
+    }
+
+    /**
+     * Set pool of connections (daemon mode).
+     *
+     * @param pool pool; null = connections are really closed
+     */
+    void setConnectionPool(@Nullable ConnectionPool pool) {
+        connectionPool = pool;
+    }
+
     public String getId() {
         return id;
     }
@@ -303,6 +778,10 @@ public abstract class DbInstance {
         return "wasg2.applyalter_pkg";
     }
 
+    public String getMetaTable() {
+        return "wasg2.applyalter_meta";
+    }
+
     //--------------------------------------------------------------------------------------------------
 
     protected static final String[] MDTYPES_TABLE = {"TABLE", "ALIAS"};
@@ -358,11 +837,165 @@ public abstract class DbInstance {
         }
     }
 
+    /**
+     * Process all checks of one alterscript.
+     * Default implementation calls {@link #check} one by one and stops at the first failed check;
+     * subclass can answer them all at once.
+     *
+     * @return true if all checks are satisfied
+     * @throws SQLException                  database error
+     * @throws UnsupportedOperationException unsupported check type
+     */
+    public boolean checkAll(RunContext runContext, Connection con, List<Check> checks, String schema)
+            throws SQLException, UnsupportedOperationException {
+        for (Check chk : checks) {
+            if (!check(runContext, con, chk, schema)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Process the Check for this database instance using {@link CatalogSnapshot}: the snapshot of schema
+     * is loaded by the first check and all following checks are answered from memory (until
+     * {@link #invalidateCatalogSnapshots()} is called).
+     *
+     * @throws SQLException                  database error
+     * @throws UnsupportedOperationException unsupported check type
+     */
+    public boolean checkSnapshot(RunContext runContext, Connection con, Check chk, String schema)
+            throws SQLException, UnsupportedOperationException {
+        final CatalogSnapshot snapshot = getCatalogSnapshot(runContext, con, schema);
+        if (!snapshot.isLoaded(chk.getType(), chk.getTable())) {
+            loadCatalogSnapshotTable(runContext, con, snapshot, chk.getType(), chk.getTable());
+        }
+        final boolean rawResult = snapshot.contains(chk.getType(), chk.getTable(), chk.getName());
+        runContext.report(ReportLevel.STATEMENT_STEP, "Check: %s in %s: %s", chk, snapshot, rawResult);
+        //XOR with the "isInverted" flag
+        return rawResult ^ chk.isInverted();
+    }
+
+    /**
+     * Get catalog snapshot of the schema, load it when there is none.
+     *
+     * @param runContext run context (used for logging)
+     * @param con        connection to database
+     * @param schema     schema name
+     * @return the snapshot
+     * @throws SQLException database error
+     */
+    protected CatalogSnapshot getCatalogSnapshot(RunContext runContext, Connection con, String schema)
+            throws SQLException {
+        if (catalogSnapshots == null) {
+            catalogSnapshots = new HashMap<String, CatalogSnapshot>();
+        }
+        final String key = schema.toUpperCase();
+        CatalogSnapshot snapshot = catalogSnapshots.get(key);
+        if (snapshot == null) {
+            final long start = System.currentTimeMillis();
+            snapshot = new CatalogSnapshot(schema);
+            loadCatalogSnapshot(runContext, con, snapshot);
+            runContext.report(ReportLevel.DETAIL, "%s loaded in %d ms", snapshot, System.currentTimeMillis() - start);
+            catalogSnapshots.put(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Forget all catalog snapshots: must be called whenever catalog might have changed.
+     */
+    public void invalidateCatalogSnapshots() {
+        catalogSnapshots = null;
+    }
+
+    /**
+     * Load catalog snapshot in bulk. Default implementation loads tables, views and columns from JDBC metadata;
+     * other types are loaded later by {@link #loadCatalogSnapshotTable}.
+     *
+     * @param runContext run context (used for logging)
+     * @param con        connection to database
+     * @param snapshot   empty snapshot to fill
+     * @throws SQLException database error
+     */
+    protected void loadCatalogSnapshot(RunContext runContext, Connection con, CatalogSnapshot snapshot)
+            throws SQLException {
+        final DatabaseMetaData md = con.getMetaData();
+        final String schema = snapshot.getSchema();
+        ResultSet rs = null;
+        try {
+            runContext.report(ReportLevel.STATEMENT_STEP, "Catalog snapshot: tables and views of %s", schema);
+            rs = md.getTables(null, schema, null, null);
+            while (rs.next()) {
+                final String tableType = rs.getString("TABLE_TYPE");
+                final String tableName = rs.getString("TABLE_NAME");
+                if (MDTYPES_VIEW[0].equals(tableType)) {
+                    snapshot.add(CheckType.view, null, tableName);
+                } else if (MDTYPES_TABLE[0].equals(tableType) || MDTYPES_TABLE[1].equals(tableType)) {
+                    snapshot.add(CheckType.table, null, tableName);
+                }
+            }
+            snapshot.markLoaded(CheckType.table);
+            snapshot.markLoaded(CheckType.view);
+            rs.close();
+
+            runContext.report(ReportLevel.STATEMENT_STEP, "Catalog snapshot: columns of %s", schema);
+            rs = md.getColumns(null, schema, null, null);
+            while (rs.next()) {
+                snapshot.add(CheckType.column, rs.getString("TABLE_NAME"), rs.getString("COLUMN_NAME"));
+            }
+            snapshot.markLoaded(CheckType.column);
+        } finally {
+            DbUtils.close(null, rs);
+        }
+    }
+
+    /**
+     * Load catalog snapshot for types which cannot be loaded in bulk. Default implementation supports only indexes
+     * (JDBC metadata can return them only per table).
+     *
+     * @param runContext run context (used for logging)
+     * @param con        connection to database
+     * @param snapshot   snapshot to fill
+     * @param type       check type
+     * @param table      table name; null means all tables
+     * @throws SQLException                  database error
+     * @throws UnsupportedOperationException unsupported check type
+     */
+    protected void loadCatalogSnapshotTable(RunContext runContext, Connection con, CatalogSnapshot snapshot,
+                                            CheckType type, String table)
+            throws SQLException, UnsupportedOperationException {
+        if (type != CheckType.index) {
+            throw new UnsupportedOperationException(
+                    getClass().getSimpleName() + " does not support check type " + type
+            );
+        }
+        runContext.report(ReportLevel.STATEMENT_STEP, "Catalog snapshot: indexes of %s.%s", snapshot.getSchema(), table);
+        ResultSet rs = null;
+        try {
+            rs = con.getMetaData().getIndexInfo(null, snapshot.getSchema(), table, false, true);
+            while (rs.next()) {
+                final String indexName = rs.getString("INDEX_NAME");
+                if (indexName != null) {
+                    snapshot.add(CheckType.index, rs.getString("TABLE_NAME"), indexName);
+                }
+            }
+            snapshot.markLoaded(CheckType.index, table);
+        } finally {
+            DbUtils.close(null, rs);
+        }
+    }
+
     //------------------------------------------------------------------------------------------------------------------
 
     /**
      * Regular expression matching LMC environment
      */
+    private static final Pattern DDL_PATTERN = Pattern.compile(
+            "\\s*(create|alter|drop|truncate|rename|grant|revoke|comment|analyze|purge|flashback)\\b",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern DML_PATTERN = Pattern.compile(
+            "\\s*(select|insert|update|delete|merge|values|lock)\\b", Pattern.CASE_INSENSITIVE);
     protected static final Pattern LMC_HOSTNAME_PATTERN = Pattern.compile("(\\w+)\\.(\\w+).(.*)");
 
     /**
@@ -390,6 +1023,30 @@ public abstract class DbInstance {
     //------------------------------------------------------------------------------------------------------------------
     // dialect-specific methods
 
+    /**
+     * Execute several SQL statements (without parameters) in one batch.
+     * Default implementation uses {@link Statement#executeBatch()}.
+     *
+     * @param runContext run context (used for logging)
+     * @param sqls       SQL statements
+     * @return update counts, one for each statement (might be {@link Statement#SUCCESS_NO_INFO})
+     * @throws SQLException any statement failed
+     */
+    public int[] executeSqlBatch(RunContext runContext, List<String> sqls)
+            throws SQLException {
+        Statement st = null;
+        try {
+            st = getConnection(runContext).createStatement();
+            for (String sql : sqls) {
+                st.addBatch(sql);
+            }
+            runContext.report(ReportLevel.STATEMENT_STEP, "executing batch of %d statements", sqls.size());
+            return st.executeBatch();
+        } finally {
+            DbUtils.close(st);
+        }
+    }
+
     /**
      * Decide the fully classified table name for temporary table.
      *
@@ -0,0 +1,116 @@
+package ch.ips.g2.applyalter;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk index of file hashes, see {@link ApplyAlter#DIR_INDEX}: unchanged file (the same path, size and
+ * modification time) gets its hash from the index and it is not read at all. The index is a text file,
+ * one file per line: <code>hash size mtime path</code> (tab separated). Thread safe.
+ */
+class DirectoryIndex {
+    private static final String CHARSET = "UTF-8";
+
+    private final File indexFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private volatile boolean modified;
+
+    /**
+     * Load the index; missing or unreadable index is empty (it is just a cache).
+     *
+     * @param indexFile index file
+     */
+    public DirectoryIndex(File indexFile) {
+        this.indexFile = indexFile;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), CHARSET));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split("\t", 4);
+                if (parts.length == 4) {
+                    entries.put(parts[3], new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                }
+            }
+        } catch (FileNotFoundException e) {
+            //no index yet
+        } catch (IOException e) {
+            entries.clear();
+        } catch (NumberFormatException e) {
+            entries.clear();
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Hash of unchanged file.
+     *
+     * @param file file
+     * @return hash; null = unknown or changed file
+     */
+    public String getHash(File file) {
+        final Entry e = entries.get(file.getAbsolutePath());
+        if (e == null || e.size != file.length() || e.lastModified != file.lastModified()) {
+            return null;
+        }
+        return e.hash;
+    }
+
+    /**
+     * Remember hash of file, with its current size and modification time.
+     */
+    public void putHash(File file, String hash) {
+        entries.put(file.getAbsolutePath(), new Entry(hash, file.length(), file.lastModified()));
+        modified = true;
+    }
+
+    /**
+     * Write the index, if it was modified.
+     *
+     * @throws ApplyAlterException index cannot be written
+     */
+    public void save() throws ApplyAlterException {
+        if (!modified) {
+            return;
+        }
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(indexFile), CHARSET);
+            for (Map.Entry<String, Entry> i : new TreeMap<String, Entry>(entries).entrySet()) {
+                final Entry e = i.getValue();
+                writer.write(e.hash + "\t" + e.size + "\t" + e.lastModified + "\t" + i.getKey() + "\n");
+            }
+            writer.close();
+            modified = false;
+        } catch (IOException e) {
+            throw new ApplyAlterException("Unable to write directory index " + indexFile, e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    private static class Entry {
+        final String hash;
+        final long size;
+        final long lastModified;
+
+        Entry(String hash, long size, long lastModified) {
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -1,71 +1,382 @@
 package ch.ips.g2.applyalter;
 
 import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Dynamic sql statement: the provided query is executed and its result must contain queries to execute.
+ * <p>
+ * Optional attributes:
+ * <ul>
+ * <li><code>fetch-size</code>: the generator is read by cursor with this fetch size and generated statements
+ * are executed while reading, instead of collecting them all first</li>
+ * <li><code>batch</code>: number of generated statements sent in one JDBC batch</li>
+ * <li><code>parallel</code>: number of additional connections executing the generated statements; such
+ * statements must be independent and they are committed separately from the rest of the alterscript. The work done
+ * before and the generator are committed (or rolled back, according to run mode) before the workers start, so that
+ * they never wait for locks of the main connection</li>
+ * </ul>
  *
  * @author Kamil Podlesak &lt;kamil.podlesak@ips-ag.cz&gt;
  * @version $Id$
  */
 @XStreamAlias("dynamic")
 public class DynamicQuery extends AbstractStatement {
+    /**
+     * Marker ending the queue of generated statements in parallel mode.
+     */
+    private static final String END = new String("END");
+
+    @XStreamAsAttribute
+    @XStreamAlias("fetch-size")
+    protected Integer fetchSize;
+    @XStreamAsAttribute
+    protected Integer batch;
+    @XStreamAsAttribute
+    protected Integer parallel;
+
+    public Integer getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(Integer fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public Integer getBatch() {
+        return batch;
+    }
+
+    public void setBatch(Integer batch) {
+        this.batch = batch;
+    }
+
+    public Integer getParallel() {
+        return parallel;
+    }
+
+    public void setParallel(Integer parallel) {
+        this.parallel = parallel;
+    }
+
+    private int getBatchSize() {
+        return batch == null || batch < 1 ? 1 : batch;
+    }
+
+    private boolean isParallel() {
+        return parallel != null && parallel > 1;
+    }
+
+    /**
+     * Parallel statements are committed by the worker connections.
+     */
+    @Override
+    public boolean isSelfCommitting() {
+        return isParallel();
+    }
 
     public void execute(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles)
             throws ApplyAlterException, SQLException {
         Connection connection = dbConn.getConnection(ctx);
-        List<String> queries = generateQueries(ctx, connection, datafiles);
+        if (isParallel()) {
+            executeParallel(dbConn, ctx, connection, datafiles);
+            return;
+        }
+
+        final QueryExecutor executor = new QueryExecutor(ctx, connection, getBatchSize());
+        try {
+            generateQueries(ctx, connection, datafiles, executor);
+            executor.flush();
+        } finally {
+            executor.close();
+        }
+        ctx.reportProperty(ReportLevel.STATEMENT, "executed", executor.executed);
+        ctx.reportProperty(ReportLevel.STATEMENT, "rows", executor.rows);
+    }
+
+    /**
+     * Execute generated statements by several worker connections; generator runs on the main connection and it is
+     * read completely first.
+     */
+    private void executeParallel(DbInstance dbConn, RunContext ctx, Connection connection,
+                                 Map<String, byte[]> datafiles)
+            throws ApplyAlterException, SQLException {
+        //workers must not wait for locks of this transaction (earlier statements, generator cursor): nobody
+        //would detect such deadlock between two connections
+        commitStep(ctx, connection);
+        final List<String> generated = new ArrayList<String>();
+        generateQueries(ctx, connection, datafiles, new QuerySink() {
+            public void add(String sql) {
+                generated.add(sql);
+            }
+        });
+        commitStep(ctx, connection);
+
+        final RunContext syncCtx = new RunContext.SynchronizedRunContext(ctx);
+        final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(parallel * getBatchSize() * 2);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final List<DbInstance> workers = new ArrayList<DbInstance>(parallel);
+        final List<Future<QueryExecutor>> futures = new ArrayList<Future<QueryExecutor>>(parallel);
+        final ExecutorService threads = Executors.newFixedThreadPool(parallel, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "applyalter-dynamic");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        boolean committed = false;
+        try {
+            for (int i = 0; i < parallel; i++) {
+                final DbInstance worker = dbConn.openWorker(syncCtx);
+                workers.add(worker);
+                futures.add(threads.submit(new Callable<QueryExecutor>() {
+                    public QueryExecutor call() throws InterruptedException {
+                        final QueryExecutor executor = new QueryExecutor(syncCtx, worker.getConnection(syncCtx),
+                                getBatchSize());
+                        try {
+                            for (String sql = queue.take(); sql != END; sql = queue.take()) {
+                                if (failure.get() != null) {
+                                    //just drain the queue
+                                    continue;
+                                }
+                                try {
+                                    executor.add(sql);
+                                } catch (Exception e) {
+                                    failure.compareAndSet(null, e);
+                                }
+                            }
+                            if (failure.get() == null) {
+                                executor.flush();
+                            }
+                        } catch (SQLException e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            executor.close();
+                        }
+                        return executor;
+                    }
+                }));
+            }
 
-        for (String sql : queries) {
-            PreparedStatement st = null;
             try {
-                //important: datafile expanding is NOT done here!
-                ctx.report(ReportLevel.STATEMENT_STEP, "executing dynamic statement: %s%n", sql);
-                st = connection.prepareStatement(sql);
-                int rows = 0;
-                if (!st.execute()) // allows "with ... select ... update ..."
-                {
-                    rows = st.getUpdateCount();
+                for (String sql : generated) {
+                    if (failure.get() != null) {
+                        //reported below
+                        break;
+                    }
+                    queue.put(sql);
                 }
-                ctx.report(ReportLevel.STATEMENT_STEP, "dynamic statement executed, changed rows: %d%n", rows);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ApplyAlterException("Interrupted while executing dynamic statements", e);
             } finally {
-                DbUtils.close(st);
+                //workers always drain the queue, so this cannot block forever
+                for (int i = 0; i < futures.size(); i++) {
+                    putUninterruptibly(queue, END);
+                }
+            }
+
+            int executed = 0;
+            long rows = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                final QueryExecutor executor;
+                try {
+                    executor = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new ApplyAlterException("Dynamic statement worker failed", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ApplyAlterException("Interrupted while executing dynamic statements", e);
+                }
+                ctx.report(ReportLevel.STATEMENT_STEP, "worker #%d executed %d dynamic statements%n",
+                        i, executor.executed);
+                executed += executor.executed;
+                rows += executor.rows;
+            }
+            ctx.reportProperty(ReportLevel.STATEMENT, "parallel", parallel);
+            ctx.reportProperty(ReportLevel.STATEMENT, "executed", executed);
+            ctx.reportProperty(ReportLevel.STATEMENT, "rows", rows);
+
+            final Exception e = failure.get();
+            if (e instanceof SQLException) {
+                throw (SQLException) e;
+            } else if (e instanceof ApplyAlterException) {
+                throw (ApplyAlterException) e;
+            } else if (e != null) {
+                throw new ApplyAlterException("Dynamic statement failed", e);
+            }
+            for (DbInstance worker : workers) {
+                commitStep(ctx, worker.getConnection(ctx));
+            }
+            committed = true;
+        } finally {
+            threads.shutdownNow();
+            for (DbInstance worker : workers) {
+                if (!committed) {
+                    //explicitly: close with open transaction is implementation-defined (Oracle commits)
+                    try {
+                        worker.getConnection(ctx).rollback();
+                    } catch (SQLException e) {
+                        ctx.report(ReportLevel.ERROR, "rollback of dynamic statement worker failed: %s",
+                                e.getMessage());
+                    }
+                }
+                worker.closeConnection();
             }
         }
+    }
 
+    private static void putUninterruptibly(BlockingQueue<String> queue, String sql) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(sql);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    private List<String> generateQueries(RunContext ctx, Connection connection, Map<String, byte[]> datafiles)
+    /**
+     * Execute the generator query and pass generated queries to the sink. Without fetch size, all queries are
+     * read before the first one is passed.
+     */
+    private void generateQueries(RunContext ctx, Connection connection, Map<String, byte[]> datafiles,
+                                 QuerySink sink)
             throws SQLException {
         String sql = getStatement().trim();
-        List<String> queries = new ArrayList<String>();
+        final List<String> queries = fetchSize == null ? new ArrayList<String>() : null;
+        int generated = 0;
         PreparedStatement st = null;
         ResultSet rs = null;
         try {
             st = prepareStatement(connection, sql, datafiles, 0);
+            if (fetchSize != null) {
+                st.setFetchSize(fetchSize);
+            }
             int rowIdx = 0;
             rs = st.executeQuery();
             while (rs.next()) {
                 ctx.report(ReportLevel.DETAIL, "reading result row #" + rowIdx);
                 final String query = rs.getString(1);
                 if (query != null) {
-                    queries.add(query);
+                    generated++;
+                    if (queries != null) {
+                        queries.add(query);
+                    } else {
+                        sink.add(query);
+                    }
                 }
                 rowIdx++;
             }
-            ctx.report(ReportLevel.STATEMENT_STEP, "generator statement executed, queries generated: %d%n", queries.size());
+            ctx.report(ReportLevel.STATEMENT_STEP, "generator statement executed, queries generated: %d%n", generated);
         } finally {
             DbUtils.close(st, rs);
         }
-        return queries;
+        if (queries != null) {
+            for (String query : queries) {
+                sink.add(query);
+            }
+        }
+    }
+
+    /**
+     * Receiver of generated queries.
+     */
+    private interface QuerySink {
+        void add(String sql) throws SQLException;
+    }
+
+    /**
+     * Executes generated queries on one connection, either one by one or in JDBC batches.
+     */
+    private static class QueryExecutor implements QuerySink {
+        private final RunContext ctx;
+        private final Connection connection;
+        private final int batchSize;
+        private Statement batchStatement;
+        private int pending;
+        int executed;
+        long rows;
+
+        QueryExecutor(RunContext ctx, Connection connection, int batchSize) {
+            this.ctx = ctx;
+            this.connection = connection;
+            this.batchSize = batchSize;
+        }
+
+        public void add(String sql) throws SQLException {
+            if (batchSize <= 1) {
+                PreparedStatement st = null;
+                try {
+                    //important: datafile expanding is NOT done here!
+                    ctx.report(ReportLevel.STATEMENT_STEP, "executing dynamic statement: %s%n", sql);
+                    st = connection.prepareStatement(sql);
+                    int count = 0;
+                    if (!st.execute()) // allows "with ... select ... update ..."
+                    {
+                        count = st.getUpdateCount();
+                    }
+                    ctx.report(ReportLevel.STATEMENT_STEP, "dynamic statement executed, changed rows: %d%n", count);
+                    executed++;
+                    rows += count;
+                } finally {
+                    DbUtils.close(st);
+                }
+                return;
+            }
+
+            if (batchStatement == null) {
+                batchStatement = connection.createStatement();
+            }
+            ctx.report(ReportLevel.DETAIL, "batching dynamic statement: %s%n", sql);
+            batchStatement.addBatch(sql);
+            if (++pending >= batchSize) {
+                flush();
+            }
+        }
+
+        void flush() throws SQLException {
+            if (pending == 0) {
+                return;
+            }
+            final int[] counts = batchStatement.executeBatch();
+            for (int count : counts) {
+                if (count > 0) {
+                    rows += count;
+                }
+            }
+            executed += pending;
+            ctx.report(ReportLevel.STATEMENT_STEP, "dynamic statements executed in batch: %d%n", pending);
+            pending = 0;
+        }
+
+        void close() {
+            DbUtils.close(batchStatement);
+            batchStatement = null;
+        }
     }
 
 }
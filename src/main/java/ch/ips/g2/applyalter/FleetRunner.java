@@ -0,0 +1,289 @@
+package ch.ips.g2.applyalter;
+
+import ch.ips.g2.applyalter.logreport.ReportedResult;
+import ch.ips.g2.applyalter.logreport.StructuredLog;
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.Nullable;
+import javax.xml.validation.Validator;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static ch.ips.g2.applyalter.ReportLevel.*;
+
+/**
+ * Apply the same alterscripts to many database configurations (clusters) in one JVM, see {@link ApplyAlter#FLEET}.
+ * Alterscripts are parsed (and validated) once for every distinct set of placeholders, usually just once; with git
+ * state, once for every configuration (see {@link ApplyAlter#getLoadKey()}).
+ * Every configuration has its own {@link ApplyAlter} and its own structured log; its standard output is buffered
+ * and written as a whole when it finishes.
+ */
+public class FleetRunner {
+    /**
+     * Placeholder of structured log file name, replaced by configuration name.
+     */
+    public static final String CONFIG_PLACEHOLDER = "${config}";
+
+    /**
+     * Creates configured {@link ApplyAlter} for one database configuration.
+     */
+    public interface Factory {
+        ApplyAlter create(String configFile, RunContext runContext) throws ApplyAlterException;
+    }
+
+    private final RunContext console;
+    private final Factory factory;
+    private final int parallel;
+    private final boolean validateXml;
+    @Nullable
+    private final String structuredLog;
+
+    /**
+     * @param console       run context for standard output, shared by all configurations
+     * @param factory       creates {@link ApplyAlter} instances
+     * @param parallel      number of configurations applied concurrently
+     * @param validateXml   validate alterscripts by XSD
+     * @param structuredLog structured log file name, see {@link #getLogFileName(String, String)}; null = none
+     */
+    public FleetRunner(RunContext console, Factory factory, int parallel, boolean validateXml,
+                       @Nullable String structuredLog) {
+        this.console = console;
+        this.factory = factory;
+        this.parallel = Math.max(parallel, 1);
+        this.validateXml = validateXml;
+        this.structuredLog = structuredLog;
+    }
+
+    /**
+     * Find configuration files: comma separated list of files and directories; from directory, all .xml files
+     * are taken (sorted by name).
+     *
+     * @param spec files and directories
+     * @return configuration files
+     * @throws ApplyAlterException no such file or directory
+     */
+    public static List<File> findConfigs(String spec) throws ApplyAlterException {
+        final List<File> result = new ArrayList<File>();
+        for (String i : spec.split(",")) {
+            if (i.trim().length() == 0) {
+                continue;
+            }
+            final File f = new File(i.trim());
+            if (f.isDirectory()) {
+                final File[] files = f.listFiles(new FileFilter() {
+                    public boolean accept(File file) {
+                        return file.isFile() && file.getName().endsWith(ApplyAlter.XML_SUFFIX);
+                    }
+                });
+                Arrays.sort(files);
+                result.addAll(Arrays.asList(files));
+            } else if (f.isFile()) {
+                result.add(f);
+            } else {
+                throw new ApplyAlterException("File not found " + f);
+            }
+        }
+        if (result.isEmpty()) {
+            throw new ApplyAlterException("No database configurations found in " + spec);
+        }
+        return result;
+    }
+
+    /**
+     * Name of configuration: file name without .xml suffix.
+     */
+    public static String getConfigName(File config) {
+        final String name = config.getName();
+        return name.endsWith(ApplyAlter.XML_SUFFIX)
+                ? name.substring(0, name.length() - ApplyAlter.XML_SUFFIX.length()) : name;
+    }
+
+    /**
+     * Structured log file of configuration: {@link #CONFIG_PLACEHOLDER} is replaced by configuration name;
+     * without placeholder, the name is inserted before the file extension.
+     */
+    public static String getLogFileName(String pattern, String configName) {
+        if (pattern.contains(CONFIG_PLACEHOLDER)) {
+            return pattern.replace(CONFIG_PLACEHOLDER, configName);
+        }
+        final int dot = pattern.lastIndexOf('.');
+        if (dot <= pattern.lastIndexOf(File.separatorChar)) {
+            return pattern + "-" + configName;
+        }
+        return pattern.substring(0, dot) + "-" + configName + pattern.substring(dot);
+    }
+
+    /**
+     * Apply alterscripts to all configurations and report summary.
+     *
+     * @param configs    database configuration files
+     * @param alterFiles alterscripts
+     * @return results, in order of configurations
+     * @throws ApplyAlterException alterscripts cannot be loaded
+     */
+    public List<Result> run(List<File> configs, String... alterFiles) throws ApplyAlterException {
+        final Validator validator = validateXml ? XsdValidatorUtil.readXsd(console) : null;
+        final Map<Object, Alters> loaded = new HashMap<Object, Alters>();
+        final List<Result> results = new ArrayList<Result>(configs.size());
+        final List<Result> prepared = new ArrayList<Result>(configs.size());
+        for (File config : configs) {
+            final Result r = new Result(config);
+            results.add(r);
+            try {
+                r.applyAlter = factory.create(config.getPath(), r.createContext());
+            } catch (ApplyAlterException e) {
+                r.fail(e);
+                r.closeLog();
+                r.finish();
+                continue;
+            }
+            Alters alters = loaded.get(r.applyAlter.getLoadKey());
+            if (alters == null) {
+                console.report(MAIN, "loading alterscripts for %s", r.name);
+                alters = r.applyAlter.load(validator, alterFiles);
+                loaded.put(r.applyAlter.getLoadKey(), alters);
+            }
+            r.alters = alters;
+            prepared.add(r);
+        }
+        console.report(MAIN, "applying %d alterscripts to %d database configurations, at most %d at a time",
+                loaded.isEmpty() ? 0 : loaded.values().iterator().next().getCount(), configs.size(), parallel);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallel, Math.max(prepared.size(), 1)),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, "applyalter-fleet");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        final CompletionService<Result> completion = new ExecutorCompletionService<Result>(executor);
+        try {
+            for (final Result r : prepared) {
+                completion.submit(new Callable<Result>() {
+                    public Result call() {
+                        r.start = System.currentTimeMillis();
+                        try {
+                            r.applyAlter.apply(r.alters);
+                            r.result = ReportedResult.FINISHED;
+                        } catch (Exception e) {
+                            r.fail(e);
+                        }
+                        r.applyAlter = null;
+                        r.alters = null;
+                        r.closeLog();
+                        return r;
+                    }
+                });
+            }
+            for (int i = 0; i < prepared.size(); i++) {
+                try {
+                    completion.take().get().finish();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ApplyAlterException("Interrupted while applying database configurations", e);
+                } catch (ExecutionException e) {
+                    throw new ApplyAlterException("Database configuration worker failed", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        reportSummary(results);
+        return results;
+    }
+
+    private void reportSummary(List<Result> results) {
+        int failed = 0;
+        console.report(MAIN, "fleet summary:");
+        for (Result r : results) {
+            console.report(MAIN, "  %-30s %-8s %8d ms%s", r.name, r.result, r.time,
+                    r.failure == null ? "" : "  " + r.failure.getMessage());
+            if (r.result != ReportedResult.FINISHED) {
+                failed++;
+            }
+        }
+        console.report(MAIN, "%d database configurations, %d failed", results.size(), failed);
+    }
+
+    /**
+     * Result of one database configuration.
+     */
+    public class Result {
+        private final String name;
+        private long start = System.currentTimeMillis();
+        private long time;
+        private ReportedResult result;
+        private Exception failure;
+        private RunContext.BufferedRunContext buffer;
+        private RunContext context;
+        ApplyAlter applyAlter;
+        Alters alters;
+
+        Result(File config) {
+            this.name = getConfigName(config);
+        }
+
+        RunContext createContext() {
+            buffer = new RunContext.BufferedRunContext(console);
+            context = buffer;
+            if (structuredLog != null) {
+                final OutputStream fos = StructuredLog.openLogFile(buffer, getLogFileName(structuredLog, name));
+                if (fos != null) {
+                    context = StructuredLog.create(fos, buffer);
+                }
+            }
+            context.report(MAIN, "database configuration: %s", name);
+            return context;
+        }
+
+        void fail(Exception e) {
+            result = ReportedResult.FAILED;
+            failure = e;
+            context.report(ERROR, "execution failed: %s", e.getMessage());
+        }
+
+        void closeLog() {
+            time = System.currentTimeMillis() - start;
+            context.reportProperty(MAIN, "duration", time);
+            IOUtils.closeQuietly(context);
+        }
+
+        /**
+         * Write buffered output; called by the main thread.
+         */
+        void finish() {
+            buffer.replay();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public ReportedResult getResult() {
+            return result;
+        }
+
+        public Exception getFailure() {
+            return failure;
+        }
+    }
+}
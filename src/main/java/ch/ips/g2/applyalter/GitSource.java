@@ -0,0 +1,285 @@
+package ch.ips.g2.applyalter;
+
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Alterscripts read directly from local git repository at some revision, without export:
+ * <code>git:/path/to/repo@rev:alters/</code> (revision defaults to <code>HEAD</code>, path to the whole tree).
+ * The path is a directory (handled like {@link AlterDirectory}) or a single file. Git command line is used:
+ * <code>ls-tree</code> lists the files with their blob ids (so unchanged files are never read just to compute
+ * the source hash), one <code>cat-file --batch</code> process reads the blobs. Not thread safe.
+ */
+class GitSource {
+    public static final String PREFIX = "git:";
+    private static final String CHARSET = "UTF-8";
+
+    private final String spec;
+    private final File repository;
+    private final String revision;
+    /**
+     * Path in the tree, without trailing slash; empty = whole tree.
+     */
+    private final String path;
+    @Nullable
+    private Process batch;
+
+    /**
+     * @param spec <code>git:/path/to/repo@rev:path</code>
+     * @throws ApplyAlterException invalid specification
+     */
+    public GitSource(String spec) throws ApplyAlterException {
+        this.spec = spec;
+        final String s = spec.substring(PREFIX.length());
+        final int at = s.lastIndexOf('@');
+        final String rest;
+        if (at < 0) {
+            this.repository = new File(s);
+            rest = "HEAD";
+        } else {
+            this.repository = new File(s.substring(0, at));
+            rest = s.substring(at + 1);
+        }
+        final int colon = rest.indexOf(':');
+        this.revision = colon < 0 ? rest : rest.substring(0, colon);
+        String p = colon < 0 ? "" : rest.substring(colon + 1);
+        while (p.endsWith("/")) {
+            p = p.substring(0, p.length() - 1);
+        }
+        this.path = p;
+        if (repository.getPath().length() == 0 || revision.length() == 0) {
+            throw new ApplyAlterException("Invalid git source %s, expected git:/path/to/repo@rev:path", spec);
+        }
+    }
+
+    public static boolean isGitSpec(String name) {
+        return name.startsWith(PREFIX);
+    }
+
+    /**
+     * Key of this source in {@link GitState}: repository and path, without revision.
+     */
+    public String getStateKey() {
+        return repository.getAbsolutePath() + ":" + path;
+    }
+
+    /**
+     * Resolve the revision to commit id.
+     *
+     * @throws ApplyAlterException unknown revision
+     */
+    public String resolveCommit() throws ApplyAlterException {
+        return new String(git("rev-parse", "--verify", revision + "^{commit}"), StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * List files (blobs) under the path.
+     *
+     * @param commit commit id
+     * @return full path in the tree to blob id, sorted by path
+     * @throws ApplyAlterException git fails or there are no files
+     */
+    public Map<String, String> listFiles(String commit) throws ApplyAlterException {
+        final List<String> args = new ArrayList<String>(Arrays.asList("ls-tree", "-r", "-z", "--full-tree", commit));
+        if (path.length() > 0) {
+            args.add("--");
+            args.add(path);
+        }
+        final Map<String, String> result = new TreeMap<String, String>();
+        for (String line : split(git(args.toArray(new String[args.size()])))) {
+            //<mode> SP <type> SP <object> TAB <file>
+            final int tab = line.indexOf('\t');
+            final String[] meta = line.substring(0, tab).split(" ");
+            if ("blob".equals(meta[1])) {
+                result.put(line.substring(tab + 1), meta[2]);
+            }
+        }
+        if (result.isEmpty()) {
+            throw new ApplyAlterException("No files found in %s", spec);
+        }
+        return result;
+    }
+
+    /**
+     * Files changed between the commits, under the path.
+     *
+     * @return full paths in the tree; null = unknown (previous commit is not in the repository)
+     */
+    @Nullable
+    public Set<String> getChangedFiles(String previousCommit, String commit) {
+        final List<String> args = new ArrayList<String>(Arrays.asList("diff", "--name-only", "--no-renames", "-z",
+                previousCommit, commit));
+        if (path.length() > 0) {
+            args.add("--");
+            args.add(path);
+        }
+        try {
+            return new LinkedHashSet<String>(split(git(args.toArray(new String[args.size()]))));
+        } catch (ApplyAlterException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Path relative to the source path (used for sorting and source hash).
+     */
+    public String getRelativePath(String fullPath) {
+        if (path.length() == 0 || fullPath.equals(path)) {
+            return fullPath.substring(fullPath.lastIndexOf('/') + 1);
+        }
+        return fullPath.substring(path.length() + 1);
+    }
+
+    /**
+     * Alterscript stored in the tree; datafiles are resolved relatively to its directory.
+     *
+     * @param fullPath path of alterscript
+     * @param files    all files, see {@link #listFiles(String)}
+     */
+    public AlterLoader.AlterSource createSource(final String fullPath, final Map<String, String> files) {
+        return new AlterLoader.AlterSource() {
+            public InputStream openScript() throws IOException {
+                return openBlob(files.get(fullPath));
+            }
+
+            public InputStream openDataFile(String filename) throws IOException {
+                final String dataPath = resolve(fullPath, filename);
+                final String blob = dataPath == null ? null : files.get(dataPath);
+                if (blob == null) {
+                    throw new FileNotFoundException(spec + ": " + filename);
+                }
+                return openBlob(blob);
+            }
+        };
+    }
+
+    /**
+     * Resolve relative file name against directory of the alterscript.
+     *
+     * @return full path; null = outside of the tree
+     */
+    @Nullable
+    static String resolve(String scriptPath, String filename) {
+        final List<String> parts = new ArrayList<String>(Arrays.asList(scriptPath.split("/")));
+        parts.remove(parts.size() - 1);
+        for (String i : filename.split("/")) {
+            if ("..".equals(i)) {
+                if (parts.isEmpty()) {
+                    return null;
+                }
+                parts.remove(parts.size() - 1);
+            } else if (i.length() > 0 && !".".equals(i)) {
+                parts.add(i);
+            }
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (String i : parts) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(i);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read blob by the batch process; the whole blob is read into memory (as are datafiles).
+     */
+    InputStream openBlob(String blobId) throws IOException {
+        if (batch == null) {
+            batch = new ProcessBuilder("git", "-C", repository.getPath(), "cat-file", "--batch").start();
+        }
+        final OutputStream stdin = batch.getOutputStream();
+        stdin.write((blobId + "\n").getBytes(CHARSET));
+        stdin.flush();
+        final InputStream stdout = batch.getInputStream();
+        //<object> SP <type> SP <size> LF <contents> LF
+        final String header = readLine(stdout);
+        final String[] parts = header.split(" ");
+        if (parts.length != 3 || !"blob".equals(parts[1])) {
+            throw new IOException("cannot read git object " + blobId + ": " + header);
+        }
+        final byte[] content = new byte[Integer.parseInt(parts[2])];
+        new DataInputStream(stdout).readFully(content);
+        stdout.read();
+        return new ByteArrayInputStream(content);
+    }
+
+    private static String readLine(InputStream is) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = is.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("git cat-file terminated");
+            }
+            line.write(b);
+        }
+        return line.toString(CHARSET);
+    }
+
+    /**
+     * Stop the batch process.
+     */
+    public void close() {
+        if (batch != null) {
+            IOUtils.closeQuietly(batch.getOutputStream());
+            batch.destroy();
+            batch = null;
+        }
+    }
+
+    private byte[] git(String... args) throws ApplyAlterException {
+        final List<String> command = new ArrayList<String>();
+        command.add("git");
+        command.add("-C");
+        command.add(repository.getPath());
+        command.addAll(Arrays.asList(args));
+        try {
+            final Process p = new ProcessBuilder(command).start();
+            p.getOutputStream().close();
+            final byte[] out = IOUtils.toByteArray(new BufferedInputStream(p.getInputStream()));
+            final String err = IOUtils.toString(p.getErrorStream(), CHARSET);
+            if (p.waitFor() != 0) {
+                throw new ApplyAlterException("git %s failed for %s: %s", args[0], spec, err.trim());
+            }
+            return out;
+        } catch (IOException e) {
+            throw new ApplyAlterException("Unable to run git for " + spec, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApplyAlterException("Interrupted while running git for " + spec, e);
+        }
+    }
+
+    private static List<String> split(byte[] nulSeparated) {
+        if (nulSeparated.length == 0) {
+            return Collections.emptyList();
+        }
+        final List<String> result = new ArrayList<String>();
+        for (String i : new String(nulSeparated, StandardCharsets.UTF_8).split("\0")) {
+            if (i.length() > 0) {
+                result.add(i);
+            }
+        }
+        return result;
+    }
+}
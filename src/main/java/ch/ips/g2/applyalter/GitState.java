@@ -0,0 +1,120 @@
+package ch.ips.g2.applyalter;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Commits of git sources applied by previous runs, see {@link ApplyAlter#GIT_STATE}: only alterscripts changed
+ * since that commit are loaded. Commits loaded by this run are recorded by {@link #save()}, which is called only
+ * after successful execution. Stored as properties file: database configuration and source
+ * ({@link GitSource#getStateKey()}) = commit id; the same file can be used for more configurations.
+ */
+class GitState {
+    private final File stateFile;
+    private final String configKey;
+    private final Properties applied = new Properties();
+    private final Map<String, String> loaded = new HashMap<String, String>();
+
+    /**
+     * Load the state; missing file means that nothing is known.
+     *
+     * @param stateFile state file
+     * @param configKey identity of database configuration (environment and instances): commits applied to other
+     *                  databases do not count
+     * @throws ApplyAlterException state file cannot be read
+     */
+    public GitState(File stateFile, String configKey) throws ApplyAlterException {
+        this.stateFile = stateFile;
+        this.configKey = configKey;
+        read(stateFile, applied);
+    }
+
+    private static void read(File stateFile, Properties target) throws ApplyAlterException {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(stateFile);
+            target.load(is);
+        } catch (FileNotFoundException e) {
+            //first run
+        } catch (IOException e) {
+            throw new ApplyAlterException("Unable to read git state " + stateFile, e);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Commit applied by the previous successful run.
+     *
+     * @return commit id; null = unknown
+     */
+    @Nullable
+    public synchronized String getAppliedCommit(String key) {
+        return applied.getProperty(qualify(key));
+    }
+
+    /**
+     * Remember commit loaded by this run; it is written by {@link #save()}.
+     */
+    public synchronized void setLoadedCommit(String key, String commit) {
+        loaded.put(qualify(key), commit);
+    }
+
+    private String qualify(String key) {
+        return configKey + '#' + key;
+    }
+
+    /**
+     * Write loaded commits as applied ones. The file is read again, so records of other configurations saved
+     * meanwhile (fleet mode) are kept, and it is replaced by rename, so it is never left half written.
+     *
+     * @throws ApplyAlterException state file cannot be written
+     */
+    public void save() throws ApplyAlterException {
+        synchronized (GitState.class) {
+            synchronized (this) {
+                if (!loaded.isEmpty()) {
+                    applied.clear();
+                    read(stateFile, applied);
+                    applied.putAll(loaded);
+                    loaded.clear();
+                    write();
+                }
+            }
+        }
+    }
+
+    private void write() throws ApplyAlterException {
+        final File tmp = new File(stateFile.getPath() + ".tmp");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(tmp);
+            applied.store(os, "applyalter git state");
+            os.close();
+            if (!tmp.renameTo(stateFile)) {
+                //windows: rename does not replace
+                FileUtils.deleteQuietly(stateFile);
+                if (!tmp.renameTo(stateFile)) {
+                    throw new IOException("cannot rename " + tmp);
+                }
+            }
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(tmp);
+            throw new ApplyAlterException("Unable to write git state " + stateFile, e);
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+    }
+}
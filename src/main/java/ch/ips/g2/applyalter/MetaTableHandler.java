@@ -0,0 +1,86 @@
+package ch.ips.g2.applyalter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static ch.ips.g2.applyalter.ReportLevel.*;
+
+/**
+ * All code that works with APPLYALTER_META table (simple name-value pairs) is here, in this class.
+ */
+class MetaTableHandler {
+    /**
+     * Name of the record with version of the internal schema (tables created by internal alterscripts).
+     */
+    public static final String INTERNAL_SCHEMA = "internal-schema";
+
+    protected final RunContext runContext;
+
+    public MetaTableHandler(RunContext runContext) {
+        this.runContext = runContext;
+    }
+
+    /**
+     * Read value from applyalter_meta.
+     *
+     * @param d    database instance
+     * @param name record name
+     * @return the value; null if there is no such record or no table at all
+     */
+    @Nullable
+    public String getValue(DbInstance d, @Nonnull String name) {
+        Connection c = d.getConnection(runContext);
+        PreparedStatement s = null;
+        ResultSet r = null;
+        try {
+            s = c.prepareStatement("select value from " + d.getMetaTable() + " where name=?");
+            s.setString(1, name);
+            r = s.executeQuery();
+            return r.next() ? r.getString(1) : null;
+        } catch (SQLException e) {
+            //table does not exist yet
+            runContext.report(DETAIL, "failed to select applyalter_meta record: %s", e.getMessage());
+            try {
+                //postgresql: failed query aborts the whole transaction
+                d.rollback();
+            } catch (SQLException ignored) {
+                //ignore
+            }
+            return null;
+        } finally {
+            DbUtils.close(s, r);
+        }
+    }
+
+    /**
+     * Write value to applyalter_meta. Unlike record to applyalter_log, this one does commit!
+     *
+     * @param d     database instance
+     * @param name  record name
+     * @param value new value
+     */
+    public void setValue(DbInstance d, @Nonnull String name, @Nullable String value) {
+        if (runContext.getRunMode() != RunMode.SHARP) {
+            //do not write to database
+            return;
+        }
+        Connection c = d.getConnection(runContext);
+        try {
+            if (DbUtils.executeUpdate(c, "update " + d.getMetaTable() + " set value=? where name=?", value, name) < 1) {
+                DbUtils.executeUpdate(c, "insert into " + d.getMetaTable() + " (name,value) values (?,?)", name, value);
+            }
+            c.commit();
+        } catch (SQLException e) {
+            runContext.report(ERROR, "failed to write applyalter_meta record: %s", e.getMessage());
+            try {
+                d.rollback();
+            } catch (SQLException ignored) {
+                //ignore
+            }
+        }
+    }
+}
@@ -3,6 +3,8 @@ package ch.ips.g2.applyalter;
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 
 import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
 
 /**
  * PostgreSQL instance with optional hostname and port
@@ -58,6 +60,45 @@ public class MysqlInstance extends DbInstance {
         //do nothing; mysql does not support schema
     }
 
+    /**
+     * Lock timeout sets both <code>innodb_lock_wait_timeout</code> (row locks) and <code>lock_wait_timeout</code>
+     * (metadata locks, needed by DDL), in seconds. Statement timeout is <code>max_execution_time</code>,
+     * which is applied only to SELECT.
+     */
+    @Override
+    protected void setTimeouts(Integer lockTimeout, Integer statementTimeout) throws SQLException {
+        final String lock = lockTimeout == null ? "default" : String.valueOf(toSeconds(lockTimeout));
+        DbUtils.executeUpdate(con, "set session innodb_lock_wait_timeout = " + lock);
+        DbUtils.executeUpdate(con, "set session lock_wait_timeout = " + lock);
+        DbUtils.executeUpdate(con, "set session max_execution_time = "
+                + (statementTimeout == null ? "default" : statementTimeout));
+    }
+
+    /**
+     * Error 1205 (lock wait timeout): only the statement is rolled back. Deadlock (1213) rolls back the whole
+     * transaction and cannot be retried.
+     */
+    @Override
+    public boolean isLockFailureRetryable(SQLException e) {
+        return e.getErrorCode() == 1205;
+    }
+
+    /**
+     * <code>connectTimeout</code> in milliseconds.
+     */
+    @Override
+    protected void addLoginTimeout(Properties info, int seconds) {
+        setDefaultProperty(info, "connectTimeout", String.valueOf(seconds * 1000L));
+    }
+
+    /**
+     * DDL commits implicitly.
+     */
+    @Override
+    public boolean isDdlTransactional() {
+        return false;
+    }
+
     @Override
     public String getLogTable() {
         return "applyalter_log";
@@ -67,4 +108,9 @@ public class MysqlInstance extends DbInstance {
     public String getPkgLogTable() {
         return "applyalter_pkg";
     }
+
+    @Override
+    public String getMetaTable() {
+        return "applyalter_meta";
+    }
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import com.thoughtworks.xstream.annotations.XStreamAlias;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Properties;
 
 /**
  * PostgreSQL instance with optional hostname and port
@@ -64,6 +65,39 @@ public class OracleInstance extends DbInstance {
         return true;
     }
 
+    /**
+     * Lock timeout is <code>DDL_LOCK_TIMEOUT</code> (in seconds); there is no statement timeout.
+     */
+    @Override
+    protected void setTimeouts(Integer lockTimeout, Integer statementTimeout) throws SQLException {
+        DbUtils.executeUpdate(con, "ALTER SESSION SET DDL_LOCK_TIMEOUT = "
+                + (lockTimeout == null ? 0 : toSeconds(lockTimeout)));
+    }
+
+    /**
+     * ORA-00054 (resource busy) and ORA-00060 (deadlock): only the statement is rolled back.
+     */
+    @Override
+    public boolean isLockFailureRetryable(SQLException e) {
+        return e.getErrorCode() == 54 || e.getErrorCode() == 60;
+    }
+
+    /**
+     * <code>oracle.net.CONNECT_TIMEOUT</code> in milliseconds.
+     */
+    @Override
+    protected void addLoginTimeout(Properties info, int seconds) {
+        setDefaultProperty(info, "oracle.net.CONNECT_TIMEOUT", String.valueOf(seconds * 1000L));
+    }
+
+    /**
+     * DDL commits implicitly (before and after the statement).
+     */
+    @Override
+    public boolean isDdlTransactional() {
+        return false;
+    }
+
     @Override
     public void setSchema(String schema)
             throws ApplyAlterException {
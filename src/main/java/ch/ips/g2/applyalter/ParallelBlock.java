@@ -0,0 +1,253 @@
+package ch.ips.g2.applyalter;
+
+import ch.ips.g2.applyalter.logreport.ReportedResult;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
+import com.thoughtworks.xstream.annotations.XStreamImplicit;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Block of independent statements executed concurrently, each of them in its own transaction on its own connection
+ * to the same database instance. Typical usage: building indexes on different tables.
+ * <p>
+ * Work of the alterscript done before the block is committed or rolled back according to run mode
+ * (see {@link #commitStep}) first: otherwise the statements could wait for its locks forever.
+ * The first failure stops starting of other statements; the running ones are finished, then all of them are rolled
+ * back. When all statements succeed, they are committed or rolled back according to run mode, independently of the
+ * alterscript transaction. Lock and statement timeouts of the alterscript apply to every statement.
+ */
+@XStreamAlias("parallel")
+public class ParallelBlock extends AbstractStatement {
+    /**
+     * Maximum number of statements executed at the same time; null = all of them.
+     */
+    @XStreamAsAttribute
+    protected Integer limit;
+
+    @XStreamImplicit
+    protected List<AlterStatement> statements = new ArrayList<AlterStatement>();
+
+    public ParallelBlock() {
+        super();
+    }
+
+    public ParallelBlock(AlterStatement... statements) {
+        this();
+        for (AlterStatement i : statements) {
+            this.statements.add(i);
+        }
+    }
+
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+
+    public List<AlterStatement> getStatements() {
+        return statements;
+    }
+
+    public void setStatements(List<AlterStatement> statements) {
+        this.statements = statements;
+    }
+
+    /**
+     * Statements are committed by their own connections.
+     */
+    @Override
+    public boolean isSelfCommitting() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + ": " + statements.size() + " statements";
+    }
+
+    @Override
+    public void recordStructuredInfo(RunContext rctx) {
+        rctx.reportProperty(ReportLevel.STATEMENT, "type", getClass().getSimpleName());
+        rctx.reportProperty(ReportLevel.STATEMENT, "parallel", statements.size());
+    }
+
+    private Object readResolve() {
+        if (statements == null) {
+            statements = new ArrayList<AlterStatement>();
+        }
+        return this;
+    }
+
+    public void execute(final DbInstance dbConn, final RunContext ctx, final Map<String, byte[]> datafiles)
+            throws ApplyAlterException, SQLException {
+        if (statements.isEmpty()) {
+            return;
+        }
+        //statements run on other connections: they must not wait for locks of this transaction
+        commitStep(ctx, dbConn.getConnection(ctx));
+        final int threads = limit == null || limit < 1 ? statements.size() : Math.min(limit, statements.size());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "applyalter-parallel");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final CompletionService<ChildResult> completion = new ExecutorCompletionService<ChildResult>(executor);
+        final List<DbInstance> workers = new ArrayList<DbInstance>();
+        Exception failure = null;
+        boolean committed = false;
+        int next = 0;
+        int running = 0;
+        int finished = 0;
+        int ignored = 0;
+        try {
+            while (true) {
+                while (failure == null && running < threads && next < statements.size()) {
+                    final AlterStatement s = statements.get(next++);
+                    final DbInstance worker = dbConn.openWorker(ctx);
+                    workers.add(worker);
+                    worker.ensureTimeouts(
+                            s.getLockTimeout() != null ? s.getLockTimeout() : dbConn.sessionLockTimeout,
+                            s.getStatementTimeout() != null ? s.getStatementTimeout() : dbConn.sessionStatementTimeout);
+                    completion.submit(new Callable<ChildResult>() {
+                        public ChildResult call() {
+                            return executeChild(s, worker, ctx, datafiles);
+                        }
+                    });
+                    running++;
+                }
+                if (running == 0) {
+                    break;
+                }
+                final ChildResult r;
+                try {
+                    r = completion.take().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ApplyAlterException("Interrupted while executing parallel statements", e);
+                } catch (ExecutionException e) {
+                    throw new ApplyAlterException("Parallel statement failed", e.getCause());
+                }
+                running--;
+                r.context.replay();
+                if (r.result == ReportedResult.FINISHED) {
+                    finished++;
+                } else if (r.result == ReportedResult.FAILED_IGNORED) {
+                    ignored++;
+                } else if (failure == null) {
+                    failure = r.failure;
+                }
+            }
+
+            ctx.reportProperty(ReportLevel.STATEMENT, "finished", finished);
+            ctx.reportProperty(ReportLevel.STATEMENT, "ignored", ignored);
+            if (failure instanceof SQLException) {
+                throw (SQLException) failure;
+            } else if (failure instanceof ApplyAlterException) {
+                throw (ApplyAlterException) failure;
+            } else if (failure != null) {
+                throw new ApplyAlterException("Parallel statement failed", failure);
+            }
+            for (DbInstance worker : workers) {
+                commitStep(ctx, worker.getConnection(ctx));
+            }
+            committed = true;
+        } finally {
+            executor.shutdownNow();
+            for (DbInstance worker : workers) {
+                if (!committed) {
+                    //explicitly: close with open transaction is implementation-defined (Oracle commits)
+                    rollbackQuietly(ctx, worker);
+                }
+                worker.closeConnection();
+            }
+        }
+    }
+
+    /**
+     * Execute one statement on the worker connection, reporting to buffer (replayed when finished).
+     * Ignored failure (canfail, ignore-sqlstate, ignore-sqlcode) rolls back the worker transaction.
+     */
+    private static ChildResult executeChild(final AlterStatement s, final DbInstance worker, RunContext ctx,
+                                            final Map<String, byte[]> datafiles) {
+        final RunContext.BufferedRunContext buffer = new RunContext.BufferedRunContext(ctx);
+        final ChildResult r = new ChildResult(buffer);
+        buffer.report(ReportLevel.STATEMENT, "%s", s);
+        buffer.subreport("statement", new Runnable() {
+            public void run() {
+                s.recordStructuredInfo(buffer);
+                try {
+                    s.execute(worker, buffer, datafiles);
+                    r.result = ReportedResult.FINISHED;
+                } catch (SQLException e) {
+                    if (ApplyAlter.isFailureIgnored(buffer, s, e)) {
+                        ignore(worker, r);
+                    } else {
+                        r.fail(e);
+                    }
+                } catch (ApplyAlterException e) {
+                    if (ApplyAlter.isFailureIgnored(buffer, s, e)) {
+                        ignore(worker, r);
+                    } else {
+                        r.fail(e);
+                    }
+                } catch (RuntimeException e) {
+                    r.fail(e);
+                }
+                buffer.reportProperty(ReportLevel.STATEMENT, "result", r.result);
+            }
+        });
+        return r;
+    }
+
+    private static void rollbackQuietly(RunContext ctx, DbInstance worker) {
+        try {
+            worker.getConnection(ctx).rollback();
+        } catch (SQLException e) {
+            ctx.report(ReportLevel.ERROR, "rollback of parallel statement failed: %s", e.getMessage());
+        } catch (ApplyAlterException e) {
+            ctx.report(ReportLevel.ERROR, "rollback of parallel statement failed: %s", e.getMessage());
+        }
+    }
+
+    private static void ignore(DbInstance worker, ChildResult r) {
+        r.result = ReportedResult.FAILED_IGNORED;
+        try {
+            worker.rollback();
+        } catch (SQLException e) {
+            r.fail(e);
+        }
+    }
+
+    /**
+     * Result of one statement of the block.
+     */
+    private static class ChildResult {
+        final RunContext.BufferedRunContext context;
+        ReportedResult result;
+        Exception failure;
+
+        ChildResult(RunContext.BufferedRunContext context) {
+            this.context = context;
+        }
+
+        void fail(Exception e) {
+            result = ReportedResult.FAILED;
+            failure = e;
+        }
+    }
+}
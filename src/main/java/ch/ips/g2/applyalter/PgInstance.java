@@ -3,14 +3,23 @@ package ch.ips.g2.applyalter;
 import com.google.common.annotations.VisibleForTesting;
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * PostgreSQL instance with optional hostname and port.
@@ -26,6 +35,10 @@ public class PgInstance extends DbInstance {
     private static final String SQL_CREATE_TEMPORARY_TABLE = "create temporary table %s AS %s";
 
     public String role;
+    /**
+     * Send batch of statements as single multi-statement string (instead of JDBC batch).
+     */
+    public boolean multistatement;
 
     protected static void initDriver() {
         try {
@@ -52,6 +65,14 @@ public class PgInstance extends DbInstance {
         this.role = role;
     }
 
+    public boolean isMultistatement() {
+        return multistatement;
+    }
+
+    public void setMultistatement(boolean multistatement) {
+        this.multistatement = multistatement;
+    }
+
     /**
      * Get url for connecting <code>jdbc:postgresql://...</code>
      *
@@ -79,6 +100,82 @@ public class PgInstance extends DbInstance {
         return true;
     }
 
+    /**
+     * SET commands are transactional in postgresql: rollback undoes them.
+     */
+    @Override
+    protected boolean isSessionStateTransactional() {
+        return true;
+    }
+
+    @Override
+    protected void setTimeouts(Integer lockTimeout, Integer statementTimeout) throws SQLException {
+        DbUtils.executeUpdate(con, "set lock_timeout to " + (lockTimeout == null ? "default" : lockTimeout));
+        DbUtils.executeUpdate(con, "set statement_timeout to "
+                + (statementTimeout == null ? "default" : statementTimeout));
+    }
+
+    /**
+     * Index name in <code>CREATE [UNIQUE] INDEX CONCURRENTLY [IF NOT EXISTS] name</code>.
+     */
+    private static final Pattern REGEX_CREATE_INDEX_CONCURRENTLY = Pattern.compile(
+            "^\\s*create\\s+(?:unique\\s+)?index\\s+concurrently\\s+(?:if\\s+not\\s+exists\\s+)?(?!on\\s)([\\w$.\"]+)",
+            Pattern.CASE_INSENSITIVE);
+    private static final String SQL_INVALID_INDEX =
+            "select 1 from pg_catalog.pg_index i where i.indexrelid = pg_catalog.to_regclass(?) and not i.indisvalid";
+
+    /**
+     * Find index name of <code>CREATE INDEX CONCURRENTLY</code> statement.
+     *
+     * @param sql statement
+     * @return index name (possibly qualified and quoted) or null if this is not such statement
+     */
+    @VisibleForTesting
+    static String findConcurrentIndex(String sql) {
+        final Matcher m = REGEX_CREATE_INDEX_CONCURRENTLY.matcher(sql);
+        return m.find() ? m.group(1) : null;
+    }
+
+    /**
+     * Failed <code>CREATE INDEX CONCURRENTLY</code> leaves invalid index behind; drop it, so that
+     * the statement can be executed again.
+     */
+    @Override
+    public void cleanupFailedAutocommit(RunContext ctx, String sql) {
+        final String index = findConcurrentIndex(sql);
+        if (index == null) {
+            return;
+        }
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = con.prepareStatement(SQL_INVALID_INDEX);
+            ps.setString(1, index);
+            rs = ps.executeQuery();
+            if (!rs.next()) {
+                return;
+            }
+            DbUtils.close(ps, rs);
+            ps = null;
+            rs = null;
+            ctx.report(ReportLevel.STATEMENT_STEP, "dropping invalid index %s left by failed concurrent build%n", index);
+            DbUtils.executeUpdate(con, "drop index concurrently if exists " + index);
+        } catch (SQLException e) {
+            ctx.report(ReportLevel.ERROR, "failed to drop invalid index %s: %s", index, e.getMessage());
+        } finally {
+            DbUtils.close(ps, rs);
+        }
+    }
+
+    /**
+     * SQLSTATE 55P03 (lock_not_available) or 40P01 (deadlock_detected): only the transaction is aborted,
+     * rollback to savepoint makes it usable again.
+     */
+    @Override
+    public boolean isLockFailureRetryable(SQLException e) {
+        return "55P03".equals(e.getSQLState()) || "40P01".equals(e.getSQLState());
+    }
+
     @Override
     public void setSchema(String schema)
             throws ApplyAlterException {
@@ -89,6 +186,40 @@ public class PgInstance extends DbInstance {
         }
     }
 
+    /**
+     * The whole <code>search_path</code>, not just its first schema.
+     */
+    @Override
+    protected String getSessionSchema() throws SQLException {
+        Statement st = null;
+        ResultSet rs = null;
+        try {
+            st = con.createStatement();
+            rs = st.executeQuery("show search_path");
+            return rs.next() ? rs.getString(1) : null;
+        } finally {
+            DbUtils.close(st, rs);
+        }
+    }
+
+    @Override
+    protected void restoreSessionSchema(String searchPath) throws ApplyAlterException {
+        try {
+            DbUtils.executeUpdate(con, "set search_path to " + searchPath);
+        } catch (SQLException e) {
+            throw new ApplyAlterException("Can not set search_path " + searchPath, e);
+        }
+    }
+
+    /**
+     * <code>loginTimeout</code> and <code>connectTimeout</code> (socket), both in seconds.
+     */
+    @Override
+    protected void addLoginTimeout(Properties info, int seconds) {
+        setDefaultProperty(info, "loginTimeout", String.valueOf(seconds));
+        setDefaultProperty(info, "connectTimeout", String.valueOf(seconds));
+    }
+
     @Override
     protected Connection connect(String url, RunContext ctx)
             throws SQLException {
@@ -119,6 +250,11 @@ public class PgInstance extends DbInstance {
         return "public.applyalter_pkg";
     }
 
+    @Override
+    public String getMetaTable() {
+        return "public.applyalter_meta";
+    }
+
     /**
      * Load and parse <a href="http://www.postgresql.org/docs/current/static/libpq-pgpass.html">pgpass file</a>, try to find
      * matching line and if found, set password via {@link #setPass(String)}
@@ -203,6 +339,251 @@ public class PgInstance extends DbInstance {
         return null;
     }
 
+    /**
+     * When {@link #isMultistatement()} is set, all statements are joined into one string and sent in one
+     * round-trip (simple query protocol); update counts are read from the consecutive results.
+     */
+    @Override
+    public int[] executeSqlBatch(RunContext runContext, List<String> sqls)
+            throws SQLException {
+        if (!isMultistatement()) {
+            return super.executeSqlBatch(runContext, sqls);
+        }
+        final StringBuilder sql = new StringBuilder();
+        for (String s : sqls) {
+            sql.append(s);
+            if (!s.endsWith(";")) {
+                sql.append(';');
+            }
+            sql.append('\n');
+        }
+        final int[] counts = new int[sqls.size()];
+        Statement st = null;
+        try {
+            st = getConnection(runContext).createStatement();
+            runContext.report(ReportLevel.STATEMENT_STEP, "executing %d statements at once", sqls.size());
+            boolean isResultSet = st.execute(sql.toString());
+            for (int i = 0; i < counts.length; i++) {
+                final int updateCount = st.getUpdateCount();
+                if (!isResultSet && updateCount == -1) {
+                    //no more results
+                    break;
+                }
+                counts[i] = isResultSet ? Statement.SUCCESS_NO_INFO : updateCount;
+                isResultSet = st.getMoreResults();
+            }
+        } finally {
+            DbUtils.close(st);
+        }
+        return counts;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+    // checks
+
+    /**
+     * Schema condition for catalog queries (<code>n</code> is alias of <code>pg_namespace</code>).
+     * Without explicit schema, all schemas in search_path are used.
+     */
+    private static final String SQL_CHECK_NS = "n.nspname in (?, ?)";
+    private static final String SQL_CHECK_NS_CURRENT = "n.nspname = any(pg_catalog.current_schemas(false))";
+
+    @Override
+    public boolean check(RunContext runContext, Connection con, Check chk, String schema)
+            throws SQLException {
+        return checkAll(runContext, con, Collections.singletonList(chk), schema);
+    }
+
+    /**
+     * Process all checks by single query on <code>pg_catalog</code>, returning one row per check.
+     * Object names are compared both as written and folded to lowercase (which is what postgresql does with
+     * unquoted identifiers), so that checks written for DB2 work too.
+     */
+    @Override
+    public boolean checkAll(RunContext runContext, Connection con, List<Check> checks, String schema)
+            throws SQLException {
+        if (checks.isEmpty()) {
+            return true;
+        }
+        final List<String> params = new ArrayList<String>();
+        final String sql = makeChecksSql(checks, schema, params);
+        runContext.report(ReportLevel.STATEMENT_STEP, "Check: %s", checks);
+        final boolean[] results = new boolean[checks.size()];
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = con.prepareStatement(sql);
+            for (int i = 0; i < params.size(); i++) {
+                ps.setString(i + 1, params.get(i));
+            }
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                results[rs.getInt(1)] = rs.getBoolean(2);
+            }
+        } finally {
+            DbUtils.close(ps, rs);
+        }
+        boolean allOk = true;
+        for (int i = 0; i < results.length; i++) {
+            final Check chk = checks.get(i);
+            //XOR with the "isInverted" flag
+            final boolean ok = results[i] ^ chk.isInverted();
+            runContext.report(ReportLevel.DETAIL, "Check: %s: %s", chk, ok);
+            allOk &= ok;
+        }
+        return allOk;
+    }
+
+    /**
+     * Build query for {@link #checkAll}: union of <code>exists</code> subqueries, one for each check,
+     * each row contains check index and result.
+     *
+     * @param checks checks to process
+     * @param schema schema name; null means all schemas in search_path
+     * @param params output: query parameters
+     * @return SQL query
+     */
+    @VisibleForTesting
+    static String makeChecksSql(List<Check> checks, String schema, List<String> params) {
+        final StringBuilder sql = new StringBuilder();
+        for (int i = 0; i < checks.size(); i++) {
+            final Check chk = checks.get(i);
+            if (i > 0) {
+                sql.append("\nunion all ");
+            }
+            sql.append("select ").append(i).append(", exists(select 1 from ");
+            switch (chk.getType()) {
+                case table:
+                    sql.append(SQL_CHECK_CLASS).append(" and c.relkind in ('r', 'p', 'f')");
+                    addNames(params, chk.getName());
+                    break;
+                case view:
+                    sql.append(SQL_CHECK_CLASS).append(" and c.relkind in ('v', 'm')");
+                    addNames(params, chk.getName());
+                    break;
+                case column:
+                    sql.append("pg_catalog.pg_attribute a join pg_catalog.pg_class c on c.oid = a.attrelid")
+                            .append(" join pg_catalog.pg_namespace n on n.oid = c.relnamespace")
+                            .append(" where a.attname in (?, ?) and a.attnum > 0 and not a.attisdropped")
+                            .append(" and c.relname in (?, ?)");
+                    addNames(params, chk.getName());
+                    addNames(params, chk.getTable());
+                    break;
+                case index:
+                    sql.append(SQL_CHECK_CLASS).append(" and c.relkind in ('i', 'I')");
+                    addNames(params, chk.getName());
+                    if (chk.getTable() != null) {
+                        sql.append(" and exists(select 1 from pg_catalog.pg_index x")
+                                .append(" join pg_catalog.pg_class t on t.oid = x.indrelid")
+                                .append(" where x.indexrelid = c.oid and t.relname in (?, ?))");
+                        addNames(params, chk.getTable());
+                    }
+                    break;
+                case routine:
+                    sql.append("pg_catalog.pg_proc p join pg_catalog.pg_namespace n on n.oid = p.pronamespace")
+                            .append(" where p.proname in (?, ?)");
+                    addNames(params, chk.getName());
+                    break;
+                case trigger:
+                    sql.append("pg_catalog.pg_trigger g join pg_catalog.pg_class c on c.oid = g.tgrelid")
+                            .append(" join pg_catalog.pg_namespace n on n.oid = c.relnamespace")
+                            .append(" where g.tgname in (?, ?) and not g.tgisinternal");
+                    addNames(params, chk.getName());
+                    appendTableCondition(sql, params, chk.getTable());
+                    break;
+                case reference:
+                case check:
+                    sql.append("pg_catalog.pg_constraint k join pg_catalog.pg_class c on c.oid = k.conrelid")
+                            .append(" join pg_catalog.pg_namespace n on n.oid = c.relnamespace")
+                            .append(" where k.conname in (?, ?) and k.contype = ")
+                            .append(chk.getType() == CheckType.reference ? "'f'" : "'c'");
+                    addNames(params, chk.getName());
+                    appendTableCondition(sql, params, chk.getTable());
+                    break;
+                default:
+                    throw new UnsupportedOperationException(
+                            PgInstance.class.getSimpleName() + " does not support check type " + chk.getType()
+                    );
+            }
+            if (schema == null) {
+                sql.append(" and ").append(SQL_CHECK_NS_CURRENT);
+            } else {
+                sql.append(" and ").append(SQL_CHECK_NS);
+                addNames(params, schema);
+            }
+            sql.append(")");
+        }
+        return sql.toString();
+    }
+
+    private static final String SQL_CHECK_CLASS =
+            "pg_catalog.pg_class c join pg_catalog.pg_namespace n on n.oid = c.relnamespace where c.relname in (?, ?)";
+
+    private static void appendTableCondition(StringBuilder sql, List<String> params, String table) {
+        if (table != null) {
+            sql.append(" and c.relname in (?, ?)");
+            addNames(params, table);
+        }
+    }
+
+    /**
+     * Add identifier twice: as written and folded to lowercase.
+     */
+    private static void addNames(List<String> params, String name) {
+        params.add(name);
+        params.add(name.toLowerCase());
+    }
+
+    /**
+     * Load whole snapshot by single query on <code>pg_catalog</code>; all check types are supported.
+     */
+    @Override
+    protected void loadCatalogSnapshot(RunContext runContext, Connection con, CatalogSnapshot snapshot)
+            throws SQLException {
+        runContext.report(ReportLevel.STATEMENT_STEP, "Catalog snapshot: %s", snapshot.getSchema());
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = con.prepareStatement(SQL_SNAPSHOT);
+            final int paramCount = StringUtils.countMatches(SQL_SNAPSHOT, "?");
+            for (int i = 1; i <= paramCount; i += 2) {
+                ps.setString(i, snapshot.getSchema());
+                ps.setString(i + 1, snapshot.getSchema().toLowerCase());
+            }
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                snapshot.add(CheckType.valueOf(rs.getString(1)), rs.getString(2), rs.getString(3));
+            }
+        } finally {
+            DbUtils.close(ps, rs);
+        }
+        for (CheckType type : CheckType.values()) {
+            snapshot.markLoaded(type);
+        }
+    }
+
+    private static final String SQL_SNAPSHOT_FROM_CLASS =
+            " from pg_catalog.pg_class c join pg_catalog.pg_namespace n on n.oid = c.relnamespace";
+
+    private static final String SQL_SNAPSHOT =
+            "select 'table', null::name, c.relname" + SQL_SNAPSHOT_FROM_CLASS
+                    + " where c.relkind in ('r', 'p', 'f') and " + SQL_CHECK_NS
+                    + "\nunion all select 'view', null, c.relname" + SQL_SNAPSHOT_FROM_CLASS
+                    + " where c.relkind in ('v', 'm') and " + SQL_CHECK_NS
+                    + "\nunion all select 'column', c.relname, a.attname" + SQL_SNAPSHOT_FROM_CLASS
+                    + " join pg_catalog.pg_attribute a on a.attrelid = c.oid"
+                    + " where a.attnum > 0 and not a.attisdropped and " + SQL_CHECK_NS
+                    + "\nunion all select 'index', t.relname, c.relname" + SQL_SNAPSHOT_FROM_CLASS
+                    + " join pg_catalog.pg_index x on x.indexrelid = c.oid join pg_catalog.pg_class t on t.oid = x.indrelid"
+                    + " where " + SQL_CHECK_NS
+                    + "\nunion all select 'routine', null, p.proname from pg_catalog.pg_proc p"
+                    + " join pg_catalog.pg_namespace n on n.oid = p.pronamespace where " + SQL_CHECK_NS
+                    + "\nunion all select 'trigger', c.relname, g.tgname" + SQL_SNAPSHOT_FROM_CLASS
+                    + " join pg_catalog.pg_trigger g on g.tgrelid = c.oid where not g.tgisinternal and " + SQL_CHECK_NS
+                    + "\nunion all select case k.contype when 'f' then 'reference' else 'check' end, c.relname, k.conname"
+                    + SQL_SNAPSHOT_FROM_CLASS + " join pg_catalog.pg_constraint k on k.conrelid = c.oid"
+                    + " where k.contype in ('f', 'c') and " + SQL_CHECK_NS;
+
     @Override
     public String makeCreateTemporaryTableAsSql(String tableName, String query) {
         return String.format(SQL_CREATE_TEMPORARY_TABLE, tableName, query);
@@ -20,7 +20,9 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import static ch.ips.g2.applyalter.ReportLevel.*;
 
@@ -44,13 +46,59 @@ class PkgLogTableHandler {
      * @param sourceHash hash of source bundle
      */
     protected void savelog_pkg(String sourceHash) {
+        savelog_pkg(sourceHash, Collections.<String>emptySet());
+    }
+
+    /**
+     * Log record to applyalter_pkg of connected database instances (the untargeted ones are not connected just
+     * because of this record). Unlike record to applyalter_log, this one does commit!
+     *
+     * @param sourceHash  hash of source bundle
+     * @param skippedDbIds database instances to skip (the record is already there)
+     */
+    protected void savelog_pkg(String sourceHash, @Nonnull Set<String> skippedDbIds) {
         if (sourceHash == null || runContext.getRunMode() != RunMode.SHARP) {
             //do not write to database
             return;
         }
 
         for (DbInstance d : db.getEntries()) {
-            savelog_pkg(d, sourceHash);
+            if (d.isConnected() && !skippedDbIds.contains(d.getId())) {
+                savelog_pkg(d, sourceHash);
+            }
+        }
+    }
+
+    /**
+     * Has the source bundle already been completely applied to the database instance?
+     * The record in applyalter_pkg is written only when all alterscripts succeed.
+     *
+     * @param d          database instance
+     * @param sourceHash hash of source bundle
+     * @return true if there is record with this hash
+     */
+    protected boolean isApplied(DbInstance d, @Nonnull String sourceHash) {
+        Connection c = d.getConnection(runContext);
+        PreparedStatement s = null;
+        ResultSet r = null;
+        try {
+            s = c.prepareStatement("select 1 from " + d.getPkgLogTable() + " where hash=? and dbid=?");
+            s.setString(1, sourceHash);
+            s.setString(2, d.getId());
+            s.setMaxRows(1);
+            r = s.executeQuery();
+            return r.next();
+        } catch (SQLException e) {
+            runContext.report(ReportLevel.ERROR, "failed to select applyalter_pkg record: %s", e.getMessage());
+            try {
+                //postgresql: failed query aborts the whole transaction
+                d.rollback();
+            } catch (SQLException ignored) {
+                //ignore
+            }
+            return false;
+        } finally {
+            DbUtils.close(s, r);
         }
     }
 
@@ -127,15 +175,16 @@ class PkgLogTableHandler {
      *
      * @param outputFile path to output file; "-" is handled
      * @param hash       optional search criterion: SHA1 hash value (it is converted to uppercase inside)
+     * @param stdout     standard output, used for "-" (daemon: the client's one)
      */
-    public void queryAndWrite(@Nonnull String outputFile, @Nullable String hash) {
-        final boolean stdout = "-".equals(outputFile);
+    public void queryAndWrite(@Nonnull String outputFile, @Nullable String hash, OutputStream stdout) {
+        final boolean toStdout = "-".equals(outputFile);
 
         runContext.report(MAIN, "querying pkg log table");
         final List<PkgLogTableHandler.RecordsForDb> result = executeQuery(hash);
         Writer wr = null;
         try {
-            final OutputStream os = stdout ? System.out : new FileOutputStream(outputFile);
+            final OutputStream os = toStdout ? stdout : new FileOutputStream(outputFile);
             wr = new OutputStreamWriter(os, "UTF-8");
             XStream xstream = new XStream();
             xstream.processAnnotations(QueryResult.class);
@@ -144,7 +193,7 @@ class PkgLogTableHandler {
         } catch (IOException e) {
             runContext.report(ERROR, e, "cannot write to file %s", outputFile);
         } finally {
-            if (!stdout) {
+            if (!toStdout) {
                 IOUtils.closeQuietly(wr);
             }
         }
@@ -2,6 +2,7 @@ package ch.ips.g2.applyalter;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -80,7 +81,15 @@ public class PrintWriterRunContext implements RunContext {
 
     public static PrintWriterRunContext createInstance(boolean isIncrimental, RunMode rnmd,
                                                        @Nullable ReportLevel quietLevel) {
-        PrintWriterRunContext rctx = createStdInstance();
+        return createInstance(System.out, System.err, isIncrimental, rnmd, quietLevel);
+    }
+
+    /**
+     * Create instance for given output and error streams (daemon mode).
+     */
+    public static PrintWriterRunContext createInstance(PrintStream out, PrintStream err, boolean isIncrimental,
+                                                       RunMode rnmd, @Nullable ReportLevel quietLevel) {
+        PrintWriterRunContext rctx = new PrintWriterRunContext(new PrintWriter(out, true), new PrintWriter(err, true));
         rctx.setRunMode(rnmd);
         rctx.setIncremental(isIncrimental);
         rctx.setQuietLevel(quietLevel);
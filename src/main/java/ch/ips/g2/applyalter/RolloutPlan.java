@@ -0,0 +1,93 @@
+package ch.ips.g2.applyalter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rollout of alterscripts in waves of database instances, see {@link ApplyAlter#ROLLOUT_WAVES}.
+ * Not thread safe: used only by the main thread.
+ */
+class RolloutPlan {
+    private final List<Integer> sizes;
+    private final long threshold;
+
+    /**
+     * Create the plan.
+     *
+     * @param spec      comma separated wave sizes: number of instances or percentage of all instances (<code>10%</code>);
+     *                  <code>rest</code> or missing last wave = all remaining instances
+     * @param instances number of database instances
+     * @param threshold maximum duration of alterscript (milliseconds) allowing the next wave; 0 = no limit
+     * @throws ApplyAlterException invalid specification
+     */
+    public RolloutPlan(String spec, int instances, long threshold) throws ApplyAlterException {
+        this.sizes = parseWaves(spec, instances);
+        this.threshold = threshold;
+    }
+
+    private static List<Integer> parseWaves(String spec, int instances) throws ApplyAlterException {
+        final List<Integer> result = new ArrayList<Integer>();
+        int remaining = instances;
+        for (String i : spec.split(",")) {
+            final String wave = i.trim();
+            if (wave.length() == 0 || remaining == 0) {
+                continue;
+            }
+            int size;
+            try {
+                if ("rest".equalsIgnoreCase(wave)) {
+                    size = remaining;
+                } else if (wave.endsWith("%")) {
+                    final double percent = Double.parseDouble(wave.substring(0, wave.length() - 1));
+                    size = (int) Math.ceil(instances * percent / 100);
+                } else {
+                    size = Integer.parseInt(wave);
+                }
+            } catch (NumberFormatException e) {
+                throw new ApplyAlterException("Invalid rollout wave %s in %s", wave, spec);
+            }
+            if (size < 1) {
+                throw new ApplyAlterException("Invalid rollout wave %s in %s", wave, spec);
+            }
+            size = Math.min(size, remaining);
+            result.add(size);
+            remaining -= size;
+        }
+        if (remaining > 0) {
+            result.add(remaining);
+        }
+        return result;
+    }
+
+    /**
+     * Number of instances in every wave; the sum is the number of all instances.
+     */
+    public List<Integer> getSizes() {
+        return sizes;
+    }
+
+    /**
+     * Find alterscripts too slow to continue with the next wave.
+     *
+     * @param durations maximum duration of every alterscript in the wave (milliseconds)
+     * @return alterscripts over the threshold with their durations, sorted by id; empty = continue
+     */
+    public Map<String, Long> findSlow(Map<String, Long> durations) {
+        final Map<String, Long> result = new TreeMap<String, Long>();
+        if (threshold <= 0) {
+            return result;
+        }
+        for (Map.Entry<String, Long> e : durations.entrySet()) {
+            if (e.getValue() > threshold) {
+                result.put(e.getKey(), e.getValue());
+            }
+        }
+        return result;
+    }
+
+    public long getThreshold() {
+        return threshold;
+    }
+}
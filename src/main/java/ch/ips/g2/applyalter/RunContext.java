@@ -2,6 +2,8 @@ package ch.ips.g2.applyalter;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Execution context, providing methods to output the results and report the processing steps.
@@ -100,4 +102,124 @@ public interface RunContext extends Closeable {
             wrapped.close();
         }
     }
+
+    /**
+     * Buffering wrapper: reports are recorded and written to the wrapped context later, by {@link #replay()}.
+     * Used when alterscripts are executed concurrently: each of them is reported as a whole when it finishes.
+     * Not thread safe: it must be used by one thread at a time.
+     */
+    class BufferedRunContext extends WrapperRunContext {
+        private List<Runnable> events = new ArrayList<Runnable>();
+        private final RunContext target;
+
+        public BufferedRunContext(RunContext wrapped) {
+            super(wrapped);
+            this.target = wrapped;
+        }
+
+        @Override
+        public void report(final ReportLevel level, final String format, final Object... args) {
+            events.add(new Runnable() {
+                public void run() {
+                    target.report(level, format, args);
+                }
+            });
+        }
+
+        @Override
+        public void report(final ReportLevel level, final Exception e, final String format, final Object... args) {
+            events.add(new Runnable() {
+                public void run() {
+                    target.report(level, e, format, args);
+                }
+            });
+        }
+
+        @Override
+        public void reportProperty(final ReportLevel level, final String key, final Object value) {
+            events.add(new Runnable() {
+                public void run() {
+                    target.reportProperty(level, key, value);
+                }
+            });
+        }
+
+        @Override
+        public void subreport(final String subreportName, Runnable run) {
+            final List<Runnable> outer = events;
+            final List<Runnable> nested = new ArrayList<Runnable>();
+            events = nested;
+            try {
+                run.run();
+            } finally {
+                events = outer;
+                events.add(new Runnable() {
+                    public void run() {
+                        target.subreport(subreportName, new Runnable() {
+                            public void run() {
+                                replay(nested);
+                            }
+                        });
+                    }
+                });
+            }
+        }
+
+        /**
+         * Nothing to close: the wrapped context is shared.
+         */
+        @Override
+        public void close() {
+        }
+
+        /**
+         * Write all recorded reports to the wrapped context and clear the buffer.
+         */
+        public void replay() {
+            final List<Runnable> recorded = events;
+            events = new ArrayList<Runnable>();
+            replay(recorded);
+        }
+
+        private static void replay(List<Runnable> recorded) {
+            for (Runnable i : recorded) {
+                i.run();
+            }
+        }
+    }
+
+    /**
+     * Thread-safe wrapper: all methods are synchronized. Used when reporting from several threads
+     * (for example, connecting to database instances concurrently).
+     */
+    class SynchronizedRunContext extends WrapperRunContext {
+        public SynchronizedRunContext(RunContext wrapped) {
+            super(wrapped);
+        }
+
+        @Override
+        public synchronized void report(ReportLevel level, String format, Object... args) {
+            super.report(level, format, args);
+        }
+
+        @Override
+        public synchronized void report(ReportLevel level, Exception e, String format, Object... args) {
+            super.report(level, e, format, args);
+        }
+
+        @Override
+        public synchronized void reportProperty(ReportLevel level, String key, Object value) {
+            super.reportProperty(level, key, value);
+        }
+
+        @Override
+        public synchronized void subreport(String subreportName, Runnable run) {
+            super.subreport(subreportName, run);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            super.close();
+        }
+    }
 }
@@ -1,10 +1,12 @@
 package ch.ips.g2.applyalter;
 
 import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Map;
 
 /**
@@ -15,6 +17,12 @@ import java.util.Map;
  */
 @XStreamAlias("sql")
 public class SQL extends AbstractStatement {
+    /**
+     * Execute outside of transaction: pending work is committed first. Needed for statements like
+     * <code>CREATE INDEX CONCURRENTLY</code> or <code>VACUUM</code>.
+     */
+    @XStreamAsAttribute
+    protected Boolean autocommit;
 
     public SQL() {
         super();
@@ -25,6 +33,22 @@ public class SQL extends AbstractStatement {
         this.statement = statement;
     }
 
+    public boolean isAutocommit() {
+        return autocommit != null && autocommit;
+    }
+
+    public void setAutocommit(Boolean autocommit) {
+        this.autocommit = autocommit;
+    }
+
+    /**
+     * Autocommit statement commits the pending work.
+     */
+    @Override
+    public boolean isSelfCommitting() {
+        return isAutocommit();
+    }
+
     /**
      * Sql statement is just the statement itself.
      *
@@ -34,10 +58,27 @@ public class SQL extends AbstractStatement {
         return getStatement();
     }
 
+    /**
+     * Can this statement be sent in batch with other statements? It must be plain SQL statement without
+     * datafile placeholders, without any error handling and without own timeouts.
+     *
+     * @param datafiles data files of the alterscript
+     * @return true if batchable
+     */
+    public boolean isBatchable(Map<String, byte[]> datafiles) {
+        return getClass() == SQL.class && !isAutocommit() && !canFail() && getIgnoredSqlStates() == null && getIgnoredSqlCodes() == null
+                && getLockTimeout() == null && getStatementTimeout() == null
+                && (datafiles == null || !REGEX_PLACEHOLDER_DATAFILE.matcher(getSqlStatement()).find());
+    }
+
     public void execute(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles)
             throws ApplyAlterException, SQLException {
         Connection connection = dbConn.getConnection(ctx);
         String sql = getSqlStatement().trim();
+        if (isAutocommit()) {
+            executeAutocommit(dbConn, ctx, connection, sql);
+            return;
+        }
 
         PreparedStatement st = null;
         try {
@@ -54,4 +95,34 @@ public class SQL extends AbstractStatement {
 
     }
 
+    /**
+     * Commit pending work and execute the statement in autocommit mode. Such statement cannot be rolled back,
+     * so it is executed only in {@link RunMode#SHARP} mode; other modes just print it.
+     */
+    private void executeAutocommit(DbInstance dbConn, RunContext ctx, Connection connection, String sql)
+            throws SQLException {
+        if (!RunMode.SHARP.equals(ctx.getRunMode())) {
+            ctx.report(ReportLevel.STATEMENT_STEP, "autocommit statement not executed in %s mode: %s%n",
+                    ctx.getRunMode(), sql);
+            return;
+        }
+        connection.commit();
+        connection.setAutoCommit(true);
+        Statement st = null;
+        try {
+            st = connection.createStatement();
+            int rows = 0;
+            if (!st.execute(sql)) {
+                rows = st.getUpdateCount();
+            }
+            ctx.report(ReportLevel.STATEMENT_STEP, "autocommit statement executed, changed rows: %d%n", rows);
+        } catch (SQLException e) {
+            dbConn.cleanupFailedAutocommit(ctx, sql);
+            throw e;
+        } finally {
+            DbUtils.close(st);
+            connection.setAutoCommit(false);
+        }
+    }
+
 }
@@ -0,0 +1,117 @@
+package ch.ips.g2.applyalter;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
+import com.thoughtworks.xstream.annotations.XStreamImplicit;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Schemas the alterscript is applied to, one by one (multi-tenant databases with the same objects
+ * in many schemas). Every schema is applied in its own transaction and has its own record in applyalter_log.
+ * <p>
+ * The list is given explicitly (<code>schema</code> elements) and/or by query returning schema names
+ * in the first column; the query is executed on every database instance.
+ */
+@XStreamAlias("schemas")
+public class Schemas {
+    @XStreamImplicit(itemFieldName = "schema")
+    public List<String> names;
+    /**
+     * Query returning schema names.
+     */
+    public String query;
+    /**
+     * Number of connections applying the schemas concurrently; null = one.
+     */
+    @XStreamAsAttribute
+    public Integer parallel;
+
+    public Schemas() {
+        super();
+    }
+
+    public Schemas(String... names) {
+        this();
+        this.names = new ArrayList<String>();
+        for (String i : names) {
+            this.names.add(i);
+        }
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    public void setNames(List<String> names) {
+        this.names = names;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public void setQuery(String query) {
+        this.query = query;
+    }
+
+    public Integer getParallel() {
+        return parallel;
+    }
+
+    public void setParallel(Integer parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Number of connections applying the schemas concurrently.
+     *
+     * @return at least 1
+     */
+    public int getParallelism() {
+        return parallel == null || parallel < 1 ? 1 : parallel;
+    }
+
+    /**
+     * Get the schema names: explicit ones first, then the query result; duplicates and empty values are skipped.
+     *
+     * @param connection connection for the query
+     * @return schema names, in order
+     * @throws SQLException query failed
+     */
+    public List<String> resolve(Connection connection) throws SQLException {
+        final Set<String> result = new LinkedHashSet<String>();
+        if (names != null) {
+            for (String i : names) {
+                add(result, i);
+            }
+        }
+        if (query != null && query.trim().length() > 0) {
+            PreparedStatement st = null;
+            ResultSet rs = null;
+            try {
+                st = connection.prepareStatement(query.trim());
+                rs = st.executeQuery();
+                while (rs.next()) {
+                    add(result, rs.getString(1));
+                }
+            } finally {
+                DbUtils.close(st, rs);
+            }
+        }
+        return new ArrayList<String>(result);
+    }
+
+    private static void add(Set<String> result, String name) {
+        if (name != null && name.trim().length() > 0) {
+            result.add(name.trim());
+        }
+    }
+}
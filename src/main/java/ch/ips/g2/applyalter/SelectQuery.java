@@ -1,20 +1,50 @@
 package ch.ips.g2.applyalter;
 
+import au.com.bytecode.opencsv.CSVWriter;
 import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.Map;
 
 /**
  * SQL select query in Alter script
+ * <p>
+ * With <code>output</code> attribute, the result is not reported but streamed to the file, either as CSV
+ * (with header, NULL as unquoted empty field) or as JSON lines; <code>${dbid}</code> in the file name is replaced
+ * by database id and <code>${schema}</code> by the current schema (required with {@link Schemas}, every schema has
+ * its own file).
  *
  * @author Pavel Tisnovsky
  */
 @XStreamAlias("select")
 public class SelectQuery extends AbstractStatement {
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_JSONL = "jsonl";
+    /**
+     * Default fetch size used for output file.
+     */
+    public static final int DEFAULT_OUTPUT_FETCH_SIZE = 1000;
+
+    @XStreamAsAttribute
+    protected String output;
+    @XStreamAsAttribute
+    protected String format;
+    @XStreamAsAttribute
+    @XStreamAlias("fetch-size")
+    protected Integer fetchSize;
+
     /**
      * Implicit constructor
      */
@@ -41,6 +71,30 @@ public class SelectQuery extends AbstractStatement {
         return this.getStatement();
     }
 
+    public String getOutput() {
+        return output;
+    }
+
+    public void setOutput(String output) {
+        this.output = output;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    public Integer getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(Integer fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
     public void execute(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles)
             throws ApplyAlterException, SQLException {
         Connection connection = dbConn.getConnection(ctx);
@@ -49,7 +103,17 @@ public class SelectQuery extends AbstractStatement {
         ResultSet rs = null;
         try {
             st = prepareStatement(connection, sql, datafiles, 0);
+            if (fetchSize != null) {
+                st.setFetchSize(fetchSize);
+            } else if (output != null) {
+                //connection is not in autocommit mode, so postgresql uses server-side cursor
+                st.setFetchSize(DEFAULT_OUTPUT_FETCH_SIZE);
+            }
             rs = st.executeQuery();
+            if (output != null) {
+                unload(ctx, rs, getOutputFile(dbConn));
+                return;
+            }
             int columns = rs.getMetaData().getColumnCount();
             int count = 0;
             while (rs.next()) {
@@ -69,4 +133,151 @@ public class SelectQuery extends AbstractStatement {
         }
 
     }
+
+    /**
+     * Output file for the database instance.
+     *
+     * @param dbConn database instance
+     * @return file, with <code>${dbid}</code> and <code>${schema}</code> replaced
+     */
+    protected File getOutputFile(DbInstance dbConn) {
+        final String schema = dbConn.sessionSchema != null ? dbConn.sessionSchema : "";
+        return new File(output.replace("${dbid}", dbConn.getId()).replace("${schema}", schema));
+    }
+
+    /**
+     * Is the output written to one file per schema? Required when the alterscript is applied to more schemas.
+     *
+     * @return true if there is no output file or its name contains <code>${schema}</code>
+     */
+    public boolean isOutputPerSchema() {
+        return output == null || output.contains("${schema}");
+    }
+
+    /**
+     * Write the whole result set to the file.
+     */
+    private void unload(RunContext ctx, ResultSet rs, File file)
+            throws SQLException {
+        final boolean jsonl;
+        if (format == null || FORMAT_CSV.equalsIgnoreCase(format)) {
+            jsonl = false;
+        } else if (FORMAT_JSONL.equalsIgnoreCase(format)) {
+            jsonl = true;
+        } else {
+            throw new ApplyAlterException("Unknown select output format: %s", format);
+        }
+
+        final long start = System.currentTimeMillis();
+        int count = 0;
+        try {
+            final Writer out = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+            try {
+                count = jsonl ? writeJsonLines(rs, out) : writeCsv(rs, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new ApplyAlterException("Cannot write select output to " + file, e);
+        }
+        final long time = System.currentTimeMillis() - start;
+        ctx.report(ReportLevel.STATEMENT_STEP, "statement executed, %d records written to %s in %d ms%n",
+                count, file, time);
+        ctx.reportProperty(ReportLevel.STATEMENT, "output", file.getPath());
+        ctx.reportProperty(ReportLevel.STATEMENT, "rows", count);
+        ctx.reportProperty(ReportLevel.STATEMENT, "time", time);
+    }
+
+    static int writeCsv(ResultSet rs, Writer out)
+            throws SQLException, IOException {
+        final ResultSetMetaData meta = rs.getMetaData();
+        final int columns = meta.getColumnCount();
+        final CSVWriter csv = new CSVWriter(out);
+        final String[] row = new String[columns];
+        for (int column = 1; column <= columns; column++) {
+            row[column - 1] = meta.getColumnLabel(column);
+        }
+        csv.writeNext(row);
+        int count = 0;
+        while (rs.next()) {
+            count++;
+            for (int column = 1; column <= columns; column++) {
+                //NULL is written as empty field without quotes, so it differs from empty string
+                row[column - 1] = rs.getString(column);
+            }
+            csv.writeNext(row);
+        }
+        csv.flush();
+        return count;
+    }
+
+    static int writeJsonLines(ResultSet rs, Writer out)
+            throws SQLException, IOException {
+        final ResultSetMetaData meta = rs.getMetaData();
+        final int columns = meta.getColumnCount();
+        final String[] names = new String[columns];
+        for (int column = 1; column <= columns; column++) {
+            names[column - 1] = meta.getColumnLabel(column);
+        }
+        int count = 0;
+        while (rs.next()) {
+            count++;
+            out.write('{');
+            for (int column = 1; column <= columns; column++) {
+                if (column > 1) {
+                    out.write(',');
+                }
+                writeJsonString(out, names[column - 1]);
+                out.write(':');
+                final Object value = rs.getObject(column);
+                if (value == null) {
+                    out.write("null");
+                } else if (value instanceof Boolean || value instanceof Number && isFinite((Number) value)) {
+                    out.write(value.toString());
+                } else {
+                    writeJsonString(out, rs.getString(column));
+                }
+            }
+            out.write("}\n");
+        }
+        return count;
+    }
+
+    private static boolean isFinite(Number n) {
+        return !(n instanceof Double || n instanceof Float) || !Double.isNaN(n.doubleValue())
+                && !Double.isInfinite(n.doubleValue());
+    }
+
+    private static void writeJsonString(Writer out, String value)
+            throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
 }
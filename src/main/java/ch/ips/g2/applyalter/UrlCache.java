@@ -0,0 +1,264 @@
+package ch.ips.g2.applyalter;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Local cache of alterscripts fetched over HTTP(S), see {@link ApplyAlter#URL_CACHE}. Content is stored by its
+ * SHA-1 (<code>objects/</code>), every URL has its metadata (<code>urls/</code>: content hash, ETag,
+ * Last-Modified). Cached URL is revalidated by conditional request once per instance, so one run downloads
+ * every archive at most once, and a later run does not download unchanged ones at all. Thread safe.
+ */
+class UrlCache {
+    /**
+     * Maximum number of concurrent downloads of {@link #prefetch(Collection)}.
+     */
+    private static final int MAX_FETCH_THREADS = 8;
+
+    private final File dir;
+    private final boolean temporary;
+    /**
+     * URLs already fetched or revalidated by this instance.
+     */
+    private final Map<String, File> resolved = new ConcurrentHashMap<String, File>();
+    private final Map<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * @param dir cache directory, created when needed
+     */
+    public UrlCache(File dir) {
+        this(dir, false);
+    }
+
+    private UrlCache(File dir, boolean temporary) {
+        this.dir = dir;
+        this.temporary = temporary;
+    }
+
+    /**
+     * Cache for one loading only, see {@link #close()}.
+     */
+    public static UrlCache createTemporary() throws ApplyAlterException {
+        try {
+            final File dir = File.createTempFile("applyalter-urls", "");
+            if (!dir.delete() || !dir.mkdir()) {
+                throw new IOException("cannot create directory " + dir);
+            }
+            return new UrlCache(dir, true);
+        } catch (IOException e) {
+            throw new ApplyAlterException("Unable to create temporary URL cache", e);
+        }
+    }
+
+    /**
+     * Can the URL be cached? Only HTTP(S) URLs are; others are read directly.
+     */
+    public static boolean isCacheable(URL url) {
+        return "http".equals(url.getProtocol()) || "https".equals(url.getProtocol());
+    }
+
+    /**
+     * Get local copy of URL content; it is downloaded, or revalidated if it is already cached.
+     *
+     * @param url HTTP(S) URL
+     * @return cached file
+     * @throws FileNotFoundException no such document (HTTP 404)
+     * @throws IOException           download failed
+     */
+    public File fetch(URL url) throws IOException {
+        final String key = url.toString();
+        File f = resolved.get(key);
+        if (f != null) {
+            return f;
+        }
+        locks.putIfAbsent(key, new Object());
+        synchronized (locks.get(key)) {
+            f = resolved.get(key);
+            if (f == null) {
+                f = download(url);
+                resolved.put(key, f);
+            }
+            return f;
+        }
+    }
+
+    /**
+     * Fetch URLs concurrently; failures are ignored here, they are reported by the next {@link #fetch(URL)}.
+     *
+     * @param urls URLs; those not {@link #isCacheable(URL) cacheable} are skipped
+     */
+    public void prefetch(Collection<URL> urls) {
+        final List<Callable<File>> tasks = new ArrayList<Callable<File>>();
+        for (final URL url : urls) {
+            if (isCacheable(url)) {
+                tasks.add(new Callable<File>() {
+                    public File call() throws IOException {
+                        return fetch(url);
+                    }
+                });
+            }
+        }
+        if (tasks.size() < 2) {
+            //nothing to do concurrently
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(tasks.size(), MAX_FETCH_THREADS),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, "applyalter-fetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try {
+            executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Delete temporary cache; permanent cache is kept.
+     */
+    public void close() {
+        if (temporary) {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private File download(URL url) throws IOException {
+        final File metaFile = new File(new File(dir, "urls"), AlterLoader.bytes2hex(sha1(url.toString().getBytes("UTF-8"))));
+        final Properties meta = loadMeta(metaFile);
+        final String cachedHash = meta.getProperty("sha1");
+        final File cached = cachedHash == null ? null : new File(new File(dir, "objects"), cachedHash);
+
+        final HttpURLConnection c = (HttpURLConnection) url.openConnection();
+        try {
+            if (cached != null && cached.isFile()) {
+                if (meta.getProperty("etag") != null) {
+                    c.setRequestProperty("If-None-Match", meta.getProperty("etag"));
+                }
+                if (meta.getProperty("lastModified") != null) {
+                    c.setRequestProperty("If-Modified-Since", meta.getProperty("lastModified"));
+                }
+            }
+            final int status = c.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null && cached.isFile()) {
+                return cached;
+            }
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                throw new FileNotFoundException(url.toString());
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + status + " for " + url);
+            }
+            final File object = store(c.getInputStream());
+            meta.clear();
+            meta.setProperty("url", url.toString());
+            meta.setProperty("sha1", object.getName());
+            if (c.getHeaderField("ETag") != null) {
+                meta.setProperty("etag", c.getHeaderField("ETag"));
+            }
+            if (c.getHeaderField("Last-Modified") != null) {
+                meta.setProperty("lastModified", c.getHeaderField("Last-Modified"));
+            }
+            saveMeta(metaFile, meta);
+            return object;
+        } finally {
+            c.disconnect();
+        }
+    }
+
+    /**
+     * Store content under its hash.
+     */
+    private File store(InputStream content) throws IOException {
+        final File objects = new File(dir, "objects");
+        FileUtils.forceMkdir(objects);
+        final File tmp = File.createTempFile("fetch", ".tmp", objects);
+        final MessageDigest digest = AlterLoader.initHashDigest();
+        final OutputStream os = new FileOutputStream(tmp);
+        try {
+            final byte[] buf = new byte[8192];
+            int len;
+            while ((len = content.read(buf)) >= 0) {
+                digest.update(buf, 0, len);
+                os.write(buf, 0, len);
+            }
+        } finally {
+            os.close();
+            content.close();
+        }
+        final File object = new File(objects, AlterLoader.bytes2hex(digest.digest()));
+        if (object.isFile()) {
+            //the same content is already cached
+            FileUtils.deleteQuietly(tmp);
+        } else if (!tmp.renameTo(object)) {
+            FileUtils.deleteQuietly(tmp);
+            throw new IOException("cannot store " + object);
+        }
+        return object;
+    }
+
+    private static Properties loadMeta(File metaFile) {
+        final Properties meta = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(metaFile);
+            meta.load(is);
+        } catch (IOException e) {
+            //not cached (or broken metadata, download again)
+            meta.clear();
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        return meta;
+    }
+
+    private static void saveMeta(File metaFile, Properties meta) throws IOException {
+        FileUtils.forceMkdir(metaFile.getParentFile());
+        final File tmp = new File(metaFile.getPath() + ".tmp" + Thread.currentThread().getId());
+        final OutputStream os = new FileOutputStream(tmp);
+        try {
+            meta.store(os, null);
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(metaFile)) {
+            //windows: rename does not replace
+            FileUtils.deleteQuietly(metaFile);
+            if (!tmp.renameTo(metaFile)) {
+                FileUtils.deleteQuietly(tmp);
+                throw new IOException("cannot store " + metaFile);
+            }
+        }
+    }
+
+    private static byte[] sha1(byte[] data) {
+        final MessageDigest digest = AlterLoader.initHashDigest();
+        return digest.digest(data);
+    }
+}
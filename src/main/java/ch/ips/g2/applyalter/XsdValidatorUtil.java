@@ -16,6 +16,10 @@ import static ch.ips.g2.applyalter.ReportLevel.MAIN;
  * @author Kamil Podlesak &lt;kamil.podlesak@lmc.eu&gt;
  */
 class XsdValidatorUtil {
+    /**
+     * Compiled schema: it is immutable and thread safe, so it is compiled only once per JVM (daemon mode).
+     */
+    private static Schema compiledSchema;
 
     /**
      * Read XSD file applyalter.xsd and construct validator.
@@ -23,14 +27,17 @@ class XsdValidatorUtil {
      * @param runContext execution context, providing methods to output the results and report the processing steps.
      * @throws ApplyAlterException error parsing xsd
      */
-    static Validator readXsd(RunContext runContext)
+    static synchronized Validator readXsd(RunContext runContext)
             throws ApplyAlterException {
         try {
-            // 1. Lookup a factory for the W3C XML Schema language
-            SchemaFactory factory = SchemaFactory.newInstance("http://www.w3.org/2001/XMLSchema");
+            if (compiledSchema == null) {
+                // 1. Lookup a factory for the W3C XML Schema language
+                SchemaFactory factory = SchemaFactory.newInstance("http://www.w3.org/2001/XMLSchema");
 
-            // 2. Compile the schema.
-            Schema schema = compileXMLSchema(runContext, factory);
+                // 2. Compile the schema.
+                compiledSchema = compileXMLSchema(runContext, factory);
+            }
+            Schema schema = compiledSchema;
 
             // 3. Get a validator from the schema and return it.
             return schema.newValidator();
@@ -0,0 +1,48 @@
+package ch.ips.g2.applyalter;
+
+import org.apache.commons.io.FileUtils;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.Test;
+
+import javax.xml.validation.Validator;
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+@Test
+public class AlterCacheTest {
+
+    public void changedDatafileIsReloaded() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-" + System.nanoTime()).getAbsoluteFile();
+        try {
+            final File a = new File(dir, "a.xml");
+            File data = new File(dir, "data/a.csv");
+            FileUtils.writeStringToFile(a, "<alter><datafile>data/a.csv</datafile></alter>");
+            FileUtils.writeStringToFile(data, "1;x");
+            ApplyAlter applyAlter = mock(ApplyAlter.class);
+            when(applyAlter.getPlaceholders()).thenReturn(Collections.<String, String>emptyMap());
+            when(applyAlter.load(isNull(Validator.class), eq(a.getPath()))).thenAnswer(new Answer<Alters>() {
+                public Alters answer(InvocationOnMock invocation) {
+                    return new AlterLoader(ApplyAlter.getSharedXStream(), null, new HashMap<String, byte[]>())
+                            .loadAlters(a.getPath());
+                }
+            });
+            AlterCache cache = new AlterCache(2);
+
+            Alters first = cache.load(applyAlter, null, a.getPath());
+            assertSame(cache.load(applyAlter, null, a.getPath()), first);
+            verify(applyAlter, times(1)).load(null, a.getPath());
+
+            FileUtils.writeStringToFile(data, "22;yy");
+            Alters changed = cache.load(applyAlter, null, a.getPath());
+            verify(applyAlter, times(2)).load(null, a.getPath());
+            assertEquals(new String(changed.getAlters().get(0)._datafiles.get("data/a.csv"), "UTF-8"), "22;yy");
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+}
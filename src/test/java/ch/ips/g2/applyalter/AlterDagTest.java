@@ -0,0 +1,68 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+@Test
+public class AlterDagTest {
+
+    private static Alter alter(String id, String... dependsOn) {
+        Alter a = new Alter();
+        a.setId(id);
+        a.setDependsOn(Arrays.asList(dependsOn));
+        return a;
+    }
+
+    public void dependentsWaitForDependencies() {
+        Alter a = alter("a.xml");
+        Alter b = alter("b.xml", "a");
+        Alter c = alter("c.xml");
+        Alter d = alter("d.xml", "b.xml", "c.xml");
+        AlterDag dag = new AlterDag(Arrays.asList(a, b, c, d), Collections.<String>emptySet());
+
+        assertEquals(dag.takeReady(10), Arrays.asList(a, c));
+        assertEquals(dag.takeReady(10), Collections.emptyList());
+        dag.finished(c);
+        assertEquals(dag.takeReady(10), Collections.emptyList());
+        dag.finished(a);
+        assertEquals(dag.takeReady(10), Arrays.asList(b));
+        dag.finished(b);
+        assertEquals(dag.takeReady(10), Arrays.asList(d));
+        assertTrue(dag.isAllStarted());
+        assertEquals(dag.getRunning(), 1);
+    }
+
+    public void takeReadyRespectsLimit() {
+        Alter a = alter("a.xml");
+        Alter b = alter("b.xml");
+        AlterDag dag = new AlterDag(Arrays.asList(a, b), Collections.<String>emptySet());
+
+        assertEquals(dag.takeReady(1), Arrays.asList(a));
+        assertEquals(dag.takeReady(0), Collections.emptyList());
+        assertEquals(dag.takeReady(1), Arrays.asList(b));
+    }
+
+    public void dependencyOnPreviousAlterIsSatisfied() {
+        Alter b = alter("b.xml", "a.xml");
+        AlterDag dag = new AlterDag(Arrays.asList(b), Collections.singleton("a.xml"));
+        assertEquals(dag.takeReady(10), Arrays.asList(b));
+    }
+
+    public void unknownDependencyIsAssumedApplied() {
+        Alter b = alter("b.xml", "a.xml");
+        AlterDag dag = new AlterDag(Arrays.asList(b), Collections.<String>emptySet());
+        assertEquals(dag.getUnresolved(), Arrays.asList("b.xml -> a.xml"));
+        assertEquals(dag.takeReady(10), Arrays.asList(b));
+    }
+
+    @Test(expectedExceptions = ApplyAlterException.class)
+    public void cycleFails() {
+        List<Alter> alters = Arrays.asList(alter("a.xml", "c.xml"), alter("b.xml", "a.xml"), alter("c.xml", "b.xml"));
+        new AlterDag(alters, Collections.<String>emptySet());
+    }
+}
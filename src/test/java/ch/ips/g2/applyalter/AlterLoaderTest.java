@@ -0,0 +1,90 @@
+package ch.ips.g2.applyalter;
+
+import com.thoughtworks.xstream.XStream;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.testng.Assert.*;
+
+@Test
+public class AlterLoaderTest {
+
+    private static final String SCRIPT = "applyalter_pkg_pgsql.xml";
+
+    private AlterLoader createLoader() {
+        XStream xstream = new XStream();
+        xstream.processAnnotations(new Class[]{Alter.class, SQL.class, Check.class});
+        return new AlterLoader(xstream, null, Collections.<String, byte[]>emptyMap());
+    }
+
+    private AlterLoader.AlterSource createSource() {
+        return new AlterLoader.RelativeToClassAlterSource(ApplyAlter.class, SCRIPT);
+    }
+
+    public void headerHasSameHash() {
+        Alter full = createLoader().parseScriptFile(SCRIPT, createSource(), null);
+        Alter header = createLoader().parseScriptHeader(SCRIPT, createSource(), null);
+
+        assertFalse(full.isHeaderOnly());
+        assertTrue(header.isHeaderOnly());
+        assertEquals(header.getId(), full.getId());
+        assertEquals(header.getHash(), full.getHash());
+        assertEquals(header.engine, "Postgresql");
+        assertEquals(header.getSchema(), "public");
+        assertTrue(header.getStatements().isEmpty());
+    }
+
+    public void appliedScriptIsNotParsed() {
+        AlterLoader loader = createLoader();
+        loader.setAppliedState(new AlterLoader.AppliedState() {
+            public boolean isApplied(Alter header) {
+                return true;
+            }
+        });
+        assertTrue(loader.parseScriptFile(SCRIPT, createSource(), null).isHeaderOnly());
+
+        loader.setAppliedState(new AlterLoader.AppliedState() {
+            public boolean isApplied(Alter header) {
+                return false;
+            }
+        });
+        Alter alter = loader.parseScriptFile(SCRIPT, createSource(), null);
+        assertFalse(alter.isHeaderOnly());
+        assertEquals(alter.getStatements().size(), 3);
+    }
+
+    public void directoryIsLoadedSorted() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "alters-" + System.nanoTime());
+        try {
+            FileUtils.writeStringToFile(new File(dir, "b.xml"), "<alter><sql><statement>select 2</statement></sql></alter>");
+            FileUtils.writeStringToFile(new File(dir, "a/c.xml"), "<alter><sql><statement>select 3</statement></sql></alter>");
+            FileUtils.writeStringToFile(new File(dir, "a/c.csv"), "1;x");
+            FileUtils.writeStringToFile(new File(dir, ".hidden.xml"), "not an alterscript");
+            File index = new File(dir.getPath() + ".idx");
+            index.deleteOnExit();
+
+            AlterLoader loader = createLoader();
+            loader.setDirectoryIndex(new DirectoryIndex(index));
+            Alters alters = loader.loadAlters(dir.getPath());
+
+            assertEquals(alters.getCount(), 2);
+            assertEquals(alters.getAlters().get(0).getId(), "c.xml");
+            assertEquals(alters.getAlters().get(1).getId(), "b.xml");
+            assertTrue(index.isFile());
+            //index gives the same hash as reading the files
+            assertEquals(createLoader().loadAlters(dir.getPath()).getSourceHash(), alters.getSourceHash());
+            DirectoryIndex reloaded = new DirectoryIndex(index);
+            assertNotNull(reloaded.getHash(new File(dir, "a/c.csv")));
+
+            //datafiles are part of the source hash
+            FileUtils.writeStringToFile(new File(dir, "a/c.csv"), "22;yy");
+            assertNull(reloaded.getHash(new File(dir, "a/c.csv")));
+            assertFalse(createLoader().loadAlters(dir.getPath()).getSourceHash().equals(alters.getSourceHash()));
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ch.ips.g2.applyalter;
+
+import com.thoughtworks.xstream.XStream;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+
+import static org.testng.Assert.*;
+
+@Test
+public class AlterQueueTest {
+
+    private AlterLoader createLoader() {
+        return new AlterLoader(new XStream(), null, Collections.<String, byte[]>emptyMap());
+    }
+
+    public void alterscriptsThenEnd() {
+        AlterQueue queue = new AlterQueue(4);
+        Alter alter = new Alter();
+        queue.add(alter);
+        queue.load(createLoader());
+
+        assertTrue(queue.hasNext());
+        assertSame(queue.next(), alter);
+        assertFalse(queue.hasNext());
+        assertEquals(queue.getCount(), 1);
+        //SHA-1 of nothing
+        assertEquals(queue.getSourceHash(), "DA39A3EE5E6B4B0D3255BFEF95601890AFD80709");
+    }
+
+    @Test(expectedExceptions = ApplyAlterException.class)
+    public void failureIsThrownByConsumer() {
+        AlterQueue queue = new AlterQueue(4);
+        queue.load(createLoader(), "no-such-file.xml");
+
+        queue.hasNext();
+    }
+
+    public void errorIsThrownByConsumer() {
+        AlterQueue queue = new AlterQueue(4);
+        queue.load(new AlterLoader(new XStream(), null, Collections.<String, byte[]>emptyMap()) {
+            @Override
+            public String loadAlters(AlterSink sink, String... filenames) {
+                throw new OutOfMemoryError("test");
+            }
+        });
+
+        try {
+            queue.hasNext();
+            fail();
+        } catch (ApplyAlterException e) {
+            assertTrue(e.getCause() instanceof OutOfMemoryError);
+        }
+    }
+}
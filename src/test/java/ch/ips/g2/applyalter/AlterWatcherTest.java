@@ -0,0 +1,101 @@
+package ch.ips.g2.applyalter;
+
+import org.apache.commons.io.FileUtils;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+@Test
+public class AlterWatcherTest {
+
+    @SuppressWarnings("unchecked")
+    public void onlyChangedAlterscriptsAreReloaded() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "watch-" + System.nanoTime()).getAbsoluteFile();
+        try {
+            File a = new File(dir, "a.xml");
+            File b = new File(dir, "b.xml");
+            File data = new File(dir, "data/b.csv");
+            FileUtils.writeStringToFile(a, "<alter><sql><statement>select 1</statement></sql></alter>");
+            FileUtils.writeStringToFile(b, "<alter><datafile>data/b.csv</datafile></alter>");
+            FileUtils.writeStringToFile(data, "1;x");
+            ApplyAlter applyAlter = mock(ApplyAlter.class);
+            when(applyAlter.createLoader()).thenReturn(
+                    new AlterLoader(ApplyAlter.getSharedXStream(), null, new HashMap<String, byte[]>()));
+            AlterWatcher watcher = new AlterWatcher(applyAlter, new InternalRunContext(), dir.getPath());
+
+            watcher.applyAll();
+            ArgumentCaptor<Collection> applied = ArgumentCaptor.forClass(Collection.class);
+            verify(applyAlter).applyKeepingConnections(applied.capture());
+            assertEquals(applied.getValue().size(), 2);
+
+            //touched, but the same content
+            assertTrue(watcher.reload(files(a)).isEmpty());
+
+            FileUtils.writeStringToFile(data, "2;y");
+            assertEquals(ids(watcher.reload(files(data))), Collections.singleton("b.xml"));
+
+            File c = new File(dir, "c.xml");
+            File hidden = new File(dir, ".#c.xml");
+            FileUtils.writeStringToFile(c, "<alter><sql><statement>select 3</statement></sql></alter>");
+            FileUtils.writeStringToFile(hidden, "<alter><sql><statement>select 4</statement></sql></alter>");
+            FileUtils.writeStringToFile(a, "<alter><sql><statement>select 2</statement></sql></alter>");
+            assertEquals(ids(watcher.reload(files(c, hidden, a, new File(dir, "notes.txt")))),
+                    names("a.xml", "c.xml"));
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    public void onlyArgumentDirectoriesGetNewAlterscripts() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "watch-" + System.nanoTime()).getAbsoluteFile();
+        try {
+            File a = new File(dir, "scripts/a.xml");
+            File data = new File(dir, "data/a.xml");
+            FileUtils.writeStringToFile(a, "<alter><datafile>../data/a.xml</datafile></alter>");
+            FileUtils.writeStringToFile(data, "<row/>");
+            ApplyAlter applyAlter = mock(ApplyAlter.class);
+            when(applyAlter.createLoader()).thenReturn(
+                    new AlterLoader(ApplyAlter.getSharedXStream(), null, new HashMap<String, byte[]>()));
+            AlterWatcher watcher = new AlterWatcher(applyAlter, new InternalRunContext(), a.getPath());
+            watcher.applyAll();
+
+            //datafile with .xml suffix is not a new alterscript, it changes the one using it
+            FileUtils.writeStringToFile(data, "<row id='1'/>");
+            File dbconfig = new File(dir, "scripts/dbconfig.xml");
+            FileUtils.writeStringToFile(dbconfig, "<db/>");
+            assertEquals(ids(watcher.reload(files(data, dbconfig))), Collections.singleton("a.xml"));
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static Set<File> files(File... files) {
+        Set<File> result = new LinkedHashSet<File>();
+        Collections.addAll(result, files);
+        return result;
+    }
+
+    private static Set<String> names(String... names) {
+        Set<String> result = new LinkedHashSet<String>();
+        Collections.addAll(result, names);
+        return result;
+    }
+
+    private static Set<String> ids(List<Alter> alters) {
+        Set<String> result = new LinkedHashSet<String>();
+        for (Alter a : alters) {
+            result.add(a.getId());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,73 @@
+package ch.ips.g2.applyalter;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import static org.testng.Assert.*;
+
+@Test
+public class ApplyAlterDaemonTest {
+
+    public void clientArgsAreResolved() {
+        File dir = new File("/work").getAbsoluteFile();
+        String[] args = {"--client", "7000", "-l", "log.xml", "-u", "me", "--fleet", "a.xml,/etc/b.xml",
+                "--client=7001", "db.xml", "/abs/alter.xml"};
+
+        assertEquals(ApplyAlterDaemon.prepareArgs(ApplyAlter.createOptions(), args, dir), Arrays.asList(
+                "-l", new File(dir, "log.xml").getPath(), "-u", "me",
+                "--fleet", new File(dir, "a.xml").getPath() + ",/etc/b.xml",
+                new File(dir, "db.xml").getPath(), "/abs/alter.xml"));
+    }
+
+    public void roundTrip() throws Exception {
+        File tokenDir = new File(System.getProperty("java.io.tmpdir"), "daemon-" + System.nanoTime());
+        final ApplyAlterDaemon daemon = new ApplyAlterDaemon(0, tokenDir);
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    daemon.serve(new PrintStream(new ByteArrayOutputStream()));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        server.setDaemon(true);
+        server.start();
+        try {
+            for (int i = 0; i < 500 && daemon.getLocalPort() < 0; i++) {
+                Thread.sleep(10);
+            }
+            int port = daemon.getLocalPort();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            String[] args = {"--client", String.valueOf(port), "--no-such-option"};
+
+            int code = ApplyAlterDaemon.runClient(port, tokenDir, args,
+                    new PrintStream(out, true), new PrintStream(err, true));
+
+            assertEquals(code, -2);
+            assertTrue(out.toString().contains("--no-such-option"), out.toString());
+            assertTrue(out.toString().contains("usage: applyalter"), out.toString());
+
+            //wrong token: refused
+            File tokenFile = ApplyAlterDaemon.getTokenFile(tokenDir, port);
+            FileUtils.writeStringToFile(tokenFile, "forged");
+            out.reset();
+            code = ApplyAlterDaemon.runClient(port, tokenDir, args,
+                    new PrintStream(out, true), new PrintStream(err, true));
+            assertEquals(code, -1);
+            assertTrue(err.toString().contains("invalid token"), err.toString());
+            assertEquals(out.size(), 0);
+        } finally {
+            daemon.stop();
+            server.join(5000);
+            FileUtils.deleteQuietly(tokenDir);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.annotations.Test;
+
+import javax.sql.DataSource;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+@Test
+public class ApplyAlterEngineTest {
+
+    private static class TestInstance extends DbInstance {
+        @Override
+        public String getUrl() {
+            return "jdbc:test:" + db;
+        }
+
+        @Override
+        public String getEngine() {
+            return "test";
+        }
+    }
+
+    private static DbConfigFile createConfig() {
+        DbInstance main = new TestInstance();
+        main.id = "main";
+        main.host = "localhost";
+        main.db = "app";
+        DbConfigFile config = new DbConfigFile();
+        config.environment = "test";
+        config.instances.add(main);
+        return config;
+    }
+
+    public void sessionsHaveOwnInstances() {
+        ApplyAlterEngine engine = new ApplyAlterEngine(false);
+        DbConfigFile config = createConfig();
+
+        ApplyAlterEngine.Session s1 = engine.createSession(config, new InternalRunContext(), false, "test", false, null);
+        ApplyAlterEngine.Session s2 = engine.createSession(config, new InternalRunContext(), false, "test", false, null);
+        s1.setDataSource("main", mock(DataSource.class));
+
+        DbInstance d1 = s1.getApplyAlter().db.getEntries().get(0);
+        DbInstance d2 = s2.getApplyAlter().db.getEntries().get(0);
+        assertNotSame(d1, d2);
+        assertNotNull(d1.dataSource);
+        assertNull(d2.dataSource);
+        assertNull(config.instances.get(0).dataSource);
+    }
+
+    @Test(expectedExceptions = ApplyAlterException.class)
+    public void unknownInstance() {
+        new ApplyAlterEngine(false).createSession(createConfig(), new InternalRunContext(), false, "test", false, null)
+                .setDataSource("other", mock(DataSource.class));
+    }
+
+    public void failureIsReturned() {
+        ApplyAlterEngine.Session s = new ApplyAlterEngine(false)
+                .createSession(createConfig(), new InternalRunContext(), false, "test", false, null);
+
+        ApplyAlterEngine.Result r = s.apply("no-such-alter.xml");
+
+        assertFalse(r.isSuccess());
+        assertNotNull(r.getFailure());
+        assertNull(r.getSourceHash());
+        assertTrue(r.getUnapplied().isEmpty());
+        try {
+            s.apply("no-such-alter.xml");
+            fail("session must not be reusable");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package ch.ips.g2.applyalter;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+@Test
+public class ApplyAlterTest {
+
+    private static class TestInstance extends DbInstance {
+        @Override
+        public String getUrl() {
+            return "jdbc:test:" + db;
+        }
+
+        @Override
+        public String getEngine() {
+            return "test";
+        }
+    }
+
+    /**
+     * Session applying to one instance using the connection.
+     */
+    private static ApplyAlterEngine.Session createSession(Connection c) {
+        DbInstance main = new TestInstance();
+        main.id = "main";
+        main.host = "localhost";
+        main.db = "app";
+        return createSession(main, c);
+    }
+
+    private static ApplyAlterEngine.Session createSession(DbInstance main, Connection c) {
+        return createSession(main, c, false);
+    }
+
+    private static ApplyAlterEngine.Session createSession(DbInstance main, Connection c, boolean useLogTable) {
+        DbConfigFile config = new DbConfigFile();
+        config.environment = "test";
+        config.instances.add(main);
+        ApplyAlterEngine.Session s = new ApplyAlterEngine(false)
+                .createSession(config, new InternalRunContext(), false, "test", useLogTable, null);
+        s.setConnection("main", c);
+        return s;
+    }
+
+    private static File writeAlter(String name, String content) throws Exception {
+        File f = new File(System.getProperty("java.io.tmpdir"), "alter-" + System.nanoTime() + "/" + name);
+        FileUtils.writeStringToFile(f, content);
+        return f;
+    }
+
+    public void failedBatchIsExecutedOneByOne() throws Exception {
+        Connection c = mock(Connection.class, RETURNS_MOCKS);
+        Statement batch = mock(Statement.class);
+        when(batch.executeBatch()).thenThrow(new SQLException("batch failed"));
+        when(c.createStatement()).thenReturn(batch);
+        PreparedStatement bad = mock(PreparedStatement.class);
+        when(bad.execute()).thenThrow(new SQLException("boom", "42000"));
+        when(c.prepareStatement("update c")).thenReturn(bad);
+        File f = writeAlter("a.xml", "<alter><sql><statement>update a</statement></sql>"
+                + "<sql><statement>update b</statement></sql><sql><statement>update c</statement></sql>"
+                + "<sql><statement>update d</statement></sql></alter>");
+        try {
+            ApplyAlterEngine.Session s = createSession(c);
+            s.getApplyAlter().setSqlBatched(true);
+
+            assertFalse(s.apply(f.getPath()).isSuccess());
+
+            //the batch is not retried from every statement
+            verify(batch, times(1)).executeBatch();
+            verify(c).prepareStatement("update a");
+            verify(c).prepareStatement("update b");
+            verify(c, never()).prepareStatement("update d");
+            verify(c, never()).commit();
+        } finally {
+            FileUtils.deleteQuietly(f.getParentFile());
+        }
+    }
+
+    public void implicitlyCommittedDdlIsNotGrouped() throws Exception {
+        Connection c = mock(Connection.class, RETURNS_MOCKS);
+        PreparedStatement bad = mock(PreparedStatement.class);
+        when(bad.execute()).thenThrow(new SQLException("boom", "42000"));
+        when(c.prepareStatement("update b")).thenReturn(bad);
+        File a = writeAlter("a.xml", "<alter><sql><statement>create table a (x int)</statement></sql></alter>");
+        File b = new File(a.getParentFile(), "b.xml");
+        FileUtils.writeStringToFile(b, "<alter><sql><statement>update b</statement></sql></alter>");
+        try {
+            //as MySQL or Oracle
+            DbInstance main = new TestInstance() {
+                @Override
+                public boolean isDdlTransactional() {
+                    return false;
+                }
+            };
+            main.id = "main";
+            main.host = "localhost";
+            main.db = "app";
+            ApplyAlterEngine.Session s = createSession(main, c);
+            s.getApplyAlter().setGroupCommitSize(2);
+
+            assertFalse(s.apply(a.getPath(), b.getPath()).isSuccess());
+
+            //committed by itself, not executed again after failure of the group
+            verify(c, times(1)).prepareStatement("create table a (x int)");
+        } finally {
+            FileUtils.deleteQuietly(a.getParentFile());
+        }
+    }
+
+    public void rolloutWavesAreRejectedInStreamingMode() throws Exception {
+        Connection c = mock(Connection.class, RETURNS_MOCKS);
+        File f = writeAlter("a.xml", "<alter><sql><statement>update a</statement></sql></alter>");
+        try {
+            ApplyAlterEngine.Session s = createSession(c);
+            s.getApplyAlter().setStreaming(true);
+            s.getApplyAlter().setRolloutWaves("1,rest");
+
+            ApplyAlterEngine.Result r = s.apply(f.getPath());
+            assertFalse(r.isSuccess());
+            assertTrue(r.getFailure().getMessage().contains(ApplyAlter.ROLLOUT_WAVES));
+            verify(c, never()).prepareStatement("update a");
+        } finally {
+            FileUtils.deleteQuietly(f.getParentFile());
+        }
+    }
+
+    public void engineWithoutInternalSchemaIsSkipped() throws Exception {
+        Connection c = mock(Connection.class, RETURNS_MOCKS);
+        File f = writeAlter("a.xml", "<alter><sql><statement>update a</statement></sql></alter>");
+        try {
+            DbInstance main = new TestInstance();
+            main.id = "main";
+            main.host = "localhost";
+            main.db = "app";
+            ApplyAlterEngine.Session s = createSession(main, c, true);
+
+            assertTrue(s.apply(f.getPath()).isSuccess());
+
+            verify(c).prepareStatement("update a");
+            //neither internal scripts nor applyalter_meta
+            verify(c, never()).prepareStatement(contains(main.getMetaTable()));
+        } finally {
+            FileUtils.deleteQuietly(f.getParentFile());
+        }
+    }
+
+    public void untargetedInstanceIsNotConnected() throws Exception {
+        Connection c = mock(Connection.class, RETURNS_MOCKS);
+        Connection other = mock(Connection.class, RETURNS_MOCKS);
+        File f = writeAlter("a.xml", "<alter><engine>test</engine><sql><statement>update a</statement></sql></alter>");
+        try {
+            DbInstance main = new TestInstance();
+            main.id = "main";
+            main.host = "localhost";
+            main.db = "app";
+            DbInstance untargeted = new TestInstance() {
+                @Override
+                public String getEngine() {
+                    return "other";
+                }
+            };
+            untargeted.id = "other";
+            untargeted.host = "localhost";
+            untargeted.db = "other";
+            DbConfigFile config = new DbConfigFile();
+            config.environment = "test";
+            config.instances.add(main);
+            config.instances.add(untargeted);
+            ApplyAlterEngine.Session s = new ApplyAlterEngine(false)
+                    .createSession(config, new InternalRunContext(), false, "test", true, null);
+            s.setConnection("main", c);
+            s.setConnection("other", other);
+
+            assertTrue(s.apply(f.getPath()).isSuccess());
+
+            verify(c).prepareStatement("update a");
+            //neither internal scripts nor applyalter_pkg record
+            verifyZeroInteractions(other);
+        } finally {
+            FileUtils.deleteQuietly(f.getParentFile());
+        }
+    }
+
+    public void catalogSnapshotIsKeptAfterDml() throws Exception {
+        Connection c = mock(Connection.class, RETURNS_MOCKS);
+        DatabaseMetaData md = mock(DatabaseMetaData.class, RETURNS_MOCKS);
+        when(c.getMetaData()).thenReturn(md);
+        File a = writeAlter("a.xml", "<alter><check type=\"table\" name=\"t1\" />"
+                + "<sql><statement>update a</statement></sql></alter>");
+        File b = new File(a.getParentFile(), "b.xml");
+        FileUtils.writeStringToFile(b, "<alter><check type=\"table\" name=\"t2\" />"
+                + "<sql><statement>create table t3 (x int)</statement></sql></alter>");
+        File d = new File(a.getParentFile(), "d.xml");
+        FileUtils.writeStringToFile(d, "<alter><check type=\"table\" name=\"t4\" />"
+                + "<sql><statement>update d</statement></sql></alter>");
+        try {
+            ApplyAlterEngine.Session s = createSession(c);
+            s.getApplyAlter().setCatalogSnapshotUsed(true);
+
+            assertTrue(s.apply(a.getPath(), b.getPath(), d.getPath()).isSuccess());
+
+            //loaded for a.xml, reused by b.xml, reloaded after its DDL for d.xml
+            verify(md, times(2)).getColumns(isNull(String.class), anyString(), isNull(String.class),
+                    isNull(String.class));
+        } finally {
+            FileUtils.deleteQuietly(a.getParentFile());
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class CatalogSnapshotTest {
+
+    public void containsIgnoresCase() {
+        CatalogSnapshot snapshot = new CatalogSnapshot("public");
+        snapshot.add(CheckType.table, null, "applyalter_log");
+
+        assertTrue(snapshot.contains(CheckType.table, null, "APPLYALTER_LOG"));
+        assertTrue(snapshot.contains(CheckType.table, null, "applyalter_log"));
+        assertFalse(snapshot.contains(CheckType.view, null, "applyalter_log"));
+        assertFalse(snapshot.contains(CheckType.table, null, "applyalter_pkg"));
+    }
+
+    public void containsMatchesTable() {
+        CatalogSnapshot snapshot = new CatalogSnapshot("public");
+        snapshot.add(CheckType.column, "applyalter_log", "hash");
+
+        assertTrue(snapshot.contains(CheckType.column, "APPLYALTER_LOG", "HASH"));
+        assertTrue(snapshot.contains(CheckType.column, null, "hash"));
+        assertFalse(snapshot.contains(CheckType.column, "applyalter_pkg", "hash"));
+    }
+
+    public void tablelessObjectMatchesAnyTable() {
+        CatalogSnapshot snapshot = new CatalogSnapshot("WASG2");
+        snapshot.add(CheckType.index, null, "APPLYALTER_IDIDX");
+
+        assertTrue(snapshot.contains(CheckType.index, "applyalter_log", "applyalter_ididx"));
+        assertEquals(snapshot.size(), 1);
+    }
+
+    public void loadedPerTable() {
+        CatalogSnapshot snapshot = new CatalogSnapshot("public");
+        assertFalse(snapshot.isLoaded(CheckType.index, "applyalter_log"));
+
+        snapshot.markLoaded(CheckType.index, "applyalter_log");
+        assertTrue(snapshot.isLoaded(CheckType.index, "APPLYALTER_LOG"));
+        assertFalse(snapshot.isLoaded(CheckType.index, "applyalter_pkg"));
+        assertFalse(snapshot.isLoaded(CheckType.index, null));
+
+        snapshot.markLoaded(CheckType.index, null);
+        assertTrue(snapshot.isLoaded(CheckType.index, "applyalter_pkg"));
+    }
+}
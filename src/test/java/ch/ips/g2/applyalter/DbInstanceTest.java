@@ -0,0 +1,148 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.annotations.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+@Test
+public class DbInstanceTest {
+
+    private static class TimeoutInstance extends DbInstance {
+        final List<String> sent = new ArrayList<String>();
+
+        @Override
+        public String getUrl() {
+            return "jdbc:test:" + db;
+        }
+
+        @Override
+        public String getEngine() {
+            return "test";
+        }
+
+        @Override
+        protected void setTimeouts(Integer lockTimeout, Integer statementTimeout) throws SQLException {
+            sent.add(lockTimeout + "/" + statementTimeout);
+        }
+
+        @Override
+        public void setSchema(String schema) {
+            sent.add("schema " + schema);
+        }
+
+        @Override
+        protected Connection connect(String url, RunContext ctx) {
+            return connection;
+        }
+
+        Connection connection;
+    }
+
+    public void dmlIsRecognized() {
+        TimeoutInstance d = new TimeoutInstance();
+        assertTrue(d.isDml("  UPDATE a set x=1"));
+        assertTrue(d.isDml("insert into a values (1)"));
+        assertFalse(d.isDml("create table a (x int)"));
+        assertFalse(d.isDml("call proc()"));
+        assertFalse(d.isDml("updated_view_refresh()"));
+    }
+
+    public void defaultTimeoutsAreNotSent() {
+        TimeoutInstance d = new TimeoutInstance();
+        //after every alterscript, the session state is unknown
+        d.resetSessionState();
+        d.ensureTimeouts(null, null);
+        d.resetSessionState();
+        d.ensureTimeouts(null, null);
+        assertTrue(d.sent.isEmpty());
+
+        d.ensureTimeouts(1000, null);
+        d.ensureTimeouts(1000, null);
+        assertEquals(d.sent.size(), 1);
+        //changed by us: restored, once
+        d.resetSessionState();
+        d.ensureTimeouts(null, null);
+        d.resetSessionState();
+        d.ensureTimeouts(null, null);
+        assertEquals(d.sent.size(), 2);
+        assertEquals(d.sent.get(1), "null/null");
+    }
+
+    public void ddlCommitsImplicitly() {
+        DbInstance mysql = new MysqlInstance("m", null, "localhost", null, "db", null, null);
+        assertFalse(mysql.isDdlTransactional());
+        assertTrue(mysql.isImplicitCommit("\n  ALTER TABLE t ADD c INT"));
+        assertFalse(mysql.isImplicitCommit("update t set c = 1"));
+        assertFalse(new TimeoutInstance().isImplicitCommit("alter table t add c int"));
+    }
+
+    public void loginTimeoutIsDriverProperty() {
+        Properties info = new Properties();
+        new MysqlInstance("m", null, "localhost", null, "db", null, null).addLoginTimeout(info, 5);
+        assertEquals(info.getProperty("connectTimeout"), "5000");
+
+        //configured property wins
+        info = new Properties();
+        info.setProperty("loginTimeout", "30");
+        new TimeoutInstance().addLoginTimeout(info, 5);
+        assertEquals(info.getProperty("loginTimeout"), "30");
+    }
+
+    public void pooledSessionIsRestored() throws Exception {
+        Connection c = mock(Connection.class);
+        when(c.getTransactionIsolation()).thenReturn(Connection.TRANSACTION_READ_COMMITTED);
+        when(c.getSchema()).thenReturn("APP");
+        when(c.isValid(anyInt())).thenReturn(true);
+        TimeoutInstance d = new TimeoutInstance();
+        d.connection = c;
+        d.setConnectionPool(new ConnectionPool(1));
+        d.getConnection(null);
+        d.ensureSchema("OTHER");
+        d.ensureIsolation(IsolationLevel.RR);
+        d.ensureTimeouts(1000, null);
+        d.closeConnection();
+
+        assertEquals(d.sent, Arrays.asList("schema OTHER", "1000/null", "null/null", "schema APP"));
+        verify(c).setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        verify(c).setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        verify(c).commit();
+        verify(c, never()).close();
+        //the next request gets the restored connection, nothing to restore for it
+        d.connection = null;
+        assertSame(d.getConnection(null), c);
+        d.ensureTimeouts(null, null);
+        assertEquals(d.sent.size(), 4);
+    }
+
+    public void dataSourceSessionIsRestored() throws Exception {
+        Connection c = mock(Connection.class);
+        when(c.getAutoCommit()).thenReturn(true);
+        when(c.getTransactionIsolation()).thenReturn(Connection.TRANSACTION_READ_COMMITTED);
+        when(c.getSchema()).thenReturn("APP");
+        DataSource ds = mock(DataSource.class);
+        when(ds.getConnection()).thenReturn(c);
+        TimeoutInstance d = new TimeoutInstance();
+        d.setDataSource(ds);
+        d.getConnection(null);
+        d.ensureSchema("OTHER");
+        d.ensureIsolation(IsolationLevel.RR);
+        d.ensureTimeouts(1000, null);
+        d.closeConnection();
+
+        assertEquals(d.sent, Arrays.asList("schema OTHER", "1000/null", "null/null", "schema APP"));
+        verify(c).setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        verify(c).setAutoCommit(false);
+        verify(c).setAutoCommit(true);
+        //returned to the pool of the data source
+        verify(c).close();
+    }
+}
@@ -0,0 +1,97 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+@Test
+public class DynamicQueryTest {
+
+    public void generatedStatementsAreBatched() throws Exception {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.next()).thenReturn(true, true, true, false);
+        when(rs.getString(1)).thenReturn("grant a", "grant b", "grant c");
+        PreparedStatement generator = mock(PreparedStatement.class);
+        when(generator.executeQuery()).thenReturn(rs);
+        Statement batch = mock(Statement.class);
+        when(batch.executeBatch()).thenReturn(new int[]{0, 0}, new int[]{0});
+        Connection con = mock(Connection.class);
+        when(con.prepareStatement("select grants")).thenReturn(generator);
+        when(con.createStatement()).thenReturn(batch);
+        DbInstance d = mock(DbInstance.class);
+        when(d.getConnection(any(RunContext.class))).thenReturn(con);
+
+        DynamicQuery q = new DynamicQuery();
+        q.setStatement("select grants");
+        q.setFetchSize(100);
+        q.setBatch(2);
+        q.execute(d, mock(RunContext.class), null);
+
+        verify(generator).setFetchSize(100);
+        verify(batch, times(3)).addBatch(anyString());
+        verify(batch, times(2)).executeBatch();
+        verify(batch).close();
+    }
+
+    public void parallelFailureRollsBackWorkers() throws Exception {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.next()).thenReturn(true, true, false);
+        when(rs.getString(1)).thenReturn("grant a", "grant b");
+        PreparedStatement generator = mock(PreparedStatement.class);
+        when(generator.executeQuery()).thenReturn(rs);
+        Connection con = mock(Connection.class);
+        when(con.prepareStatement("select grants")).thenReturn(generator);
+        Connection c1 = workerConnection();
+        Connection c2 = workerConnection();
+        DbInstance w1 = mock(DbInstance.class);
+        when(w1.getConnection(any(RunContext.class))).thenReturn(c1);
+        DbInstance w2 = mock(DbInstance.class);
+        when(w2.getConnection(any(RunContext.class))).thenReturn(c2);
+        DbInstance d = mock(DbInstance.class);
+        when(d.getConnection(any(RunContext.class))).thenReturn(con);
+        when(d.openWorker(any(RunContext.class))).thenReturn(w1, w2);
+
+        DynamicQuery q = new DynamicQuery();
+        q.setStatement("select grants");
+        q.setParallel(2);
+        q.setFetchSize(10);
+        RunContext ctx = mock(RunContext.class);
+        when(ctx.getRunMode()).thenReturn(RunMode.SHARP);
+        try {
+            q.execute(d, ctx, null);
+            fail("failure expected");
+        } catch (SQLException e) {
+            assertEquals(e.getSQLState(), "42000");
+        }
+
+        //the main transaction is finished before workers start: nothing there to wait for
+        verify(con, times(2)).commit();
+        verify(rs).close();
+        verify(c1, never()).commit();
+        verify(c2, never()).commit();
+        verify(c1).rollback();
+        verify(c2).rollback();
+        verify(w1).closeConnection();
+        verify(w2).closeConnection();
+    }
+
+    /**
+     * Worker connection: "grant a" succeeds, "grant b" fails.
+     */
+    private static Connection workerConnection() throws SQLException {
+        PreparedStatement ok = mock(PreparedStatement.class);
+        PreparedStatement bad = mock(PreparedStatement.class);
+        when(bad.execute()).thenThrow(new SQLException("boom", "42000"));
+        Connection c = mock(Connection.class);
+        when(c.prepareStatement("grant a")).thenReturn(ok);
+        when(c.prepareStatement("grant b")).thenReturn(bad);
+        return c;
+    }
+}
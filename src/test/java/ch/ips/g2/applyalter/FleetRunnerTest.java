@@ -0,0 +1,46 @@
+package ch.ips.g2.applyalter;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+@Test
+public class FleetRunnerTest {
+
+    public void configsFromDirectoryAndFiles() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "fleet-" + System.nanoTime());
+        try {
+            File b = new File(dir, "b.xml");
+            File a = new File(dir, "a.xml");
+            File other = new File(dir.getParentFile(), dir.getName() + "-other.xml");
+            FileUtils.writeStringToFile(b, "<db/>");
+            FileUtils.writeStringToFile(a, "<db/>");
+            FileUtils.writeStringToFile(new File(dir, "readme.txt"), "");
+            FileUtils.writeStringToFile(other, "<db/>");
+            other.deleteOnExit();
+
+            List<File> configs = FleetRunner.findConfigs(dir.getPath() + "," + other.getPath());
+
+            assertEquals(configs, Arrays.asList(a, b, other));
+            assertEquals(FleetRunner.getConfigName(a), "a");
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test(expectedExceptions = ApplyAlterException.class)
+    public void missingConfig() {
+        FleetRunner.findConfigs("no-such-config.xml");
+    }
+
+    public void logFileName() {
+        assertEquals(FleetRunner.getLogFileName("logs/${config}.xml", "c1"), "logs/c1.xml");
+        assertEquals(FleetRunner.getLogFileName("log.xml", "c1"), "log-c1.xml");
+        assertEquals(FleetRunner.getLogFileName("log", "c1"), "log-c1");
+    }
+}
@@ -0,0 +1,126 @@
+package ch.ips.g2.applyalter;
+
+import com.thoughtworks.xstream.XStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.testng.Assert.*;
+
+@Test
+public class GitSourceTest {
+
+    private static void git(File repo, String... args) throws Exception {
+        String[] command = new String[args.length + 7];
+        System.arraycopy(new String[]{"git", "-C", repo.getPath(), "-c", "user.name=test", "-c",
+                "user.email=test@example.com"}, 0, command, 0, 7);
+        System.arraycopy(args, 0, command, 7, args.length);
+        Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String out = IOUtils.toString(p.getInputStream());
+        assertEquals(p.waitFor(), 0, out);
+    }
+
+    private static AlterLoader createLoader(GitState state) {
+        XStream xstream = new XStream();
+        xstream.processAnnotations(new Class[]{Alter.class, SQL.class});
+        AlterLoader loader = new AlterLoader(xstream, null, Collections.<String, byte[]>emptyMap());
+        loader.setGitState(state);
+        return loader;
+    }
+
+    public void specIsParsed() {
+        GitSource git = new GitSource("git:/repo@v1:alters/");
+        assertEquals(git.getStateKey(), new File("/repo").getAbsolutePath() + ":alters");
+        assertEquals(git.getRelativePath("alters/a/b.xml"), "a/b.xml");
+        assertEquals(GitSource.resolve("alters/a/b.xml", "../data.csv"), "alters/data.csv");
+        assertNull(GitSource.resolve("b.xml", "../data.csv"));
+    }
+
+    public void changedAlterscriptsOnly() throws Exception {
+        File repo = new File(System.getProperty("java.io.tmpdir"), "git-" + System.nanoTime());
+        try {
+            FileUtils.writeStringToFile(new File(repo, "alters/a/a.xml"),
+                    "<alter><sql><statement>select 1</statement></sql></alter>");
+            FileUtils.writeStringToFile(new File(repo, "alters/b/b.xml"),
+                    "<alter><datafile>b.csv</datafile><sql><statement>select 2</statement></sql></alter>");
+            FileUtils.writeStringToFile(new File(repo, "alters/b/b.csv"), "1;x");
+            FileUtils.writeStringToFile(new File(repo, "alters/c/c.xml"),
+                    "<alter><lock-timeout>1000</lock-timeout><depends-on>b.xml</depends-on>"
+                            + "<datafile>../data/c.csv</datafile><sql><statement>select 3</statement></sql></alter>");
+            FileUtils.writeStringToFile(new File(repo, "alters/data/c.csv"), "1;z");
+            FileUtils.writeStringToFile(new File(repo, "README"), "not alters");
+            git(repo, "init", "-q");
+            git(repo, "add", ".");
+            git(repo, "commit", "-q", "-m", "first");
+            File stateFile = new File(repo.getPath() + ".state");
+            stateFile.deleteOnExit();
+            String spec = "git:" + repo.getPath() + "@HEAD:alters/";
+
+            GitState state = new GitState(stateFile, "test");
+            Alters first = createLoader(state).loadAlters(spec);
+            assertEquals(first.getCount(), 3);
+            assertEquals(first.getAlters().get(0).getId(), "a.xml");
+            assertEquals(first.getAlters().get(1).getId(), "b.xml");
+            assertEquals(new String(first.getAlters().get(1)._datafiles.get("b.csv"), "UTF-8"), "1;x");
+            state.save();
+
+            //nothing changed since the recorded commit
+            Alters same = createLoader(new GitState(stateFile, "test")).loadAlters(spec);
+            assertEquals(same.getCount(), 0);
+            assertEquals(same.getSourceHash(), first.getSourceHash());
+            //but not for another database configuration
+            assertEquals(createLoader(new GitState(stateFile, "other")).loadAlters(spec).getCount(), 3);
+
+            //datafile changed: only its alterscript is loaded
+            FileUtils.writeStringToFile(new File(repo, "alters/b/b.csv"), "2;y");
+            git(repo, "commit", "-q", "-a", "-m", "second");
+            Alters changed = createLoader(new GitState(stateFile, "test")).loadAlters(spec);
+            assertEquals(changed.getCount(), 1);
+            assertEquals(changed.getAlters().get(0).getId(), "b.xml");
+            assertFalse(changed.getSourceHash().equals(first.getSourceHash()));
+            assertFalse(changed.getAlters().get(0).getHash().equals(first.getAlters().get(1).getHash()));
+            state = new GitState(stateFile, "test");
+            createLoader(state).loadAlters(spec);
+            state.save();
+
+            //datafile in another directory
+            FileUtils.writeStringToFile(new File(repo, "alters/data/c.csv"), "2;z");
+            git(repo, "commit", "-q", "-a", "-m", "third");
+            changed = createLoader(new GitState(stateFile, "test")).loadAlters(spec);
+            assertEquals(changed.getCount(), 1);
+            assertEquals(changed.getAlters().get(0).getId(), "c.xml");
+            assertFalse(new File(stateFile.getPath() + ".tmp").exists());
+        } finally {
+            FileUtils.deleteQuietly(repo);
+        }
+    }
+
+    public void stateOfOtherConfigurationIsKept() throws Exception {
+        File stateFile = File.createTempFile("git", ".state");
+        try {
+            GitState a = new GitState(stateFile, "a");
+            GitState b = new GitState(stateFile, "b");
+            a.setLoadedCommit("repo", "1111");
+            b.setLoadedCommit("repo", "2222");
+            a.save();
+            b.save();
+            assertEquals(new GitState(stateFile, "a").getAppliedCommit("repo"), "1111");
+            assertEquals(new GitState(stateFile, "b").getAppliedCommit("repo"), "2222");
+        } finally {
+            FileUtils.deleteQuietly(stateFile);
+        }
+    }
+
+    public void affectedByDatafile() {
+        HashSet<String> changed = new HashSet<String>(Arrays.asList("alters/b/data/b.csv", "alters/data/c.csv"));
+        assertTrue(AlterLoader.isAffected("alters/b/b.xml", Arrays.asList("data/b.csv"), changed));
+        assertTrue(AlterLoader.isAffected("alters/c/c.xml", Arrays.asList("../data/c.csv"), changed));
+        assertFalse(AlterLoader.isAffected("alters/a.xml", Arrays.asList("data/a.csv"), changed));
+        assertFalse(AlterLoader.isAffected("alters/a.xml", Collections.<String>emptyList(), changed));
+    }
+}
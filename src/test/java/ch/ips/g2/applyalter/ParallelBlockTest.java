@@ -0,0 +1,95 @@
+package ch.ips.g2.applyalter;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+@Test
+public class ParallelBlockTest {
+
+    public void statementsAreCommittedByWorkers() throws Exception {
+        RunContext ctx = mock(RunContext.class);
+        when(ctx.getRunMode()).thenReturn(RunMode.SHARP);
+        Connection c1 = mock(Connection.class);
+        Connection c2 = mock(Connection.class);
+        DbInstance w1 = worker(c1);
+        DbInstance w2 = worker(c2);
+        Connection main = mock(Connection.class);
+        DbInstance d = worker(main);
+        when(d.openWorker(any(RunContext.class))).thenReturn(w1, w2);
+        AlterStatement s1 = mock(AlterStatement.class);
+        AlterStatement s2 = mock(AlterStatement.class);
+
+        ParallelBlock p = new ParallelBlock(s1, s2);
+        p.setLimit(2);
+        p.execute(d, ctx, null);
+
+        verify(s1).execute(same(w1), any(RunContext.class), anyMapOf(String.class, byte[].class));
+        verify(s2).execute(same(w2), any(RunContext.class), anyMapOf(String.class, byte[].class));
+        verify(c1).commit();
+        verify(c2).commit();
+        //pending work of the alterscript is committed before the statements start
+        verify(main).commit();
+        verify(w1).ensureTimeouts(anyInt(), anyInt());
+        verify(w1).closeConnection();
+        verify(w2).closeConnection();
+    }
+
+    public void failureRollsBackAll() throws Exception {
+        RunContext ctx = mock(RunContext.class);
+        when(ctx.getRunMode()).thenReturn(RunMode.SHARP);
+        Connection c1 = mock(Connection.class);
+        Connection c2 = mock(Connection.class);
+        DbInstance w1 = worker(c1);
+        DbInstance w2 = worker(c2);
+        Connection main = mock(Connection.class);
+        DbInstance d = worker(main);
+        when(d.openWorker(any(RunContext.class))).thenReturn(w1, w2);
+        AlterStatement s1 = mock(AlterStatement.class);
+        AlterStatement s2 = mock(AlterStatement.class);
+        //s1 completes before s2 fails
+        final CountDownLatch s1Done = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                s1Done.countDown();
+                return null;
+            }
+        }).when(s1).execute(any(DbInstance.class), any(RunContext.class), anyMapOf(String.class, byte[].class));
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                assertTrue(s1Done.await(10, TimeUnit.SECONDS));
+                throw new SQLException("boom", "42000");
+            }
+        }).when(s2).execute(any(DbInstance.class), any(RunContext.class), anyMapOf(String.class, byte[].class));
+
+        ParallelBlock p = new ParallelBlock(s1, s2);
+        p.setLimit(2);
+        try {
+            p.execute(d, ctx, null);
+            fail("failure expected");
+        } catch (SQLException e) {
+            assertEquals(e.getSQLState(), "42000");
+        }
+
+        verify(s1).execute(same(w1), any(RunContext.class), anyMapOf(String.class, byte[].class));
+        verify(c1, never()).commit();
+        verify(c1, times(1)).rollback();
+        verify(c2, times(1)).rollback();
+        verify(w1).closeConnection();
+        verify(w2).closeConnection();
+    }
+
+    private static DbInstance worker(Connection c) throws ApplyAlterException {
+        DbInstance w = mock(DbInstance.class);
+        when(w.getConnection(any(RunContext.class))).thenReturn(c);
+        return w;
+    }
+}
@@ -1,6 +1,12 @@
 package ch.ips.g2.applyalter;
 
 import java.io.ByteArrayInputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.testng.annotations.Test;
 
 import static org.mockito.Mockito.*;
@@ -40,4 +46,73 @@ public class PgInstanceTest {
     assertEquals(pg.getUser(), "dbadmin");
     assertEquals(pg.getPass(), "secret");
   }
+
+  public void checksSqlHasRowPerCheck() throws Exception {
+    List<Check> checks = Arrays.asList(
+            new Check(CheckType.table, "APPLYALTER_LOG"),
+            new Check(CheckType.index, "APPLYALTER_IDIDX", "APPLYALTER_LOG"),
+            new Check(CheckType.routine, "f"));
+    List<String> params = new ArrayList<String>();
+    String sql = PgInstance.makeChecksSql(checks, "public", params);
+
+    assertEquals(sql.split("union all").length, 3);
+    assertEquals(params, Arrays.asList(
+            "APPLYALTER_LOG", "applyalter_log", "public", "public",
+            "APPLYALTER_IDIDX", "applyalter_ididx", "APPLYALTER_LOG", "applyalter_log", "public", "public",
+            "f", "f", "public", "public"));
+    assertEquals(sql.replaceAll("[^?]", "").length(), params.size());
+  }
+
+  public void checksSqlWithoutSchemaUsesSearchPath() throws Exception {
+    List<String> params = new ArrayList<String>();
+    String sql = PgInstance.makeChecksSql(Arrays.asList(new Check(CheckType.trigger, "trg")), null, params);
+
+    assertTrue(sql.contains("current_schemas"));
+    assertEquals(params, Arrays.asList("trg", "trg"));
+  }
+
+  public void ensureSchemaSkipsUnchangedSchema() throws Exception {
+    PgInstance pg = new PgInstance("id", "type", "localhost", 5432, "main", "dbadmin", null);
+    Connection con = mock(Connection.class);
+    when(con.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+    pg.con = con;
+
+    pg.ensureSchema("trg");
+    pg.ensureSchema("trg");
+    verify(con, times(1)).prepareStatement("set search_path to trg,public");
+
+    pg.ensureSchema("other");
+    verify(con, times(1)).prepareStatement("set search_path to other,public");
+
+    //rollback undoes SET in postgresql
+    pg.rollback();
+    pg.ensureSchema("other");
+    verify(con, times(2)).prepareStatement("set search_path to other,public");
+  }
+
+  public void ensureTimeoutsSkipsUnchangedTimeouts() throws Exception {
+    PgInstance pg = new PgInstance("id", "type", "localhost", 5432, "main", "dbadmin", null);
+    Connection con = mock(Connection.class);
+    when(con.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+    pg.con = con;
+
+    //fresh session has default timeouts
+    pg.ensureTimeouts(null, null);
+    verify(con, never()).prepareStatement(anyString());
+
+    pg.ensureTimeouts(2000, null);
+    pg.ensureTimeouts(2000, null);
+    verify(con, times(1)).prepareStatement("set lock_timeout to 2000");
+    verify(con, times(1)).prepareStatement("set statement_timeout to default");
+  }
+
+  public void findConcurrentIndex() {
+    assertEquals(PgInstance.findConcurrentIndex("CREATE INDEX CONCURRENTLY foo_idx ON foo (a)"), "foo_idx");
+    assertEquals(PgInstance.findConcurrentIndex("\n create unique index concurrently if not exists s.foo_idx on s.foo(a)"),
+            "s.foo_idx");
+    assertNull(PgInstance.findConcurrentIndex("create index foo_idx on foo (a)"));
+    assertNull(PgInstance.findConcurrentIndex("vacuum analyze foo"));
+    //unnamed index
+    assertNull(PgInstance.findConcurrentIndex("create index concurrently on foo (a)"));
+  }
 }
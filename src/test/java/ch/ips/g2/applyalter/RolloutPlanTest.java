@@ -0,0 +1,39 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.Assert.*;
+
+@Test
+public class RolloutPlanTest {
+
+    public void canaryPercentageAndRest() {
+        assertEquals(new RolloutPlan("1,10%", 50, 0).getSizes(), Arrays.asList(1, 5, 44));
+        assertEquals(new RolloutPlan("1, 10%, rest", 50, 0).getSizes(), Arrays.asList(1, 5, 44));
+        assertEquals(new RolloutPlan("2,50%,100%", 10, 0).getSizes(), Arrays.asList(2, 5, 3));
+    }
+
+    public void wavesAreCappedByInstances() {
+        assertEquals(new RolloutPlan("1,10,10", 3, 0).getSizes(), Arrays.asList(1, 2));
+        assertEquals(new RolloutPlan("1%", 3, 0).getSizes(), Arrays.asList(1, 2));
+    }
+
+    @Test(expectedExceptions = ApplyAlterException.class)
+    public void invalidWave() {
+        new RolloutPlan("1,ten", 10, 0);
+    }
+
+    public void slowAlterscriptsStopRollout() {
+        Map<String, Long> durations = new HashMap<String, Long>();
+        durations.put("a.xml", 100L);
+        durations.put("b.xml", 5000L);
+
+        assertEquals(new RolloutPlan("1", 2, 1000).findSlow(durations), Collections.singletonMap("b.xml", 5000L));
+        assertTrue(new RolloutPlan("1", 2, 0).findSlow(durations).isEmpty());
+    }
+}
@@ -0,0 +1,45 @@
+package ch.ips.g2.applyalter;
+
+import com.thoughtworks.xstream.XStream;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Arrays;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+@Test
+public class SchemasTest {
+
+    public void parsedFromAlterscript() {
+        XStream xstream = new XStream();
+        xstream.processAnnotations(new Class[]{Alter.class, SQL.class, Schemas.class});
+        Alter a = (Alter) xstream.fromXML("<alter><schemas parallel=\"4\"><schema>t1</schema><schema>t2</schema>"
+                + "<query>select tenants</query></schemas><sql><statement>select 1</statement></sql></alter>");
+
+        assertEquals(a.getSchemas().getNames(), Arrays.asList("t1", "t2"));
+        assertEquals(a.getSchemas().getQuery(), "select tenants");
+        assertEquals(a.getSchemas().getParallelism(), 4);
+        assertFalse(a.isGroupCommitEligible());
+    }
+
+    public void explicitNamesFirstWithoutDuplicates() throws Exception {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.next()).thenReturn(true, true, true, false);
+        when(rs.getString(1)).thenReturn("t2", "t3", null);
+        PreparedStatement st = mock(PreparedStatement.class);
+        when(st.executeQuery()).thenReturn(rs);
+        Connection con = mock(Connection.class);
+        when(con.prepareStatement("select tenants")).thenReturn(st);
+
+        Schemas s = new Schemas("t1", " t2 ");
+        s.setQuery("select tenants");
+
+        assertEquals(s.resolve(con), Arrays.asList("t1", "t2", "t3"));
+        assertEquals(s.getParallelism(), 1);
+        verify(st).close();
+    }
+}
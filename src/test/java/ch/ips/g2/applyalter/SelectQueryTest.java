@@ -0,0 +1,62 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.annotations.Test;
+
+import java.io.StringWriter;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+@Test
+public class SelectQueryTest {
+
+    private ResultSet mockResult() throws Exception {
+        ResultSetMetaData meta = mock(ResultSetMetaData.class);
+        when(meta.getColumnCount()).thenReturn(2);
+        when(meta.getColumnLabel(1)).thenReturn("id");
+        when(meta.getColumnLabel(2)).thenReturn("name");
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getMetaData()).thenReturn(meta);
+        when(rs.next()).thenReturn(true, true, false);
+        when(rs.getObject(1)).thenReturn(1, 2);
+        when(rs.getString(1)).thenReturn("1", "2");
+        when(rs.getObject(2)).thenReturn("a \"b\"", null);
+        when(rs.getString(2)).thenReturn("a \"b\"", null);
+        return rs;
+    }
+
+    public void writeCsv() throws Exception {
+        StringWriter out = new StringWriter();
+        assertEquals(SelectQuery.writeCsv(mockResult(), out), 2);
+        assertEquals(out.toString(), "\"id\",\"name\"\n\"1\",\"a \"\"b\"\"\"\n\"2\",\n");
+    }
+
+    public void writeCsvEmptyString() throws Exception {
+        ResultSet rs = mockResult();
+        when(rs.getString(2)).thenReturn("", null);
+        StringWriter out = new StringWriter();
+        SelectQuery.writeCsv(rs, out);
+        assertEquals(out.toString(), "\"id\",\"name\"\n\"1\",\"\"\n\"2\",\n");
+    }
+
+    public void writeJsonLines() throws Exception {
+        StringWriter out = new StringWriter();
+        assertEquals(SelectQuery.writeJsonLines(mockResult(), out), 2);
+        assertEquals(out.toString(), "{\"id\":1,\"name\":\"a \\\"b\\\"\"}\n{\"id\":2,\"name\":null}\n");
+    }
+
+    public void outputFilePerSchema() {
+        SelectQuery q = new SelectQuery();
+        q.setOutput("out-${dbid}.csv");
+        assertFalse(q.isOutputPerSchema());
+        q.setOutput("out-${dbid}-${schema}.csv");
+        assertTrue(q.isOutputPerSchema());
+
+        DbInstance d = mock(DbInstance.class);
+        when(d.getId()).thenReturn("main");
+        d.sessionSchema = "tenant1";
+        assertEquals(q.getOutputFile(d).getPath(), "out-main-tenant1.csv");
+    }
+}
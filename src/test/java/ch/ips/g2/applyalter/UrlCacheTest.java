@@ -0,0 +1,141 @@
+package ch.ips.g2.applyalter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.thoughtworks.xstream.XStream;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.testng.Assert.*;
+
+@Test
+public class UrlCacheTest {
+    private HttpServer server;
+    private String base;
+    private File cacheDir;
+    private final Map<String, byte[]> documents = new ConcurrentHashMap<String, byte[]>();
+    private final AtomicInteger downloads = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    @BeforeMethod
+    public void startServer() throws IOException {
+        documents.clear();
+        downloads.set(0);
+        notModified.set(0);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                final byte[] content = documents.get(exchange.getRequestURI().getPath());
+                if (content == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    final String etag = "\"" + Arrays.hashCode(content) + "\"";
+                    exchange.getResponseHeaders().set("ETag", etag);
+                    if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                        notModified.incrementAndGet();
+                        exchange.sendResponseHeaders(304, -1);
+                    } else {
+                        downloads.incrementAndGet();
+                        exchange.sendResponseHeaders(200, content.length);
+                        final OutputStream os = exchange.getResponseBody();
+                        os.write(content);
+                        os.close();
+                    }
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        cacheDir = new File(System.getProperty("java.io.tmpdir"), "urlcache-" + System.nanoTime());
+    }
+
+    @AfterMethod
+    public void stopServer() {
+        server.stop(0);
+        FileUtils.deleteQuietly(cacheDir);
+    }
+
+    private static AlterLoader createLoader(UrlCache cache) {
+        XStream xstream = new XStream();
+        xstream.processAnnotations(new Class[]{Alter.class, SQL.class});
+        AlterLoader loader = new AlterLoader(xstream, null, Collections.<String, byte[]>emptyMap());
+        loader.setUrlCache(cache);
+        return loader;
+    }
+
+    public void revalidatedByEtag() throws Exception {
+        documents.put("/a.xml", "<alter><datafile>a.csv</datafile><sql><statement>select 1</statement></sql></alter>"
+                .getBytes("UTF-8"));
+        documents.put("/a.csv", "1;x".getBytes("UTF-8"));
+
+        Alters first = createLoader(new UrlCache(cacheDir)).loadAlters(base + "/a.xml");
+        assertEquals(first.getCount(), 1);
+        assertEquals(new String(first.getAlters().get(0)._datafiles.get("a.csv"), "UTF-8"), "1;x");
+        assertEquals(downloads.get(), 2);
+
+        //later run: nothing is downloaded again
+        Alters second = createLoader(new UrlCache(cacheDir)).loadAlters(base + "/a.xml");
+        assertEquals(downloads.get(), 2);
+        assertEquals(notModified.get(), 2);
+        assertEquals(second.getSourceHash(), first.getSourceHash());
+        assertEquals(second.getAlters().get(0).getHash(), first.getAlters().get(0).getHash());
+
+        //changed datafile is downloaded
+        documents.put("/a.csv", "2;y".getBytes("UTF-8"));
+        Alters changed = createLoader(new UrlCache(cacheDir)).loadAlters(base + "/a.xml");
+        assertEquals(downloads.get(), 3);
+        assertFalse(changed.getAlters().get(0).getHash().equals(first.getAlters().get(0).getHash()));
+    }
+
+    public void zipDownloadedOnce() throws Exception {
+        documents.put("/a.zip", zip("a.xml", "<alter><sql><statement>select 1</statement></sql></alter>",
+                "b.xml", "<alter><sql><statement>select 2</statement></sql></alter>"));
+        documents.put("/c.zip", zip("c.xml", "<alter><sql><statement>select 3</statement></sql></alter>"));
+
+        //no cache directory: temporary one
+        Alters alters = createLoader(null).loadAlters(base + "/a.zip", base + "/c.zip");
+        assertEquals(alters.getCount(), 3);
+        assertEquals(alters.getAlters().get(2).getId(), "c.xml");
+        assertEquals(downloads.get(), 2);
+    }
+
+    public void missingDocument() throws Exception {
+        try {
+            new UrlCache(cacheDir).fetch(new URL(base + "/missing.xml"));
+            fail("expected FileNotFoundException");
+        } catch (FileNotFoundException e) {
+            //expected
+        }
+    }
+
+    private static byte[] zip(String... namesAndContents) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(bos);
+        for (int i = 0; i < namesAndContents.length; i += 2) {
+            zos.putNextEntry(new ZipEntry(namesAndContents[i]));
+            zos.write(namesAndContents[i + 1].getBytes("UTF-8"));
+            zos.closeEntry();
+        }
+        zos.close();
+        return bos.toByteArray();
+    }
+}